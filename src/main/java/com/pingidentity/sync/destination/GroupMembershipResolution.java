@@ -1,5 +1,7 @@
 package com.pingidentity.sync.destination;
 
+import com.pingidentity.util.ChildFilters;
+import com.pingidentity.util.DNNormalizer;
 import com.unboundid.directory.sdk.sync.api.LDAPSyncDestinationPlugin;
 import com.unboundid.directory.sdk.sync.config.LDAPSyncDestinationPluginConfig;
 import com.unboundid.directory.sdk.sync.types.PreStepResult;
@@ -7,13 +9,10 @@ import com.unboundid.directory.sdk.sync.types.SyncOperation;
 import com.unboundid.directory.sdk.sync.types.SyncOperationType;
 import com.unboundid.directory.sdk.sync.types.SyncServerContext;
 import com.unboundid.ldap.sdk.*;
-import com.unboundid.util.args.ArgumentException;
-import com.unboundid.util.args.ArgumentParser;
-import com.unboundid.util.args.AttributeNameArgumentValueValidator;
-import com.unboundid.util.args.StringArgument;
+import com.unboundid.util.args.*;
 
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -25,13 +24,36 @@ import java.util.List;
  * to function well and the rate at which changes can be synchronized.
  *
  * On the other hand, this strategy will not work well for users that are members of many groups
+ *
+ * The way members are looked up depends on the number of values:
+ * - small groups: each member entry is retrieved
+ * - medium groups: member entries sharing the same parent are retrieved with chunked one-level searches
+ * - large groups: a single search for the entries that are members of the group is streamed and its results are
+ *   intersected with the values
+ *
+ * The memberships of member entries may be cached, including the fact that an entry does not exist at the
+ * destination. Cached memberships are invalidated when the entry or a group listing it is written, both before the
+ * write and once it completed, so that memberships read while the write is in progress are not kept.
  */
 public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
 {
     public static final String ATTRIBUTE_ARG = "attribute";
     public static final List<String> ATTRIBUTE_DEFAULT = Arrays.asList("member", "uniqueMember");
+    public static final String PER_MEMBER_THRESHOLD_ARG = "per-member-lookup-threshold";
+    public static final String CHUNKED_THRESHOLD_ARG = "chunked-lookup-threshold";
+    public static final String CHUNK_SIZE_ARG = "chunk-size";
+    public static final String SEARCH_BASE_ARG = "search-base";
+    public static final String CACHE_TTL_ARG = "membership-cache-ttl-millis";
+    public static final String CACHE_MAX_ENTRIES_ARG = "membership-cache-max-entries";
+    static final Set<GroupMembershipResolution> instances = ConcurrentHashMap.newKeySet();
     private List<String> attributeList;
     private SyncServerContext serverContext;
+    private int perMemberThreshold;
+    private int chunkedThreshold;
+    private int chunkSize;
+    private List<String> searchBases;
+    private volatile List<String> namingContexts = null;
+    private volatile MembershipCache cache = null;
     
     @Override
     public String getExtensionName()
@@ -61,6 +83,40 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
                 ATTRIBUTE_DEFAULT);
         attributeArg.addValueValidator(new AttributeNameArgumentValueValidator());
         parser.addArgument(attributeArg);
+        
+        IntegerArgument perMemberThresholdArg = new IntegerArgument(null, PER_MEMBER_THRESHOLD_ARG, false, 1,
+                "{count}", "Groups with up to this number of values are resolved by retrieving each member entry",
+                0, Integer.MAX_VALUE, 50);
+        parser.addArgument(perMemberThresholdArg);
+        
+        IntegerArgument chunkedThresholdArg = new IntegerArgument(null, CHUNKED_THRESHOLD_ARG, false, 1,
+                "{count}", "Groups with up to this number of values are resolved with one-level searches for the " +
+                "member entries sharing the same parent, " + CHUNK_SIZE_ARG + " entries at a time. Larger groups " +
+                "are resolved with a single search for the entries that are members of the group.",
+                0, Integer.MAX_VALUE, 5000);
+        parser.addArgument(chunkedThresholdArg);
+        
+        IntegerArgument chunkSizeArg = new IntegerArgument(null, CHUNK_SIZE_ARG, false, 1, "{count}",
+                "Maximum number of member entries to retrieve with a single one-level search", 1, 1000, 100);
+        parser.addArgument(chunkSizeArg);
+        
+        StringArgument searchBaseArg = new StringArgument(null, SEARCH_BASE_ARG, false, 0, "{dn}", "Base DN(s) of " +
+                "the search for the entries that are members of a large group. The naming contexts of the " +
+                "destination server are used if not set.");
+        parser.addArgument(searchBaseArg);
+        
+        IntegerArgument cacheTTLArg = new IntegerArgument(null, CACHE_TTL_ARG, false, 1, "{millis}", "How long " +
+                "to cache the group memberships of member entries, including the fact that an entry does not exist " +
+                "at the destination. Memberships are read every time they are needed if not set. Only the memberships " +
+                "of the entry written and of the members listed by a group written are invalidated: adding or " +
+                "removing a nested group does not invalidate the memberships of its members, which may stay " +
+                "stale until they expire.", 1,
+                Integer.MAX_VALUE);
+        parser.addArgument(cacheTTLArg);
+        
+        IntegerArgument cacheMaxEntriesArg = new IntegerArgument(null, CACHE_MAX_ENTRIES_ARG, false, 1,
+                "{entries}", "Maximum number of entries whose memberships are cached", 1, Integer.MAX_VALUE, 100000);
+        parser.addArgument(cacheMaxEntriesArg);
     }
     
     @Override
@@ -68,6 +124,13 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
             adminActionsRequired, List<String> messages)
     {
         attributeList = parser.getStringArgument(ATTRIBUTE_ARG).getValues();
+        perMemberThreshold = parser.getIntegerArgument(PER_MEMBER_THRESHOLD_ARG).getValue();
+        chunkedThreshold = parser.getIntegerArgument(CHUNKED_THRESHOLD_ARG).getValue();
+        chunkSize = parser.getIntegerArgument(CHUNK_SIZE_ARG).getValue();
+        searchBases = parser.getStringArgument(SEARCH_BASE_ARG).getValues();
+        Integer cacheTTL = parser.getIntegerArgument(CACHE_TTL_ARG).getValue();
+        cache = cacheTTL == null ? null : new MembershipCache(cacheTTL,
+                parser.getIntegerArgument(CACHE_MAX_ENTRIES_ARG).getValue());
         return ResultCode.SUCCESS;
     }
     
@@ -77,8 +140,84 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
     {
         this.serverContext = serverContext;
         applyConfiguration(config, parser, null, null);
+        instances.add(this);
+    }
+    
+    @Override
+    public void finalizeLDAPSyncDestinationPlugin()
+    {
+        instances.remove(this);
+    }
+    
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry to create and of the
+     * members it lists
+     */
+    @Override
+    public PreStepResult preCreate(LDAPInterface destinationConnection, Entry entryToCreate, SyncOperation operation)
+            throws LDAPException
+    {
+        invalidate(entryToCreate, null);
+        return PreStepResult.CONTINUE;
+    }
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry to modify and of the
+     * members added or removed
+     */
+    @Override
+    public PreStepResult preModify(LDAPInterface destinationConnection, Entry entryToModify, List<Modification>
+            modsToApply, SyncOperation operation) throws LDAPException
+    {
+        invalidate(entryToModify, modsToApply);
+        return PreStepResult.CONTINUE;
+    }
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry to delete and of the
+     * members it lists
+     */
+    @Override
+    public PreStepResult preDelete(LDAPInterface destinationConnection, Entry entryToDelete, SyncOperation operation)
+            throws LDAPException
+    {
+        invalidate(entryToDelete, null);
+        return PreStepResult.CONTINUE;
+    }
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry created and of the members
+     * it lists, which may have been read again while the entry was being created
+     */
+    @Override
+    public void postCreate(LDAPInterface destinationConnection, Entry entryCreated, SyncOperation operation)
+            throws LDAPException
+    {
+        invalidate(entryCreated, null);
     }
     
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry modified and of the
+     * members added or removed, which may have been read again while the entry was being modified
+     */
+    @Override
+    public void postModify(LDAPInterface destinationConnection, Entry entryModified, List<Modification> modsApplied,
+                           SyncOperation operation) throws LDAPException
+    {
+        invalidate(entryModified, modsApplied);
+    }
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of the entry deleted and of the members
+     * it listed, which may have been read again while the entry was being deleted
+     */
+    @Override
+    public void postDelete(LDAPInterface destinationConnection, Entry entryDeleted, SyncOperation operation)
+            throws LDAPException
+    {
+        invalidate(entryDeleted, null);
+    }
     
     @Override
     public PreStepResult preFetch(LDAPInterface destinationConnection, SearchRequest searchRequest, List<Entry>
@@ -89,7 +228,8 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
         if (SyncOperationType.MODIFY == operation.getType())
         {
             String groupDN = destinationEntryAfterChange.getDN();
-            for (Attribute attribute : operation.getDestinationEntryAfterChange().getAttributes())
+            // the entry is altered along the way so iterate over a copy of its attributes
+            for (Attribute attribute : new ArrayList<>(destinationEntryAfterChange.getAttributes()))
             {
                 if (attribute == null)
                 {
@@ -97,22 +237,39 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
                 }
                 if (attributeList.stream().anyMatch(attribute.getBaseName() :: equalsIgnoreCase))
                 {
+                    List<String> memberDNs = new ArrayList<>();
                     for (String memberDN : attribute.getValues())
                     {
-                        if (memberDN == null)
+                        if (memberDN != null && !memberDN.isEmpty())
                         {
-                            continue;
+                            memberDNs.add(memberDN);
                         }
-                        if (!memberDN.isEmpty())
+                    }
+                    if (memberDNs.isEmpty())
+                    {
+                        continue;
+                    }
+                    processingEffected = Boolean.TRUE;
+                    Set<String> members = resolveMembers(destinationConnection, groupDN, memberDNs);
+                    if (members.size() == memberDNs.size())
+                    {
+                        continue;
+                    }
+                    List<String> retained = new ArrayList<>(members.size());
+                    for (String value : attribute.getValues())
+                    {
+                        if (value == null || value.isEmpty() || members.contains(value))
                         {
-                            processingEffected = Boolean.TRUE;
-                            SearchResultEntry memberEntry = destinationConnection.getEntry(memberDN, "isMemberOf");
-                            if ( !  memberEntry.hasAttributeValue("isMemberOf", groupDN) )
-                            {
-                                destinationEntryAfterChange.removeAttributeValue(attribute.getName(),memberDN);
-                            }
+                            retained.add(value);
                         }
                     }
+                    if (retained.isEmpty())
+                    {
+                        destinationEntryAfterChange.removeAttribute(attribute.getName());
+                    } else
+                    {
+                        destinationEntryAfterChange.setAttribute(new Attribute(attribute.getName(), retained));
+                    }
                 }
             }
             if (processingEffected)
@@ -123,4 +280,289 @@ public class GroupMembershipResolution extends LDAPSyncDestinationPlugin
         }
         return PreStepResult.CONTINUE;
     }
+    
+    /**
+     * Performs the necessary processing to find out which of the provided entries are members of the group, with
+     * the lookup strategy suited to the number of entries
+     *
+     * @param connection the connection to the destination
+     * @param groupDN    the DN of the group
+     * @param memberDNs  the DNs of the entries listed as members of the group
+     * @return the DNs of the entries actually members of the group, as provided
+     * @throws LDAPException if the lookup failed
+     */
+    private Set<String> resolveMembers(LDAPInterface connection, String groupDN, List<String> memberDNs)
+            throws LDAPException
+    {
+        if (memberDNs.size() <= perMemberThreshold)
+        {
+            return lookupEachMember(connection, groupDN, memberDNs);
+        }
+        if (memberDNs.size() <= chunkedThreshold)
+        {
+            return lookupChunks(connection, groupDN, memberDNs);
+        }
+        try
+        {
+            return lookupGroupMembers(connection, groupDN, memberDNs);
+        } catch (LDAPSearchException e)
+        {
+            if (ResultCode.SIZE_LIMIT_EXCEEDED.equals(e.getResultCode())
+                    || ResultCode.TIME_LIMIT_EXCEEDED.equals(e.getResultCode())
+                    || ResultCode.UNWILLING_TO_PERFORM.equals(e.getResultCode()))
+            {
+                // the server will not let a single search return the whole group
+                serverContext.debugCaught(e);
+                return lookupChunks(connection, groupDN, memberDNs);
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to retrieve each member entry and check its memberships
+     */
+    private Set<String> lookupEachMember(LDAPInterface connection, String groupDN, List<String> memberDNs)
+            throws LDAPException
+    {
+        MembershipCache currentCache = cache;
+        String normalizedGroupDN = DNNormalizer.normalize(groupDN);
+        Set<String> members = new HashSet<>();
+        for (String memberDN : memberDNs)
+        {
+            MembershipCache.Membership membership = currentCache == null ? null : currentCache.get(memberDN);
+            if (membership != null)
+            {
+                if (membership.isMemberOf(groupDN))
+                {
+                    members.add(memberDN);
+                }
+                continue;
+            }
+            SearchResultEntry memberEntry = connection.getEntry(memberDN, "isMemberOf");
+            if (currentCache != null)
+            {
+                currentCache.put(memberDN, memberEntry);
+            }
+            // an entry missing at the destination is not a member
+            if (memberEntry != null && isMemberOf(memberEntry, normalizedGroupDN))
+            {
+                members.add(memberDN);
+            }
+        }
+        return members;
+    }
+    
+    /**
+     * Performs the necessary processing to retrieve the member entries sharing the same parent with one-level
+     * searches and check their memberships
+     */
+    private Set<String> lookupChunks(LDAPInterface connection, String groupDN, List<String> memberDNs)
+            throws LDAPException
+    {
+        MembershipCache currentCache = cache;
+        Set<String> members = new HashSet<>();
+        List<String> uncachedDNs = memberDNs;
+        if (currentCache != null)
+        {
+            uncachedDNs = new ArrayList<>();
+            for (String memberDN : memberDNs)
+            {
+                MembershipCache.Membership membership = currentCache.get(memberDN);
+                if (membership == null)
+                {
+                    uncachedDNs.add(memberDN);
+                } else if (membership.isMemberOf(groupDN))
+                {
+                    members.add(memberDN);
+                }
+            }
+        }
+        
+        List<String> individualDNs = new ArrayList<>();
+        Set<String> normalizedMembers = new HashSet<>();
+        String normalizedGroupDN = DNNormalizer.normalize(groupDN);
+        for (List<DN> siblings : ChildFilters.groupByParent(uncachedDNs, chunkSize, individualDNs))
+        {
+            SearchResult searchResult = connection.search(new SearchRequest(siblings.get(0).getParent().toString(),
+                    SearchScope.ONE, ChildFilters.createRDNFilter(siblings), "isMemberOf"));
+            Set<DN> found = new HashSet<>(searchResult.getEntryCount() * 2);
+            for (SearchResultEntry entry : searchResult.getSearchEntries())
+            {
+                found.add(entry.getParsedDN());
+                if (currentCache != null)
+                {
+                    currentCache.put(entry.getDN(), entry);
+                }
+                if (isMemberOf(entry, normalizedGroupDN))
+                {
+                    normalizedMembers.add(entry.getParsedDN().toNormalizedString());
+                }
+            }
+            if (currentCache != null)
+            {
+                for (DN sibling : siblings)
+                {
+                    if (!found.contains(sibling))
+                    {
+                        currentCache.put(sibling.toString(), null);
+                    }
+                }
+            }
+        }
+        
+        members.addAll(lookupEachMember(connection, groupDN, individualDNs));
+        for (String memberDN : uncachedDNs)
+        {
+            if (normalizedMembers.contains(DNNormalizer.normalize(memberDN)))
+            {
+                members.add(memberDN);
+            }
+        }
+        return members;
+    }
+    
+    /**
+     * Performs the necessary processing to check whether an entry lists a group in its isMemberOf attribute,
+     * comparing normalized DNs since the values may not be spelled like the DN of the group
+     *
+     * @param entry             the entry with its isMemberOf attribute
+     * @param normalizedGroupDN the normalized DN of the group
+     * @return true if the entry is a member of the group
+     */
+    private static boolean isMemberOf(Entry entry, String normalizedGroupDN)
+    {
+        String[] values = entry.getAttributeValues("isMemberOf");
+        if (values != null)
+        {
+            for (String value : values)
+            {
+                if (normalizedGroupDN.equals(DNNormalizer.normalize(value)))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Performs the necessary processing to search for all the entries that are members of the group, collecting
+     * their DNs as they are returned, and intersect them with the provided DNs
+     */
+    private Set<String> lookupGroupMembers(LDAPInterface connection, String groupDN, List<String> memberDNs)
+            throws LDAPException
+    {
+        final Set<String> normalizedMembers = new HashSet<>(memberDNs.size() * 2);
+        SearchResultListener listener = new SearchResultListener()
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            public void searchEntryReturned(SearchResultEntry searchEntry)
+            {
+                normalizedMembers.add(DNNormalizer.normalize(searchEntry.getDN()));
+            }
+            
+            @Override
+            public void searchReferenceReturned(SearchResultReference searchReference)
+            {
+            }
+        };
+        Filter filter = Filter.createEqualityFilter("isMemberOf", groupDN);
+        for (String base : getSearchBases(connection))
+        {
+            connection.search(new SearchRequest(listener, base, SearchScope.SUB, filter, SearchRequest.NO_ATTRIBUTES));
+        }
+        
+        Set<String> members = new HashSet<>();
+        for (String memberDN : memberDNs)
+        {
+            if (normalizedMembers.contains(DNNormalizer.normalize(memberDN)))
+            {
+                members.add(memberDN);
+            }
+        }
+        return members;
+    }
+    
+    /**
+     * Retrieves the bases of the search for group members, from the configuration or the root DSE
+     */
+    private List<String> getSearchBases(LDAPInterface connection) throws LDAPException
+    {
+        if (searchBases != null && !searchBases.isEmpty())
+        {
+            return searchBases;
+        }
+        List<String> contexts = namingContexts;
+        if (contexts == null)
+        {
+            RootDSE rootDSE = connection.getRootDSE();
+            String[] values = rootDSE == null ? null : rootDSE.getNamingContextDNs();
+            contexts = values == null ? Collections.<String>emptyList() : Arrays.asList(values);
+            namingContexts = contexts;
+        }
+        return contexts;
+    }
+    
+    /**
+     * Performs the necessary processing to invalidate the cached memberships of an entry about to be written and,
+     * if it is a group, of the members whose memberships change
+     *
+     * @param entry the entry as it is at the destination or will be created
+     * @param mods  the modifications to apply (null = the whole entry is created or deleted)
+     */
+    private void invalidate(Entry entry, List<Modification> mods)
+    {
+        MembershipCache currentCache = cache;
+        if (currentCache == null || entry == null)
+        {
+            return;
+        }
+        currentCache.invalidate(entry.getDN());
+        for (String attributeName : attributeList)
+        {
+            boolean allMembers = mods == null;
+            if (mods != null)
+            {
+                for (Modification mod : mods)
+                {
+                    if (!attributeName.equalsIgnoreCase(Attribute.getBaseName(mod.getAttributeName())))
+                    {
+                        continue;
+                    }
+                    for (String memberDN : mod.getValues())
+                    {
+                        currentCache.invalidate(memberDN);
+                    }
+                    if (!mod.hasValue() || mod.getModificationType() == ModificationType.REPLACE)
+                    {
+                        // every current member may be affected
+                        allMembers = true;
+                    }
+                }
+            }
+            if (allMembers)
+            {
+                String[] memberDNs = entry.getAttributeValues(attributeName);
+                if (memberDNs != null)
+                {
+                    for (String memberDN : memberDNs)
+                    {
+                        currentCache.invalidate(memberDN);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Retrieves the membership cache
+     * @return the cache or null if memberships are not cached
+     */
+    MembershipCache getCache()
+    {
+        return cache;
+    }
 }
@@ -0,0 +1,198 @@
+package com.pingidentity.sync.destination;
+
+import com.pingidentity.util.DNNormalizer;
+import com.unboundid.ldap.sdk.Entry;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the group memberships of destination entries, so that the same entries are not read again for
+ * every group they are a member of
+ * <p>
+ * Entries that do not exist at the destination are cached as well. Cached memberships expire after a fixed time and
+ * are invalidated when the entry or a group listing it is written to the destination. The least recently used
+ * entries are evicted when the cache is full.
+ */
+public class MembershipCache
+{
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Membership> memberships;
+
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong invalidations = new AtomicLong(0L);
+
+    /**
+     * Performs the necessary processing to initialize the cache
+     *
+     * @param ttl     how long memberships stay in the cache in milliseconds
+     * @param entries the maximum number of entries
+     */
+    public MembershipCache(final long ttl, final int entries)
+    {
+        ttlMillis = ttl;
+        maxEntries = entries;
+        memberships = new LinkedHashMap<String, Membership>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Membership> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the cached memberships of an entry
+     *
+     * @param dn the DN of the entry
+     * @return the memberships or null if they are not cached
+     */
+    public synchronized Membership get(final String dn)
+    {
+        String key = DNNormalizer.normalize(dn);
+        Membership membership = memberships.get(key);
+        if (membership != null && membership.expiration < System.currentTimeMillis())
+        {
+            memberships.remove(key);
+            membership = null;
+        }
+        if (membership == null)
+        {
+            misses.incrementAndGet();
+        } else
+        {
+            hits.incrementAndGet();
+        }
+        return membership;
+    }
+
+    /**
+     * Performs the necessary processing to cache the memberships of an entry read from the destination
+     *
+     * @param dn    the DN of the entry
+     * @param entry the entry with its isMemberOf attribute (null if it does not exist)
+     */
+    public synchronized void put(final String dn, final Entry entry)
+    {
+        Set<String> groups = null;
+        if (entry != null)
+        {
+            String[] values = entry.getAttributeValues("isMemberOf");
+            groups = new HashSet<>(values == null ? 1 : values.length * 2);
+            if (values != null)
+            {
+                for (String value : values)
+                {
+                    groups.add(DNNormalizer.normalize(value));
+                }
+            }
+        }
+        memberships.put(DNNormalizer.normalize(dn), new Membership(groups, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Performs the necessary processing to forget the memberships of an entry
+     *
+     * @param dn the DN of the entry
+     */
+    public synchronized void invalidate(final String dn)
+    {
+        if (memberships.remove(DNNormalizer.normalize(dn)) != null)
+        {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Performs the necessary processing to forget all memberships
+     */
+    public synchronized void clear()
+    {
+        memberships.clear();
+    }
+
+    /**
+     * Retrieves the number of entries whose memberships are cached, including expired ones not dropped yet
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        return memberships.size();
+    }
+
+    /**
+     * Retrieves the number of lookups served from the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of lookups for entries not cached or expired
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of cached memberships dropped because the entry or a group was written
+     *
+     * @return the number of invalidations
+     */
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    /**
+     * This class holds the cached memberships of an entry
+     */
+    public static class Membership
+    {
+        private final Set<String> groups;
+        private final long expiration;
+
+        private Membership(final Set<String> g, final long exp)
+        {
+            groups = g == null ? null : Collections.unmodifiableSet(g);
+            expiration = exp;
+        }
+
+        /**
+         * Indicates whether the entry exists at the destination
+         *
+         * @return false if the entry was not found
+         */
+        public boolean exists()
+        {
+            return groups != null;
+        }
+
+        /**
+         * Indicates whether the entry is a member of the provided group
+         *
+         * @param groupDN the DN of the group
+         * @return true if the entry exists and is a member of the group
+         */
+        public boolean isMemberOf(final String groupDN)
+        {
+            return groups != null && groups.contains(DNNormalizer.normalize(groupDN));
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package com.pingidentity.sync.destination;
 
-import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.pingidentity.util.DNNormalizer;
 import com.unboundid.directory.sdk.sync.api.LDAPSyncDestinationPlugin;
 import com.unboundid.directory.sdk.sync.config.LDAPSyncDestinationPluginConfig;
+import com.unboundid.directory.sdk.sync.types.PostStepResult;
 import com.unboundid.directory.sdk.sync.types.PreStepResult;
 import com.unboundid.directory.sdk.sync.types.SyncOperation;
 import com.unboundid.directory.sdk.sync.types.SyncOperationType;
@@ -10,12 +11,16 @@ import com.unboundid.directory.sdk.sync.types.SyncServerContext;
 import com.unboundid.ldap.sdk.*;
 import com.unboundid.ldap.sdk.controls.MatchedValuesFilter;
 import com.unboundid.ldap.sdk.controls.MatchedValuesRequestControl;
+import com.unboundid.util.StaticUtils;
 import com.unboundid.util.args.ArgumentException;
 import com.unboundid.util.args.ArgumentParser;
 import com.unboundid.util.args.AttributeNameArgumentValueValidator;
+import com.unboundid.util.args.IntegerArgument;
 import com.unboundid.util.args.StringArgument;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -29,8 +34,33 @@ public class PareDownFetchResults extends LDAPSyncDestinationPlugin
     public static final String DS_CFG_ATTRIBUTE_MAPS = "ds-cfg-attribute-map";
     public static final String DS_CFG_DN_MAP = "ds-cfg-dn-map";
     public static final String ATTRIBUTE_ARG = "attribute";
+    public static final String MAPPING_CACHE_TTL_ARG = "mapping-cache-ttl-millis";
+    public static final String CHUNKED_FETCH_THRESHOLD_ARG = "chunked-fetch-threshold";
+    public static final String FILTERS_PER_CHUNK_ARG = "filters-per-chunk";
+    public static final String MAX_FILTERS_ARG = "max-matched-values-filters";
+    public static final String ATTACHMENT_ID = "pare-down-fetch-start";
     private List<String> attributeList;
+    private volatile Set<String> attributeNames = Collections.emptySet();
+    private volatile long mappingCacheTTL;
+    private final ConcurrentHashMap<String, SyncClassMappingContext> mappingContexts = new ConcurrentHashMap<>();
+    private volatile Integer chunkedFetchThreshold;
+    private volatile int filtersPerChunk;
+    private volatile Integer maxFilters;
     private SyncServerContext serverContext;
+
+    static AtomicLong controlsAdded = new AtomicLong(0L);
+    static AtomicLong controlFilters = new AtomicLong(0L);
+    static AtomicLong duplicateValues = new AtomicLong(0L);
+    static AtomicLong encodedControlBytes = new AtomicLong(0L);
+    static AtomicLong maxEncodedControlBytes = new AtomicLong(0L);
+    static AtomicLong controlBuildNanos = new AtomicLong(0L);
+    static AtomicLong paredFetches = new AtomicLong(0L);
+    static AtomicLong paredFetchNanos = new AtomicLong(0L);
+    static AtomicLong chunkedFetches = new AtomicLong(0L);
+    static AtomicLong chunkedSearches = new AtomicLong(0L);
+    static AtomicLong chunkedFetchNanos = new AtomicLong(0L);
+    static AtomicLong chunkedFetchFailures = new AtomicLong(0L);
+    static AtomicLong paringSkipped = new AtomicLong(0L);
     
     /**
      * Preforms the necessary processing to generate the extension name
@@ -77,6 +107,27 @@ public class PareDownFetchResults extends LDAPSyncDestinationPlugin
                 "for which the results should be pared down to the results from the source changelog entry");
         attributeArg.addValueValidator(new AttributeNameArgumentValueValidator());
         parser.addArgument(attributeArg);
+
+        IntegerArgument mappingCacheTTLArg = new IntegerArgument(null, MAPPING_CACHE_TTL_ARG, false, 1,
+                "{millis}", "How long to keep the DN and attribute maps of a Sync Class before reading its " +
+                "configuration again", 0, Integer.MAX_VALUE, 60000);
+        parser.addArgument(mappingCacheTTLArg);
+
+        IntegerArgument chunkedFetchThresholdArg = new IntegerArgument(null, CHUNKED_FETCH_THRESHOLD_ARG, false, 1,
+                "{filters}", "Number of matched values filters above which the entry is fetched in several " +
+                "searches, each with a part of the filters, and the results are merged. A single control is always " +
+                "used if not set.", 1, Integer.MAX_VALUE);
+        parser.addArgument(chunkedFetchThresholdArg);
+
+        IntegerArgument filtersPerChunkArg = new IntegerArgument(null, FILTERS_PER_CHUNK_ARG, false, 1,
+                "{filters}", "Maximum number of matched values filters in the control of each search of a chunked " +
+                "fetch", 1, Integer.MAX_VALUE, 500);
+        parser.addArgument(filtersPerChunkArg);
+
+        IntegerArgument maxFiltersArg = new IntegerArgument(null, MAX_FILTERS_ARG, false, 1, "{filters}",
+                "Number of matched values filters above which results are not pared down at all because paring " +
+                "would cost more than it saves. Results are always pared down if not set.", 1, Integer.MAX_VALUE);
+        parser.addArgument(maxFiltersArg);
     }
 
     /**
@@ -93,6 +144,18 @@ public class PareDownFetchResults extends LDAPSyncDestinationPlugin
             adminActionsRequired, List<String> messages)
     {
         attributeList = parser.getStringArgument(ATTRIBUTE_ARG).getValues();
+        Set<String> names = new HashSet<>(attributeList.size() * 2);
+        for (String attribute : attributeList)
+        {
+            names.add(StaticUtils.toLowerCase(attribute));
+        }
+        attributeNames = names;
+        mappingCacheTTL = parser.getIntegerArgument(MAPPING_CACHE_TTL_ARG).getValue();
+        chunkedFetchThreshold = parser.getIntegerArgument(CHUNKED_FETCH_THRESHOLD_ARG).getValue();
+        filtersPerChunk = parser.getIntegerArgument(FILTERS_PER_CHUNK_ARG).getValue();
+        maxFilters = parser.getIntegerArgument(MAX_FILTERS_ARG).getValue();
+        // the Sync Class configuration may have changed as well
+        mappingContexts.clear();
         return ResultCode.SUCCESS;
     }
 
@@ -135,17 +198,19 @@ public class PareDownFetchResults extends LDAPSyncDestinationPlugin
          */
         if (SyncOperationType.MODIFY == operation.getType())
         {
-            List<MatchedValuesFilter> filters = new ArrayList<>();
+            long start = System.nanoTime();
+            FilterSet filters = new FilterSet();
+            SyncClassMappingContext mappingContext = null;
             
             for (Attribute attribute : operation.getDestinationEntryAfterChange().getAttributes())
             {
-                if (attributeList.stream().anyMatch(attribute.getBaseName() :: equalsIgnoreCase))
+                if (isParedDown(attribute))
                 {
                     for (byte[] value : attribute.getValueByteArrays())
                     {
                         if (value != null && value.length > 0)
                         {
-                            filters.add(MatchedValuesFilter.createEqualityFilter(attribute.getBaseName(), value));
+                            filters.add(attribute.getBaseName(), value);
                         }
                     }
                 }
@@ -153,143 +218,225 @@ public class PareDownFetchResults extends LDAPSyncDestinationPlugin
             for (Modification modification : operation.getChangeLogEntry().getModifications())
             {
                 if (modification.getModificationType() == ModificationType.DELETE
-                        && attributeList.stream().anyMatch(modification.getAttribute().getBaseName() ::
-                        equalsIgnoreCase))
+                        && isParedDown(modification.getAttribute()))
                 {
+                    if (mappingContext == null)
+                    {
+                        mappingContext = getMappingContext(operation.getSyncPipeName(), operation.getSyncClassName());
+                    }
                     Entry mockSourceEntry = new Entry(operation.getSourceEntry().getDN(), Arrays.asList(modification.getAttribute()));
-                    Entry mockMappedSourceEntry = applyMaps(mockSourceEntry,operation,serverContext);
+                    Entry mockMappedSourceEntry = applyMaps(mockSourceEntry, mappingContext);
+                    if (mockMappedSourceEntry == null)
+                    {
+                        continue;
+                    }
                     for (byte[] value : mockMappedSourceEntry.getAttributeValueByteArrays(modification.getAttributeName()))
                     {
                         if (value != null && value.length > 0)
                         {
                             // this fails if the values have been mapped between the source and the destination
-                            filters.add(MatchedValuesFilter.createEqualityFilter(modification.getAttributeName(),
-                                    value));
+                            filters.add(modification.getAttributeName(), value);
                         }
                     }
                 }
             }
-            if (filters.size() > 0)
+            duplicateValues.addAndGet(filters.getDuplicates());
+            int filterCount = filters.size();
+            if (filterCount == 0)
+            {
+                return PreStepResult.CONTINUE;
+            }
+            if (maxFilters != null && filterCount > maxFilters)
+            {
+                // evaluating that many filters at the destination costs more than fetching all the values
+                paringSkipped.incrementAndGet();
+                return PreStepResult.CONTINUE;
+            }
+            if (chunkedFetchThreshold != null && filterCount > chunkedFetchThreshold)
             {
-                searchRequest.addControl(new MatchedValuesRequestControl(filters));
+                return fetchInChunks(destinationConnection, searchRequest, fetchedEntries, filters.getFilters());
             }
+            MatchedValuesRequestControl control = new MatchedValuesRequestControl(filters.getFilters());
+            searchRequest.addControl(control);
+            recordControl(control, filterCount, System.nanoTime() - start);
+            operation.putAttachment(ATTACHMENT_ID, System.nanoTime());
         }
         return PreStepResult.CONTINUE;
     }
 
     /**
-     * Performs the necessary processing to apply relevant DN and attribute maps
-     * @param entry the entry on which maps will be applied
-     * @param operation the SyncOperation
-     * @param serverContext the server context
-     * @return the resulting entry after all maps have been applied
+     * Performs the necessary processing to record the time the destination took to return the pared down results
+     *
+     * @param destinationConnection the connection to the destination
+     * @param searchRequest         the search request
+     * @param fetchedEntries        the list of entries fetched
+     * @param operation             the sync operation
+     * @return the PostStepResult
      */
-    private static Entry applyMaps(final Entry entry, final SyncOperation operation, final SyncServerContext serverContext)
+    @Override
+    public PostStepResult postFetch(LDAPInterface destinationConnection, SearchRequest searchRequest, List<Entry>
+            fetchedEntries, SyncOperation operation)
     {
-        Entry result = null;
-        Entry configEntry = getSyncClassConfigEntry(serverContext, operation.getSyncPipeName(), operation
-                .getSyncClassName());
-        if (configEntry != null)
+        Object start = operation.getAttachment(ATTACHMENT_ID);
+        if (start instanceof Long)
         {
-            Set<String> attributeMaps = getMaps(configEntry, DS_CFG_ATTRIBUTE_MAPS);
-            Set<String> dnMaps = getMaps(configEntry, DS_CFG_DN_MAP);
-            Set<String> autoMappedSourceAttributes = getAttributes(configEntry,"ds-cfg-auto-mapped-source-attribute");
-            Set<String> excludedAutoMappedSourceAttributes = getAttributes(configEntry, "ds-cfg-excluded-auto-mapped-source-attributes");
-            Set<String> excludedAutoMappedSourceAttributesRegex = getAttributes(configEntry, "ds-cfg-excluded-auto-mapped-source-attribute-regex");
-            
-            try
-            {
-                result = serverContext.applyMaps(entry, dnMaps, attributeMaps, autoMappedSourceAttributes,
-                        excludedAutoMappedSourceAttributes, excludedAutoMappedSourceAttributesRegex);
-            } catch (LDAPException e)
-            {
-                e.printStackTrace();
-            }
-            return result;
+            paredFetches.incrementAndGet();
+            paredFetchNanos.addAndGet(System.nanoTime() - (Long) start);
         }
-        return result;
+        return PostStepResult.CONTINUE;
     }
 
     /**
-     * Performs the necessary processing to retrieve the attributes from the Sync Class configuration entry
-     * @param configEntry the Sync Class configuration entry
-     * @param attribute the attribute type in the configuration entry that stores the resulting attribute types
-     * @return the Set of attribute types found
+     * Performs the necessary processing to fetch the entry with several searches, each with a part of the matched
+     * values filters, and merge the values returned
+     *
+     * @param destinationConnection the connection to the destination
+     * @param searchRequest         the search request
+     * @param fetchedEntries        the list in which to return the entries fetched
+     * @param filters               the matched values filters
+     * @return SKIP_CURRENT_STEP if the entries were fetched, CONTINUE to let the server fetch them without paring
      */
-    private static Set<String> getAttributes(final Entry configEntry, final String attribute)
+    private PreStepResult fetchInChunks(final LDAPInterface destinationConnection, final SearchRequest searchRequest,
+                                        final List<Entry> fetchedEntries, final List<MatchedValuesFilter> filters)
     {
-        Set<String> results = null;
-        if (configEntry != null && attribute != null && !attribute.isEmpty() && configEntry.hasAttribute(attribute) )
+        long start = System.nanoTime();
+        // attributes not covered by the filters are returned in full by every search, only values are merged
+        Map<String, Entry> merged = new LinkedHashMap<>();
+        try
         {
-            String[] values = configEntry.getAttributeValues(attribute);
-            if ( values != null && values.length > 0 )
+            for (int i = 0; i < filters.size(); i += filtersPerChunk)
             {
-                results = new HashSet<>(values.length);
-                for (String value : values )
+                List<MatchedValuesFilter> chunk = filters.subList(i, Math.min(filters.size(), i + filtersPerChunk));
+                long buildStart = System.nanoTime();
+                SearchRequest chunkRequest = searchRequest.duplicate();
+                MatchedValuesRequestControl control = new MatchedValuesRequestControl(chunk);
+                chunkRequest.addControl(control);
+                recordControl(control, chunk.size(), System.nanoTime() - buildStart);
+                SearchResult result = destinationConnection.search(chunkRequest);
+                chunkedSearches.incrementAndGet();
+                for (SearchResultEntry entry : result.getSearchEntries())
                 {
-                    results.add(value);
+                    String key = DNNormalizer.normalize(entry.getDN());
+                    Entry previous = merged.get(key);
+                    merged.put(key, previous == null ? new Entry(entry.getDN(), entry.getAttributes()) : Entry
+                            .mergeEntries(previous, entry));
                 }
             }
+        } catch (LDAPException e)
+        {
+            // let the server fetch the entries the usual way, without paring
+            serverContext.debugCaught(e);
+            chunkedFetchFailures.incrementAndGet();
+            return PreStepResult.CONTINUE;
         }
-        return results;
+        fetchedEntries.addAll(merged.values());
+        chunkedFetches.incrementAndGet();
+        chunkedFetchNanos.addAndGet(System.nanoTime() - start);
+        return PreStepResult.SKIP_CURRENT_STEP;
+    }
+
+    private static void recordControl(final MatchedValuesRequestControl control, final int filterCount, final long
+            nanos)
+    {
+        int size = control.getValue() == null ? 0 : control.getValue().getValueLength();
+        controlsAdded.incrementAndGet();
+        controlFilters.addAndGet(filterCount);
+        encodedControlBytes.addAndGet(size);
+        maxEncodedControlBytes.accumulateAndGet(size, Math::max);
+        controlBuildNanos.addAndGet(nanos);
     }
 
     /**
-     * Performs the necessary processing to retrieve the maps from the Sync Class configuration entry
-     * @param configEntry the Sync Class configuration entry
-     * @param mapAttribute the source attribute type for which maps are sought
-     * @return the Set of map DNs found to apply to the attribute type
+     * Indicates whether the values of the provided attribute should be pared down
+     * @param attribute the attribute
+     * @return true if the attribute is one of the configured attributes
      */
-    private static Set<String> getMaps(final Entry configEntry, final String mapAttribute)
+    private boolean isParedDown(final Attribute attribute)
     {
-        Set<String> results = null;
-        String[] values = configEntry.getAttributeValues(mapAttribute);
-        if (values != null && values.length > 0)
+        return attributeNames.contains(StaticUtils.toLowerCase(attribute.getBaseName()));
+    }
+
+    /**
+     * Performs the necessary processing to retrieve the maps of a Sync Class, reading its configuration only if it
+     * was not read recently
+     * @param pipeName the Sync Pipe name
+     * @param className the Sync Class name
+     * @return the mapping context or null if the Sync Class configuration could not be found
+     */
+    private SyncClassMappingContext getMappingContext(final String pipeName, final String className)
+    {
+        String key = pipeName + "/" + className;
+        SyncClassMappingContext mappingContext = mappingContexts.get(key);
+        if (mappingContext == null || mappingContext.getLoadTime() + mappingCacheTTL < System.currentTimeMillis())
         {
-            results = new HashSet<>(values.length);
-            for (String value : values)
+            mappingContext = SyncClassMappingContext.load(serverContext, pipeName, className);
+            if (mappingContext == null)
             {
-                try
-                {
-                    DN dn = new DN(value);
-                    results.add(dn.getRDN().getAttributeValues()[0]);
-                } catch (LDAPException e)
-                {
-                }
+                mappingContexts.remove(key);
+            } else
+            {
+                mappingContexts.put(key, mappingContext);
             }
         }
-        return results;
+        return mappingContext;
     }
 
     /**
-     * Performs the necessary processing to retrieve the DN of the configuration Entry for the provided Pipe and Class
-     * @param serverContext the server context
-     * @param pipeName the Sync Pipe name
-     * @param className the Sync Class name
-     * @return the configuration entry found
+     * Performs the necessary processing to apply relevant DN and attribute maps
+     * @param entry the entry on which maps will be applied
+     * @param mappingContext the maps of the Sync Class
+     * @return the resulting entry after all maps have been applied or null if they could not be applied
      */
-    private static Entry getSyncClassConfigEntry(final ServerContext serverContext, final String pipeName, final
-    String className)
+    private Entry applyMaps(final Entry entry, final SyncClassMappingContext mappingContext)
     {
+        if (mappingContext == null)
+        {
+            return null;
+        }
         try
         {
-            return serverContext.getInternalRootConnection().getEntry(getSyncClassDN(pipeName, className));
+            return mappingContext.apply(entry, serverContext);
         } catch (LDAPException e)
         {
-            // not gonna happen
+            serverContext.debugCaught(e);
         }
         return null;
     }
 
     /**
-     * Performs the necessary processing to compute the Sync Class configuration entry DN
-     * @param pipeName the Sync Pipe name
-     * @param className the Sync Class name
-     * @return
+     * This class collects the matched values filters of an operation, leaving out repeated values
      */
-    private static String getSyncClassDN(final String pipeName, final String className)
+    private static class FilterSet
     {
-        return "cn=" + className + ",cn=sync classes,cn=" + pipeName + "," +
-                "cn=sync pipes,cn=config";
+        private final Set<String> keys = new HashSet<>();
+        private final List<MatchedValuesFilter> filters = new ArrayList<>();
+        private long duplicates = 0L;
+
+        void add(final String attributeName, final byte[] value)
+        {
+            String key = StaticUtils.toLowerCase(attributeName) + ':' + StaticUtils.toHex(value);
+            if (keys.add(key))
+            {
+                filters.add(MatchedValuesFilter.createEqualityFilter(attributeName, value));
+            } else
+            {
+                duplicates++;
+            }
+        }
+
+        int size()
+        {
+            return filters.size();
+        }
+
+        long getDuplicates()
+        {
+            return duplicates;
+        }
+
+        List<MatchedValuesFilter> getFilters()
+        {
+            return filters;
+        }
     }
 }
@@ -0,0 +1,129 @@
+package com.pingidentity.sync.destination;
+
+import com.unboundid.directory.sdk.common.api.MonitorProvider;
+import com.unboundid.directory.sdk.common.config.MonitorProviderConfig;
+import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.args.ArgumentParser;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * This monitor provider tracks the matched values controls built by the PareDownFetchResults plugins and the
+ * membership caches of the GroupMembershipResolution plugins
+ * Values are summed over all the plugins running in the server
+ */
+public class PareDownFetchResultsMonitorProvider extends MonitorProvider {
+
+    DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss");
+
+    private volatile MonitorProviderConfig config;
+    private ServerContext serverContext;
+
+    /**
+     * An empty constructor is *required*
+     */
+    public PareDownFetchResultsMonitorProvider() {
+    }
+
+    @Override
+    public String getExtensionName() {
+        return "PareDownFetchResultsMonitorProvider";
+    }
+
+    @Override
+    public String[] getExtensionDescription() {
+        return new String[]{"This monitor provider tracks metrics for PareDownFetchResults"};
+    }
+
+    @Override
+    public String getMonitorInstanceName() {
+        return "Pare Down Fetch Results Monitor Provider " + config.getConfigObjectName();
+    }
+
+    @Override()
+    public void initializeMonitorProvider(final ServerContext serverContext,
+                                          final MonitorProviderConfig config,
+                                          final ArgumentParser parser)
+            throws LDAPException {
+        this.serverContext = serverContext;
+        this.config = config;
+    }
+
+    @Override()
+    public boolean isConfigurationAcceptable(final MonitorProviderConfig config,
+                                             final ArgumentParser parser,
+                                             final List<String> unacceptableReasons) {
+        return true;
+    }
+
+    @Override()
+    public long getUpdateIntervalMillis() {
+        return 10000L;
+    }
+
+    @Override()
+    public ResultCode applyConfiguration(final MonitorProviderConfig config,
+                                         final ArgumentParser parser,
+                                         final List<String> adminActionsRequired,
+                                         final List<String> messages) {
+        this.config = config;
+        return ResultCode.SUCCESS;
+    }
+
+    @Override
+    public List<Attribute> getMonitorAttributes() {
+        List<Attribute> result = new ArrayList<>();
+
+        result.add(new Attribute("monitor-last-updated",dateFormat.format(Calendar.getInstance().getTime())));
+
+        long controls = PareDownFetchResults.controlsAdded.get();
+        long controlBytes = PareDownFetchResults.encodedControlBytes.get();
+        long paredFetches = PareDownFetchResults.paredFetches.get();
+        long chunkedFetches = PareDownFetchResults.chunkedFetches.get();
+
+        result.add(new Attribute("matched-values-controls",Long.toString(controls)));
+        result.add(new Attribute("matched-values-filters",Long.toString(PareDownFetchResults.controlFilters.get())));
+        result.add(new Attribute("duplicate-values-skipped",Long.toString(PareDownFetchResults.duplicateValues.get())));
+        result.add(new Attribute("encoded-control-bytes",Long.toString(controlBytes)));
+        result.add(new Attribute("average-encoded-control-bytes",Long.toString(controls == 0L ? 0L : controlBytes / controls)));
+        result.add(new Attribute("max-encoded-control-bytes",Long.toString(PareDownFetchResults.maxEncodedControlBytes.get())));
+        result.add(new Attribute("average-control-build-micros",Long.toString(controls == 0L ? 0L :
+                PareDownFetchResults.controlBuildNanos.get() / controls / 1000L)));
+        result.add(new Attribute("pared-fetches",Long.toString(paredFetches)));
+        result.add(new Attribute("average-pared-fetch-micros",Long.toString(paredFetches == 0L ? 0L :
+                PareDownFetchResults.paredFetchNanos.get() / paredFetches / 1000L)));
+        result.add(new Attribute("chunked-fetches",Long.toString(chunkedFetches)));
+        result.add(new Attribute("chunked-fetch-searches",Long.toString(PareDownFetchResults.chunkedSearches.get())));
+        result.add(new Attribute("average-chunked-fetch-micros",Long.toString(chunkedFetches == 0L ? 0L :
+                PareDownFetchResults.chunkedFetchNanos.get() / chunkedFetches / 1000L)));
+        result.add(new Attribute("chunked-fetch-failures",Long.toString(PareDownFetchResults.chunkedFetchFailures.get())));
+        result.add(new Attribute("paring-skipped",Long.toString(PareDownFetchResults.paringSkipped.get())));
+
+        long membershipCacheSize = 0L;
+        long membershipCacheHits = 0L;
+        long membershipCacheMisses = 0L;
+        long membershipCacheInvalidations = 0L;
+        for (GroupMembershipResolution resolution : GroupMembershipResolution.instances) {
+            MembershipCache cache = resolution.getCache();
+            if (cache != null) {
+                membershipCacheSize += cache.size();
+                membershipCacheHits += cache.getHits();
+                membershipCacheMisses += cache.getMisses();
+                membershipCacheInvalidations += cache.getInvalidations();
+            }
+        }
+        result.add(new Attribute("membership-cache-size",Long.toString(membershipCacheSize)));
+        result.add(new Attribute("membership-cache-hits",Long.toString(membershipCacheHits)));
+        result.add(new Attribute("membership-cache-misses",Long.toString(membershipCacheMisses)));
+        result.add(new Attribute("membership-cache-invalidations",Long.toString(membershipCacheInvalidations)));
+
+        return result;
+    }
+}
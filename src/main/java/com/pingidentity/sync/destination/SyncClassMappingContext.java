@@ -0,0 +1,161 @@
+package com.pingidentity.sync.destination;
+
+import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class holds the DN maps, attribute maps and auto-mapping settings of a Sync Class, parsed once from its
+ * configuration entry so that they can be applied to many entries without reading or parsing the configuration
+ * again
+ */
+public class SyncClassMappingContext
+{
+    private final Set<String> attributeMaps;
+    private final Set<String> dnMaps;
+    private final Set<String> autoMappedSourceAttributes;
+    private final Set<String> excludedAutoMappedSourceAttributes;
+    private final Set<String> excludedAutoMappedSourceAttributesRegex;
+    private final long loadTime = System.currentTimeMillis();
+
+    private SyncClassMappingContext(final Entry configEntry)
+    {
+        attributeMaps = getMaps(configEntry, PareDownFetchResults.DS_CFG_ATTRIBUTE_MAPS);
+        dnMaps = getMaps(configEntry, PareDownFetchResults.DS_CFG_DN_MAP);
+        autoMappedSourceAttributes = getAttributes(configEntry, "ds-cfg-auto-mapped-source-attribute");
+        excludedAutoMappedSourceAttributes = getAttributes(configEntry,
+                "ds-cfg-excluded-auto-mapped-source-attributes");
+        excludedAutoMappedSourceAttributesRegex = getAttributes(configEntry,
+                "ds-cfg-excluded-auto-mapped-source-attribute-regex");
+    }
+
+    /**
+     * Performs the necessary processing to read and parse the configuration of a Sync Class
+     *
+     * @param serverContext the server context
+     * @param pipeName      the Sync Pipe name
+     * @param className     the Sync Class name
+     * @return the mapping context or null if the Sync Class configuration entry was not found
+     */
+    public static SyncClassMappingContext load(final ServerContext serverContext, final String pipeName,
+                                               final String className)
+    {
+        Entry configEntry = getSyncClassConfigEntry(serverContext, pipeName, className);
+        return configEntry == null ? null : new SyncClassMappingContext(configEntry);
+    }
+
+    /**
+     * Performs the necessary processing to apply the maps to an entry
+     *
+     * @param entry         the entry on which maps will be applied
+     * @param serverContext the server context
+     * @return the resulting entry after all maps have been applied
+     * @throws LDAPException if the maps could not be applied
+     */
+    public Entry apply(final Entry entry, final SyncServerContext serverContext) throws LDAPException
+    {
+        return serverContext.applyMaps(entry, dnMaps, attributeMaps, autoMappedSourceAttributes,
+                excludedAutoMappedSourceAttributes, excludedAutoMappedSourceAttributesRegex);
+    }
+
+    /**
+     * Retrieves the time at which the configuration was read
+     *
+     * @return the time in milliseconds
+     */
+    public long getLoadTime()
+    {
+        return loadTime;
+    }
+
+    /**
+     * Performs the necessary processing to retrieve the attributes from the Sync Class configuration entry
+     * @param configEntry the Sync Class configuration entry
+     * @param attribute the attribute type in the configuration entry that stores the resulting attribute types
+     * @return the Set of attribute types found
+     */
+    private static Set<String> getAttributes(final Entry configEntry, final String attribute)
+    {
+        Set<String> results = null;
+        if (configEntry != null && attribute != null && !attribute.isEmpty() && configEntry.hasAttribute(attribute) )
+        {
+            String[] values = configEntry.getAttributeValues(attribute);
+            if ( values != null && values.length > 0 )
+            {
+                results = new HashSet<>(values.length);
+                for (String value : values )
+                {
+                    results.add(value);
+                }
+                results = Collections.unmodifiableSet(results);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Performs the necessary processing to retrieve the maps from the Sync Class configuration entry
+     * @param configEntry the Sync Class configuration entry
+     * @param mapAttribute the source attribute type for which maps are sought
+     * @return the Set of map DNs found to apply to the attribute type
+     */
+    private static Set<String> getMaps(final Entry configEntry, final String mapAttribute)
+    {
+        Set<String> results = null;
+        String[] values = configEntry.getAttributeValues(mapAttribute);
+        if (values != null && values.length > 0)
+        {
+            results = new HashSet<>(values.length);
+            for (String value : values)
+            {
+                try
+                {
+                    DN dn = new DN(value);
+                    results.add(dn.getRDN().getAttributeValues()[0]);
+                } catch (LDAPException e)
+                {
+                }
+            }
+            results = Collections.unmodifiableSet(results);
+        }
+        return results;
+    }
+
+    /**
+     * Performs the necessary processing to retrieve the DN of the configuration Entry for the provided Pipe and Class
+     * @param serverContext the server context
+     * @param pipeName the Sync Pipe name
+     * @param className the Sync Class name
+     * @return the configuration entry found
+     */
+    private static Entry getSyncClassConfigEntry(final ServerContext serverContext, final String pipeName, final
+    String className)
+    {
+        try
+        {
+            return serverContext.getInternalRootConnection().getEntry(getSyncClassDN(pipeName, className));
+        } catch (LDAPException e)
+        {
+            // not gonna happen
+        }
+        return null;
+    }
+
+    /**
+     * Performs the necessary processing to compute the Sync Class configuration entry DN
+     * @param pipeName the Sync Pipe name
+     * @param className the Sync Class name
+     * @return
+     */
+    private static String getSyncClassDN(final String pipeName, final String className)
+    {
+        return "cn=" + className + ",cn=sync classes,cn=" + pipeName + "," +
+                "cn=sync pipes,cn=config";
+    }
+}
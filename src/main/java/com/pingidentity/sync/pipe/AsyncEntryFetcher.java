@@ -0,0 +1,241 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.sync.source.MemberEntryQueue;
+import com.pingidentity.util.AdaptiveRateLimiter;
+import com.unboundid.directory.sdk.common.types.LogSeverity;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.*;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class retrieves member entries with asynchronous searches so that a single dereference thread can keep
+ * several requests in flight on the connection back to the source instead of waiting for each round trip
+ * <p>
+ * When the source is a connection pool, the fetcher checks out a single connection the first time it is used and
+ * pipelines all its requests on it rather than taking a pool connection per request. The connection goes back to the
+ * pool when the fetcher is closed, or is discarded if a request finds it unusable, in which case the next request
+ * checks out a new one.
+ * <p>
+ * The number of outstanding requests per connection is bounded. Completed searches feed the
+ * {@code MemberEntryQueue} directly and report their outcome to the adaptive rate limiter, if any.
+ */
+public class AsyncEntryFetcher
+{
+    private static final Map<LDAPInterface, AsyncEntryFetcher> fetchers = new WeakHashMap<>();
+    
+    static AtomicLong requestsInFlight = new AtomicLong(0L);
+    
+    private final SyncServerContext context;
+    private final LDAPInterface connection;
+    private final int maxOutstanding;
+    private final Semaphore outstanding;
+    private LDAPConnection pinnedConnection = null;
+    private boolean closed = false;
+    
+    private AsyncEntryFetcher(final SyncServerContext ctx, final LDAPInterface c, final int max)
+    {
+        context = ctx;
+        connection = c;
+        maxOutstanding = max;
+        outstanding = new Semaphore(max);
+    }
+    
+    /**
+     * Retrieves the fetcher for the provided connection, creating it if needed
+     * A fetcher created with a different maximum number of outstanding requests is closed and replaced
+     *
+     * @param ctx            the server context
+     * @param c              the connection to the source (cannot be null)
+     * @param maxOutstanding the maximum number of requests in flight on the connection
+     * @return the fetcher for the connection
+     */
+    public static AsyncEntryFetcher getInstance(final SyncServerContext ctx, final LDAPInterface c,
+                                                final int maxOutstanding)
+    {
+        synchronized (fetchers)
+        {
+            AsyncEntryFetcher fetcher = fetchers.get(c);
+            if (fetcher == null || fetcher.maxOutstanding != maxOutstanding)
+            {
+                if (fetcher != null)
+                {
+                    fetcher.close();
+                }
+                fetcher = new AsyncEntryFetcher(ctx, c, maxOutstanding);
+                fetchers.put(c, fetcher);
+            }
+            return fetcher;
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to close all the fetchers so that they are created again with the current
+     * configuration the next time they are needed
+     */
+    public static void closeAll()
+    {
+        synchronized (fetchers)
+        {
+            for (AsyncEntryFetcher fetcher : fetchers.values())
+            {
+                fetcher.close();
+            }
+            fetchers.clear();
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to send an asynchronous request for the provided entry, waiting for a
+     * request to complete if the maximum number of outstanding requests has been reached
+     *
+     * @param dn the DN of the entry to fetch
+     * @return true if the request was sent, false if the connection does not support asynchronous requests or the
+     * fetcher is closed and the entry should be fetched synchronously instead
+     * @throws InterruptedException if interrupted while waiting for an outstanding request to complete
+     */
+    public boolean fetch(final String dn) throws InterruptedException
+    {
+        if (!(connection instanceof LDAPConnection) && !(connection instanceof LDAPConnectionPool))
+        {
+            return false;
+        }
+        
+        outstanding.acquire();
+        boolean sent = false;
+        LDAPConnection asyncConnection = null;
+        try
+        {
+            asyncConnection = getConnection();
+            if (asyncConnection == null)
+            {
+                return false;
+            }
+            SearchRequest request = new SearchRequest(new Listener(dn, asyncConnection), dn, SearchScope.BASE,
+                    Filter.createPresenceFilter("objectClass"), "*", "+");
+            asyncConnection.asyncSearch(request);
+            requestsInFlight.incrementAndGet();
+            sent = true;
+            return true;
+        } catch (LDAPException e)
+        {
+            // most likely the connection operates in synchronous mode or is no longer usable
+            context.debugCaught(e);
+            if (asyncConnection != null && !e.getResultCode().isConnectionUsable())
+            {
+                discard(asyncConnection);
+            }
+            return false;
+        } finally
+        {
+            if (!sent)
+            {
+                outstanding.release();
+            }
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to return the pinned connection to the pool
+     * Requests still in flight complete on the connection, and later requests fall back to synchronous fetches
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (pinnedConnection != null && connection instanceof LDAPConnectionPool)
+        {
+            ((LDAPConnectionPool) connection).releaseConnection(pinnedConnection);
+        }
+        pinnedConnection = null;
+    }
+    
+    private synchronized LDAPConnection getConnection() throws LDAPException
+    {
+        if (closed)
+        {
+            return null;
+        }
+        if (connection instanceof LDAPConnection)
+        {
+            return (LDAPConnection) connection;
+        }
+        if (pinnedConnection == null)
+        {
+            pinnedConnection = ((LDAPConnectionPool) connection).getConnection();
+        }
+        return pinnedConnection;
+    }
+    
+    private synchronized void discard(final LDAPConnection c)
+    {
+        if (pinnedConnection == c)
+        {
+            pinnedConnection = null;
+            ((LDAPConnectionPool) connection).releaseDefunctConnection(c);
+        }
+    }
+    
+    /**
+     * This listener handles the completion of a single asynchronous search
+     */
+    private class Listener implements AsyncSearchResultListener
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final String dn;
+        private final LDAPConnection asyncConnection;
+        private final long start = System.nanoTime();
+        private volatile SearchResultEntry entry = null;
+        
+        Listener(final String d, final LDAPConnection c)
+        {
+            dn = d;
+            asyncConnection = c;
+        }
+        
+        @Override
+        public void searchEntryReturned(SearchResultEntry searchEntry)
+        {
+            entry = searchEntry;
+        }
+        
+        @Override
+        public void searchReferenceReturned(SearchResultReference searchReference)
+        {
+        }
+        
+        @Override
+        public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult)
+        {
+            try
+            {
+                ResultCode resultCode = searchResult.getResultCode();
+                AdaptiveRateLimiter limiter = GroupDereference.rateLimiter;
+                if (limiter != null)
+                {
+                    limiter.onResult(resultCode, System.nanoTime() - start, 1);
+                }
+                if (ResultCode.SUCCESS.equals(resultCode) || ResultCode.NO_SUCH_OBJECT.equals(resultCode))
+                {
+                    // consistent with the synchronous path where a missing entry yields a null entry
+                    MemberEntryQueue.getJournaledInstance().addEntry(dn, entry);
+                } else
+                {
+                    context.logMessage(LogSeverity.MILD_ERROR, "Unable to fetch entry " + dn + ": "
+                            + searchResult.getDiagnosticMessage() + " (" + resultCode + ")");
+                    if (!resultCode.isConnectionUsable())
+                    {
+                        discard(asyncConnection);
+                    }
+                }
+            } finally
+            {
+                requestsInFlight.decrementAndGet();
+                outstanding.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.pingidentity.sync.pipe;
+
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This idle strategy progressively backs off when the queue is empty: it first spins on the queue, then yields the
+ * processor and eventually parks the thread for increasing periods of time up to a maximum
+ * <p>
+ * This keeps the latency low when operations arrive in quick succession while idle threads cost close to nothing
+ */
+public class BackoffIdleStrategy implements IdleStrategy
+{
+    long maxSpins;
+    long maxYields;
+    long minParkNanos;
+    long maxParkNanos;
+    
+    long idleCount = 0L;
+    long parkNanos;
+    
+    /**
+     * Performs the necessary processing to initialize the strategy
+     *
+     * @param spins    the number of times to poll the queue before yielding
+     * @param yields   the number of times to yield before parking
+     * @param minPark  the initial park period in nanoseconds
+     * @param maxPark  the maximum park period in nanoseconds
+     */
+    public BackoffIdleStrategy(final long spins, final long yields, final long minPark, final long maxPark)
+    {
+        maxSpins = spins;
+        maxYields = yields;
+        minParkNanos = minPark;
+        maxParkNanos = Math.max(minPark, maxPark);
+        parkNanos = minParkNanos;
+    }
+    
+    @Override
+    public DereferenceOperation next(Queue<DereferenceOperation> queue) throws InterruptedException
+    {
+        while (true)
+        {
+            DereferenceOperation operation = queue.poll();
+            if (operation != null)
+            {
+                idleCount = 0L;
+                parkNanos = minParkNanos;
+                return operation;
+            }
+            
+            if (idleCount < maxSpins)
+            {
+                idleCount++;
+            } else if (idleCount < maxSpins + maxYields)
+            {
+                idleCount++;
+                Thread.yield();
+            } else
+            {
+                LockSupport.parkNanos(this, parkNanos);
+                parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+                if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+                // give the caller a chance to check whether it should keep running
+                return null;
+            }
+        }
+    }
+}
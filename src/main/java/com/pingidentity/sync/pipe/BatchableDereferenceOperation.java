@@ -0,0 +1,29 @@
+package com.pingidentity.sync.pipe;
+
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.util.List;
+
+/**
+ * This interface allows a {@code DereferenceThread} to process several pending operations at once when the
+ * strategy can do it with fewer requests than executing them one by one
+ */
+public interface BatchableDereferenceOperation extends DereferenceOperation
+{
+    /**
+     * Indicates whether the provided operation may be processed in the same batch as this one
+     *
+     * @param other another pending operation
+     * @return true if both operations can be processed together
+     */
+    public boolean canBatchWith(DereferenceOperation other);
+    
+    /**
+     * Performs the necessary processing to execute a batch of operations
+     *
+     * @param batch the operations to execute, starting with this one, all of which can be batched with it
+     * @return the result code showing the health of the source for the batch, that is the first one showing
+     * distress if any, or null if the outcome is only known later
+     */
+    public ResultCode executeBatch(List<DereferenceOperation> batch);
+}
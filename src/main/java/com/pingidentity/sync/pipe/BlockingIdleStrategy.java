@@ -0,0 +1,40 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DepthTrackingQueue;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This idle strategy blocks on the queue until an operation is available
+ * <p>
+ * The wait is bounded so that the thread periodically gets a chance to notice it was halted. Queues that do not
+ * support waiting are handled by the fallback strategy.
+ */
+public class BlockingIdleStrategy implements IdleStrategy
+{
+    long maxWaitMillis;
+    IdleStrategy fallback;
+    
+    /**
+     * Performs the necessary processing to initialize the strategy
+     *
+     * @param waitMillis the maximum time to wait for an operation before returning
+     * @param f          the strategy to use when the queue does not support waiting
+     */
+    public BlockingIdleStrategy(final long waitMillis, final IdleStrategy f)
+    {
+        maxWaitMillis = waitMillis;
+        fallback = f;
+    }
+    
+    @Override
+    public DereferenceOperation next(Queue<DereferenceOperation> queue) throws InterruptedException
+    {
+        if (queue instanceof DepthTrackingQueue && ((DepthTrackingQueue<DereferenceOperation>) queue).isBlocking())
+        {
+            return ((DepthTrackingQueue<DereferenceOperation>) queue).poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+        return fallback.next(queue);
+    }
+}
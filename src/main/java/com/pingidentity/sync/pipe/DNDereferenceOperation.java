@@ -1,8 +1,7 @@
 package com.pingidentity.sync.pipe;
 
 import com.pingidentity.sync.source.MemberDNQueue;
-import com.unboundid.directory.sdk.sync.types.ChangeRecord;
-import com.unboundid.ldap.sdk.ChangeType;
+import com.unboundid.ldap.sdk.ResultCode;
 
 /**
  * This class provides a mechanism to simply pass the DN of a member in the queue
@@ -10,6 +9,7 @@ import com.unboundid.ldap.sdk.ChangeType;
 public class DNDereferenceOperation implements DereferenceOperation
 {
     String dn;
+    String groupDN = null;
     
     /**
      * Constructor with DN parameter
@@ -21,16 +21,37 @@ public class DNDereferenceOperation implements DereferenceOperation
         this.dn = dn;
     }
     
+    /**
+     * Constructor with DN and group DN parameters
+     *
+     * @param dn      the member DN
+     * @param groupDN the DN of the group whose change caused the operation
+     */
+    public DNDereferenceOperation(String dn, String groupDN)
+    {
+        this(dn);
+        this.groupDN = groupDN;
+    }
+    
     /**
      * Execution simply package the DN in a sync change record and enqueues it
      */
     @Override
-    public void execute()
+    public ResultCode execute()
+    {
+        MemberDNQueue.getJournaledInstance().addDN(dn);
+        return ResultCode.SUCCESS;
+    }
+    
+    @Override
+    public String getDN()
+    {
+        return dn;
+    }
+    
+    @Override
+    public String getGroupDN()
     {
-        ChangeRecord.Builder builder = new ChangeRecord.Builder(ChangeType.MODIFY, dn);
-        builder.addProperty("DN",dn);
-        builder.changeTime(System.currentTimeMillis());
-        ChangeRecord changeRecord = builder.build();
-        MemberDNQueue.getInstance().add(changeRecord);
+        return groupDN;
     }
 }
@@ -1,10 +1,32 @@
 package com.pingidentity.sync.pipe;
 
+import com.unboundid.ldap.sdk.ResultCode;
+
 /**
  * This a very simple interface to allow the extension to generically
  * process a queue of operations implementing this interface
  * Different strategies may be implemented to better address specific cases 
  */
 public interface DereferenceOperation {
-  public void execute();
+  /**
+   * Performs the necessary processing to execute the operation
+   *
+   * @return the result code of the request sent to the source, so that the rate can adapt to the health of the
+   * source, or null if the outcome is only known later (asynchronous requests report it themselves)
+   */
+  public ResultCode execute();
+
+  /**
+   * Retrieves the DN of the member the operation applies to
+   *
+   * @return the member DN
+   */
+  public String getDN();
+
+  /**
+   * Retrieves the DN of the group whose change caused the operation
+   *
+   * @return the group DN or null if it is not known
+   */
+  public String getGroupDN();
 }
@@ -0,0 +1,116 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.SpillOverQueue;
+
+import java.io.*;
+
+/**
+ * This class converts dereference operations to a compact form when they spill to disk: the strategy, the DN of
+ * the member and the DN of the group whose change caused the operation
+ * <p>
+ * Connections and other runtime state cannot be written to disk. Operations read back are created again by the
+ * plugin with its current configuration and the most recent connection to the source.
+ * <p>
+ * Operations that cannot be read back never execute, so the codec releases the pending members they claimed.
+ */
+class DereferenceOperationCodec implements SpillOverQueue.Codec<DereferenceOperation>, SpillOverQueue.DropListener
+{
+    private static final byte TOUCH = 0;
+    private static final byte ENQUEUE_ENTRY = 1;
+    private static final byte ENQUEUE_DN = 2;
+
+    private final GroupDereference plugin;
+
+    /**
+     * Performs the necessary processing to initialize the codec
+     *
+     * @param p the plugin creating the operations read back
+     */
+    DereferenceOperationCodec(final GroupDereference p)
+    {
+        plugin = p;
+    }
+
+    @Override
+    public byte[] encode(DereferenceOperation operation) throws IOException
+    {
+        byte type;
+        String dn;
+        if (operation instanceof TouchDereferenceOperation)
+        {
+            type = TOUCH;
+            dn = ((TouchDereferenceOperation) operation).dn;
+        } else if (operation instanceof WholeEntryDereferenceOperation)
+        {
+            type = ENQUEUE_ENTRY;
+            dn = ((WholeEntryDereferenceOperation) operation).dn;
+        } else if (operation instanceof DNDereferenceOperation)
+        {
+            type = ENQUEUE_DN;
+            dn = ((DNDereferenceOperation) operation).dn;
+        } else
+        {
+            throw new IOException("Unable to spill operations of type " + operation.getClass().getName());
+        }
+        String groupDN = operation.getGroupDN();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(dn.length() + 5
+                + (groupDN == null ? 0 : groupDN.length()));
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(type);
+            out.writeUTF(dn);
+            out.writeUTF(groupDN == null ? "" : groupDN);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public DereferenceOperation decode(byte[] bytes) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+        {
+            String strategy = getStrategy(in.readByte());
+            String dn = in.readUTF();
+            String groupDN = in.readUTF();
+            return plugin.createOperation(strategy, dn, groupDN.isEmpty() ? null : groupDN);
+        }
+    }
+
+    @Override
+    public void dropped(byte[] bytes, long count)
+    {
+        PendingMemberSet pendingMembers = PendingMemberSet.getInstance();
+        if (bytes != null)
+        {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+            {
+                String strategy = getStrategy(in.readByte());
+                pendingMembers.release(strategy, in.readUTF());
+                return;
+            } catch (IOException e)
+            {
+                // the member cannot be known
+            }
+        }
+        // the members that were lost would stay pending forever
+        if (pendingMembers.size() > 0)
+        {
+            pendingMembers.clear();
+        }
+    }
+
+    private static String getStrategy(final byte type) throws IOException
+    {
+        switch (type)
+        {
+            case TOUCH:
+                return GroupDereference.STRATEGY_TOUCH;
+            case ENQUEUE_ENTRY:
+                return GroupDereference.STRATEGY_ENQUEUE_ENTRY;
+            case ENQUEUE_DN:
+                return GroupDereference.STRATEGY_ENQUEUE_DN;
+            default:
+                throw new IOException("Unknown spilled operation type " + type);
+        }
+    }
+}
@@ -1,26 +1,243 @@
 package com.pingidentity.sync.pipe;
 
-import java.util.Queue;
+import com.pingidentity.util.DepthTrackingQueue;
+import com.pingidentity.util.SpillOverQueue;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 
 /**
  * Singleton pattern to manage a Queue that can convey changes from the one pipe to another
+ * <p>
+ * The queue is unbounded by default. When a capacity is provided the first time the queue is requested, a bounded
+ * blocking queue is created instead so that producers can apply back pressure when the queue is full.
+ * Alternatively, the capacity may be used as an in-memory threshold past which operations spill to disk, so that
+ * bursts are absorbed without holding every operation on the heap.
+ * The queue may also be partitioned by member DN so that the operations of a member are processed in order while the
+ * operations of different members are spread across the dereference threads, or scheduled fairly across the groups
+ * the operations originate from so that small group changes are not held up by large ones.
+ * Either way, the queue keeps track of its depth so that it can be monitored cheaply.
+ * <p>
+ * A separate queue holds the operations of large groups so that they are processed by their own threads without
+ * crowding out the operations of other groups.
  */
 public class DereferenceOperationQueue
 {
-    private static Queue<DereferenceOperation> instance = null;
-    
+    private static DepthTrackingQueue<DereferenceOperation> instance = null;
+    private static Integer capacity = null;
+    private static SpillOverQueue<DereferenceOperation> spillOverQueue = null;
+    private static PartitionedOperationQueue partitionedQueue = null;
+    private static FairOperationQueue fairQueue = null;
+    private static DepthTrackingQueue<DereferenceOperation> largeGroupInstance = null;
+    private static Integer largeGroupCapacity = null;
+    private static final int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
     private DereferenceOperationQueue()
     {
     }
-    
-    public synchronized static Queue<DereferenceOperation> getInstance()
+
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getInstance()
+    {
+        return getInstance(null);
+    }
+
+    /**
+     * Retrieves the queue, creating it with the provided capacity if it does not exist yet
+     * The capacity of an existing queue is never changed
+     *
+     * @param queueCapacity the maximum number of operations the queue may hold (null = unbounded)
+     * @return the queue
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getInstance(final Integer queueCapacity)
+    {
+        if (instance == null)
+        {
+            if (queueCapacity != null)
+            {
+                instance = new DepthTrackingQueue<>(new LinkedBlockingQueue<>(queueCapacity));
+            } else
+            {
+                instance = new DepthTrackingQueue<>(new ConcurrentLinkedQueue<>());
+            }
+            capacity = queueCapacity;
+        }
+        return instance;
+    }
+
+    /**
+     * Retrieves the queue, creating it with the provided in-memory threshold past which operations spill to disk if
+     * it does not exist yet
+     * An existing queue is returned as is
+     *
+     * The depth of the queue accounts for the spilled operations that cannot be read back
+     *
+     * @param threshold      the maximum number of operations to hold in memory
+     * @param spillDirectory the directory where spilled operations are stored
+     * @param codec          the codec to serialize spilled operations with
+     * @param dropListener   the listener notified of the spilled operations that cannot be read back (may be null)
+     * @return the queue
+     * @throws IOException if the spill directory cannot be used
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getInstance(final int threshold,
+            final File spillDirectory, final SpillOverQueue.Codec<DereferenceOperation> codec,
+            final SpillOverQueue.DropListener dropListener) throws IOException
+    {
+        if (instance == null)
+        {
+            SpillOverQueue<DereferenceOperation> q = new SpillOverQueue<>(new ConcurrentLinkedQueue<>(), codec);
+            q.open(spillDirectory, threshold, SPILL_SEGMENT_SIZE);
+            final DepthTrackingQueue<DereferenceOperation> tracked = new DepthTrackingQueue<>(q);
+            q.setDropListener((bytes, count) -> {
+                tracked.discarded(count);
+                if (dropListener != null)
+                {
+                    dropListener.dropped(bytes, count);
+                }
+            });
+            instance = tracked;
+            capacity = threshold;
+            spillOverQueue = q;
+        }
+        return instance;
+    }
+
+    /**
+     * Retrieves the queue, creating it partitioned by member DN if it does not exist yet
+     * An existing queue is returned as is
+     *
+     * @param workerCount    the expected number of dereference threads
+     * @param lanesPerWorker the number of lanes per dereference thread
+     * @param queueCapacity  the maximum number of operations the queue may hold (null = unbounded)
+     * @return the queue
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getPartitionedInstance(final int workerCount,
+            final int lanesPerWorker, final Integer queueCapacity)
+    {
+        if (instance == null)
+        {
+            partitionedQueue = new PartitionedOperationQueue(workerCount, lanesPerWorker, queueCapacity);
+            instance = new DepthTrackingQueue<>(partitionedQueue);
+            capacity = queueCapacity;
+        }
+        return instance;
+    }
+
+    /**
+     * Retrieves the queue, creating it with a sub-queue per group served in turn if it does not exist yet
+     * An existing queue is returned as is
+     *
+     * @param queueCapacity       the maximum number of operations the queue may hold (null = unbounded)
+     * @param smallGroupThreshold the number of operations past which a group is no longer served first (null = all
+     *                            groups are served in turn)
+     * @param smallGroupWeight    the number of operations served from small groups for each one from large groups
+     * @return the queue
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getFairInstance(final Integer queueCapacity,
+            final Integer smallGroupThreshold, final int smallGroupWeight)
     {
         if (instance == null)
         {
-            instance = new ConcurrentLinkedQueue<>();
+            fairQueue = new FairOperationQueue(queueCapacity, smallGroupThreshold, smallGroupWeight);
+            instance = new DepthTrackingQueue<>(fairQueue);
+            capacity = queueCapacity;
         }
         return instance;
     }
-}
\ No newline at end of file
+
+    /**
+     * Retrieves the queue without creating it
+     *
+     * @return the queue or null if it has not been created yet
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> peekInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Retrieves the capacity the queue was created with
+     *
+     * @return the capacity or null if the queue is unbounded
+     */
+    public synchronized static Integer getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Retrieves the spill-over queue backing the queue
+     *
+     * @return the spill-over queue or null if the queue does not spill to disk
+     */
+    public synchronized static SpillOverQueue<DereferenceOperation> getSpillOverQueue()
+    {
+        return spillOverQueue;
+    }
+
+    /**
+     * Retrieves the partitioned queue backing the queue
+     *
+     * @return the partitioned queue or null if the queue is not partitioned
+     */
+    public synchronized static PartitionedOperationQueue getPartitionedQueue()
+    {
+        return partitionedQueue;
+    }
+
+    /**
+     * Retrieves the fair queue backing the queue
+     *
+     * @return the fair queue or null if the operations are not scheduled by group
+     */
+    public synchronized static FairOperationQueue getFairQueue()
+    {
+        return fairQueue;
+    }
+
+    /**
+     * Retrieves the queue of large group operations, creating it with the provided capacity if it does not exist yet
+     * The capacity of an existing queue is never changed
+     *
+     * @param queueCapacity the maximum number of operations the queue may hold (null = unbounded)
+     * @return the queue of large group operations
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> getLargeGroupInstance(
+            final Integer queueCapacity)
+    {
+        if (largeGroupInstance == null)
+        {
+            if (queueCapacity != null)
+            {
+                largeGroupInstance = new DepthTrackingQueue<>(new LinkedBlockingQueue<>(queueCapacity));
+            } else
+            {
+                largeGroupInstance = new DepthTrackingQueue<>(new ConcurrentLinkedQueue<>());
+            }
+            largeGroupCapacity = queueCapacity;
+        }
+        return largeGroupInstance;
+    }
+
+    /**
+     * Retrieves the queue of large group operations without creating it
+     *
+     * @return the queue or null if it has not been created yet
+     */
+    public synchronized static DepthTrackingQueue<DereferenceOperation> peekLargeGroupInstance()
+    {
+        return largeGroupInstance;
+    }
+
+    /**
+     * Retrieves the capacity the queue of large group operations was created with
+     *
+     * @return the capacity or null if the queue is unbounded
+     */
+    public synchronized static Integer getLargeGroupCapacity()
+    {
+        return largeGroupCapacity;
+    }
+}
@@ -1,11 +1,21 @@
 package com.pingidentity.sync.pipe;
 
+import com.pingidentity.util.AdaptiveRateLimiter;
+import com.pingidentity.util.DepthTrackingQueue;
 import com.unboundid.directory.sdk.common.api.ServerThread;
+import com.unboundid.directory.sdk.common.types.LogSeverity;
+import com.unboundid.directory.sdk.common.types.ServerContext;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.util.FixedRateBarrier;
+import com.unboundid.util.StaticUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Server thread processing the dereference queue
@@ -13,8 +23,17 @@ import java.util.concurrent.BlockingQueue;
 public class DereferenceThread implements ServerThread
 {
     Queue<DereferenceOperation> queue;
-    Boolean run = Boolean.TRUE;
+    volatile Boolean run = Boolean.TRUE;
     FixedRateBarrier barrier = null;
+    IdleStrategy idleStrategy;
+    int batchSize = 1;
+    long batchLingerNanos = 0L;
+    PartitionedOperationQueue partitions = null;
+    AdaptiveRateLimiter limiter = null;
+    ServerContext serverContext = null;
+    volatile Thread thread = null;
+    final AtomicLong executed = new AtomicLong(0L);
+    final AtomicLong busyNanos = new AtomicLong(0L);
     
     /**
      * Performs the necessary processing to initialize the thread
@@ -24,9 +43,114 @@ public class DereferenceThread implements ServerThread
      */
     public DereferenceThread(final Queue<DereferenceOperation> q,
                              final FixedRateBarrier b)
+    {
+        this(q, b, new BackoffIdleStrategy(100L, 10L, TimeUnit.MICROSECONDS.toNanos(50L),
+                TimeUnit.MILLISECONDS.toNanos(1L)));
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the thread
+     *
+     * @param q the queue
+     * @param b the throttling rate barrier (can be null = no throttling )
+     * @param s the strategy to use to wait for operations when the queue is empty
+     */
+    public DereferenceThread(final Queue<DereferenceOperation> q,
+                             final FixedRateBarrier b,
+                             final IdleStrategy s)
     {
         queue = q;
         barrier = b;
+        idleStrategy = s;
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the thread
+     *
+     * @param q the queue
+     * @param b the throttling rate barrier (can be null = no throttling )
+     * @param s the strategy to use to wait for operations when the queue is empty
+     * @param size the maximum number of operations to process in a single batch (1 = no batching)
+     * @param lingerMillis how long to wait for more operations to fill a batch
+     */
+    public DereferenceThread(final Queue<DereferenceOperation> q,
+                             final FixedRateBarrier b,
+                             final IdleStrategy s,
+                             final int size,
+                             final long lingerMillis)
+    {
+        this(q, b, s);
+        batchSize = size;
+        batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the thread
+     *
+     * @param q the queue
+     * @param b the throttling rate barrier (can be null = no throttling )
+     * @param s the strategy to use to wait for operations when the queue is empty
+     * @param size the maximum number of operations to process in a single batch (1 = no batching)
+     * @param lingerMillis how long to wait for more operations to fill a batch
+     * @param p the partitioned queue backing the queue, the lanes taken from are released after each execution
+     *          (can be null = not partitioned)
+     */
+    public DereferenceThread(final Queue<DereferenceOperation> q,
+                             final FixedRateBarrier b,
+                             final IdleStrategy s,
+                             final int size,
+                             final long lingerMillis,
+                             final PartitionedOperationQueue p)
+    {
+        this(q, b, s, size, lingerMillis);
+        partitions = p;
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the thread with a rate that adapts to the health of the source
+     *
+     * @param q the queue
+     * @param l the adaptive rate limiter, fed with the result code and latency of each execution
+     * @param s the strategy to use to wait for operations when the queue is empty
+     * @param size the maximum number of operations to process in a single batch (1 = no batching)
+     * @param lingerMillis how long to wait for more operations to fill a batch
+     * @param p the partitioned queue backing the queue, the lanes taken from are released after each execution
+     *          (can be null = not partitioned)
+     */
+    public DereferenceThread(final Queue<DereferenceOperation> q,
+                             final AdaptiveRateLimiter l,
+                             final IdleStrategy s,
+                             final int size,
+                             final long lingerMillis,
+                             final PartitionedOperationQueue p)
+    {
+        this(q, l, null, s, size, lingerMillis, p);
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the thread with a rate that adapts to the health of the source
+     * and is capped by a fixed rate barrier
+     *
+     * @param q the queue
+     * @param l the adaptive rate limiter, fed with the result code and latency of each execution (can be null = the
+     *          rate does not adapt)
+     * @param b the throttling rate barrier, awaited after the limiter (can be null = no cap)
+     * @param s the strategy to use to wait for operations when the queue is empty
+     * @param size the maximum number of operations to process in a single batch (1 = no batching)
+     * @param lingerMillis how long to wait for more operations to fill a batch
+     * @param p the partitioned queue backing the queue, the lanes taken from are released after each execution
+     *          (can be null = not partitioned)
+     */
+    public DereferenceThread(final Queue<DereferenceOperation> q,
+                             final AdaptiveRateLimiter l,
+                             final FixedRateBarrier b,
+                             final IdleStrategy s,
+                             final int size,
+                             final long lingerMillis,
+                             final PartitionedOperationQueue p)
+    {
+        this(q, b, s, size, lingerMillis, p);
+        limiter = l;
     }
     
     /**
@@ -38,41 +162,222 @@ public class DereferenceThread implements ServerThread
     @Override
     public void runThread()
     {
+        thread = Thread.currentThread();
+        if (partitions != null)
+        {
+            partitions.register();
+        }
         while (run)
         {
-            if (barrier != null)
-            {
-                barrier.await();
-            }
             try
             {
-                DereferenceOperation operation = null;
-                if ( queue instanceof BlockingQueue )
+                DereferenceOperation operation = idleStrategy.next(queue);
+                if (operation instanceof BatchableDereferenceOperation && batchSize > 1)
                 {
-                    // this is likely more efficient in terms of resource utilization than polling like a madman
-                     operation = (DereferenceOperation) ((BlockingQueue) queue).take();
-                } else {
-                    operation = queue.poll();
-                }
-                if (operation != null)
+                    executeBatch((BatchableDereferenceOperation) operation);
+                } else if (operation != null)
                 {
-                    operation.execute();
+                    execute(operation);
                 }
             } catch (InterruptedException ie) {
                 halt();
             } catch (RuntimeException re) {
-                //Just using sysout for now.  Should be changed later.
-                System.out.println("DereferenceThread exception occurred: " + re.getMessage());
-                re.printStackTrace();
+                // the operation is lost but the thread keeps processing the queue
+                if (serverContext != null)
+                {
+                    serverContext.debugCaught(re);
+                    serverContext.logMessage(LogSeverity.MILD_ERROR, "Unable to process a dereference operation: "
+                            + StaticUtils.getExceptionMessage(re));
+                }
+            } finally
+            {
+                if (partitions != null)
+                {
+                    partitions.release();
+                }
             }
         }
     }
     
+    /**
+     * Performs the necessary processing to execute a single operation, honoring the rate limiter and barrier
+     *
+     * @param operation the operation to execute
+     */
+    private void execute(final DereferenceOperation operation)
+    {
+        if (limiter != null)
+        {
+            limiter.acquire(1);
+        }
+        if (barrier != null)
+        {
+            barrier.await();
+        }
+        long start = System.nanoTime();
+        ResultCode resultCode = null;
+        try
+        {
+            resultCode = operation.execute();
+        } finally
+        {
+            completed(resultCode, start, 1);
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to account for executed operations and report their outcome to the limiter
+     *
+     * @param resultCode the result code of the execution (null if unknown yet or if the execution failed)
+     * @param start      when the execution started
+     * @param count      the number of operations executed
+     */
+    private void completed(final ResultCode resultCode, final long start, final int count)
+    {
+        long elapsed = System.nanoTime() - start;
+        executed.addAndGet(count);
+        busyNanos.addAndGet(elapsed);
+        if (limiter != null && resultCode != null)
+        {
+            limiter.onResult(resultCode, elapsed, count);
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to gather operations that can be batched with the provided one, until the
+     * batch is full or the linger time has elapsed, and execute them together
+     * Operations that cannot be part of the batch are executed as they are dequeued, unless the queue is partitioned
+     * in which case the batch is cut short so that operations on the same member are not reordered
+     *
+     * @param first the first operation of the batch
+     * @throws InterruptedException if interrupted while waiting for more operations
+     */
+    @SuppressWarnings("unchecked")
+    private void executeBatch(final BatchableDereferenceOperation first) throws InterruptedException
+    {
+        List<DereferenceOperation> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + batchLingerNanos;
+        while (batch.size() < batchSize)
+        {
+            DereferenceOperation next = queue.poll();
+            if (next == null)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L)
+                {
+                    break;
+                }
+                if (queue instanceof DepthTrackingQueue && ((DepthTrackingQueue) queue).isBlocking())
+                {
+                    next = ((DepthTrackingQueue<DereferenceOperation>) queue).poll(remaining, TimeUnit.NANOSECONDS);
+                } else
+                {
+                    LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MICROSECONDS.toNanos(100L)));
+                }
+                if (next == null)
+                {
+                    continue;
+                }
+            }
+            if (first.canBatchWith(next))
+            {
+                batch.add(next);
+            } else if (partitions != null)
+            {
+                executeBatch(first, batch);
+                execute(next);
+                return;
+            } else
+            {
+                execute(next);
+            }
+        }
+        executeBatch(first, batch);
+    }
+    
+    /**
+     * Performs the necessary processing to execute a batch, honoring the rate limiter and barrier
+     *
+     * @param first the first operation of the batch
+     * @param batch the operations of the batch
+     */
+    private void executeBatch(final BatchableDereferenceOperation first, final List<DereferenceOperation> batch)
+    {
+        if (limiter != null)
+        {
+            limiter.acquire(batch.size());
+        }
+        if (barrier != null)
+        {
+            for (int i = 0; i < batch.size(); i++)
+            {
+                barrier.await();
+            }
+        }
+        long start = System.nanoTime();
+        ResultCode resultCode = null;
+        try
+        {
+            resultCode = first.executeBatch(batch);
+        } finally
+        {
+            completed(resultCode, start, batch.size());
+        }
+    }
+    
     /**
      * Convenience method to stop the thread
+     * The thread exits once the operation it is processing, if any, has completed
      */
     public void halt()
     {
         run = Boolean.FALSE;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Performs the necessary processing to stop the thread, waiting for the operation it is processing to complete
+     * If the thread does not exit within the grace period, it is interrupted so that it stops waiting on the queue or
+     * the rate barrier
+     *
+     * @param graceMillis how long to wait for the thread to exit before interrupting it
+     * @return true if the thread has exited, false otherwise
+     * @throws InterruptedException if interrupted while waiting for the thread to exit
+     */
+    public boolean retire(final long graceMillis) throws InterruptedException
+    {
+        halt();
+        Thread t = thread;
+        if (t == null || t == Thread.currentThread())
+        {
+            return true;
+        }
+        t.join(graceMillis);
+        if (t.isAlive())
+        {
+            t.interrupt();
+            t.join(graceMillis);
+        }
+        return !t.isAlive();
+    }
+    
+    /**
+     * Retrieves the number of operations the thread has executed
+     *
+     * @return the number of operations executed
+     */
+    public long getExecuted()
+    {
+        return executed.get();
+    }
+    
+    /**
+     * Retrieves the time the thread has spent executing operations
+     *
+     * @return the busy time in nanoseconds
+     */
+    public long getBusyNanos()
+    {
+        return busyNanos.get();
+    }
+}
@@ -0,0 +1,406 @@
+package com.pingidentity.sync.pipe;
+
+import com.unboundid.directory.sdk.common.api.ServerThread;
+import com.unboundid.directory.sdk.common.types.LogSeverity;
+import com.unboundid.directory.sdk.common.types.ServerContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class manages the dereference threads processing the queue
+ * <p>
+ * The pool starts with its minimum number of threads. When a maximum larger than the minimum is configured, a
+ * supervisor thread samples the queue depth and the time spent by threads on each operation at a fixed interval. It
+ * adds a thread when the estimated time to drain the queue exceeds the target, and retires one when the threads have
+ * been mostly idle with an empty queue for several intervals in a row.
+ * <p>
+ * Threads are always retired the same way: they are halted and removed from the pool while holding the lock, then
+ * given a grace period to complete the operation they are processing and interrupted if they are still waiting on the
+ * queue or the rate barrier. Waiting for them to exit happens outside the lock so that neither the supervisor nor a
+ * reconfiguration is stalled by a slow operation. On reconfiguration, the threads are only replaced when the settings
+ * they were created with have changed, so that threads are never leaked nor run with stale settings. Pending
+ * operations stay in the queue and are picked up by the new threads.
+ */
+public class DereferenceWorkerPool implements ServerThread
+{
+    private static final long RETIRE_GRACE_MILLIS = 5000L;
+    private static final int IDLE_SAMPLES_BEFORE_SHRINK = 3;
+
+    private final ServerContext serverContext;
+    private final String name;
+    private final Queue<DereferenceOperation> queue;
+    private final List<DereferenceThread> workers = new ArrayList<>();
+    private final Object lock = new Object();
+    private volatile boolean run = true;
+    private Thread supervisor = null;
+    private Factory factory;
+    private Object settings;
+    private int minWorkers;
+    private int maxWorkers;
+    private long intervalMillis;
+    private long targetDrainNanos;
+    private int idleSamples = 0;
+    private long lastExecuted = 0L;
+    private long lastBusyNanos = 0L;
+    private int nextId = 0;
+
+    private final AtomicInteger activeWorkers = new AtomicInteger(0);
+    private final AtomicLong workersStarted = new AtomicLong(0L);
+    private final AtomicLong workersRetired = new AtomicLong(0L);
+    private final AtomicLong workersLeaked = new AtomicLong(0L);
+    private final AtomicLong scaleUps = new AtomicLong(0L);
+    private final AtomicLong scaleDowns = new AtomicLong(0L);
+    private final AtomicLong averageLatencyNanos = new AtomicLong(0L);
+
+    /**
+     * This interface creates the dereference threads with the current settings
+     */
+    public interface Factory
+    {
+        /**
+         * Performs the necessary processing to create a dereference thread
+         *
+         * @return the dereference thread, not started
+         */
+        public DereferenceThread create();
+    }
+
+    /**
+     * Performs the necessary processing to initialize the pool
+     *
+     * @param context the server context used to create threads
+     * @param n       the name of the pool, used to name its threads
+     * @param q       the queue the threads process
+     */
+    public DereferenceWorkerPool(final ServerContext context, final String n, final Queue<DereferenceOperation> q)
+    {
+        serverContext = context;
+        name = n;
+        queue = q;
+    }
+
+    /**
+     * Performs the necessary processing to apply new settings
+     * When the thread settings differ from the current ones, every current thread is retired and the minimum number of
+     * threads is started with the provided factory. Otherwise the current threads are kept and the pool is only
+     * brought within the new bounds.
+     *
+     * @param f           the factory creating the threads
+     * @param s           the settings the factory creates threads with, compared with {@code equals} to the previous
+     *                    ones to decide whether the current threads must be replaced
+     * @param min         the minimum number of threads
+     * @param max         the maximum number of threads (ignored if lower than min)
+     * @param interval    how often the supervisor samples the queue, in milliseconds
+     * @param drainMillis how long the queue may take to drain at the observed latency before a thread is added
+     */
+    public void configure(final Factory f, final Object s, final int min, final int max, final long interval,
+                          final long drainMillis)
+    {
+        List<DereferenceThread> retired = new ArrayList<>();
+        synchronized (lock)
+        {
+            minWorkers = Math.max(1, min);
+            maxWorkers = Math.max(minWorkers, max);
+            intervalMillis = interval;
+            targetDrainNanos = TimeUnit.MILLISECONDS.toNanos(drainMillis);
+            idleSamples = 0;
+
+            if (factory == null || !Objects.equals(settings, s))
+            {
+                factory = f;
+                settings = s;
+                detachAll(retired);
+            }
+            while (workers.size() > maxWorkers)
+            {
+                detach(workers.get(workers.size() - 1), retired);
+            }
+            while (workers.size() < minWorkers)
+            {
+                start();
+            }
+
+            if (maxWorkers > minWorkers && supervisor == null)
+            {
+                run = true;
+                supervisor = serverContext.createThread(this, "Deref supervisor for " + name);
+                supervisor.start();
+            }
+        }
+        retire(retired);
+    }
+
+    /**
+     * Performs the necessary processing to stop the supervisor and retire every thread
+     */
+    public void shutdown()
+    {
+        run = false;
+        Thread s;
+        List<DereferenceThread> retired = new ArrayList<>();
+        synchronized (lock)
+        {
+            s = supervisor;
+            supervisor = null;
+            factory = null;
+            settings = null;
+            detachAll(retired);
+        }
+        retire(retired);
+        if (s != null)
+        {
+            s.interrupt();
+            try
+            {
+                s.join(RETIRE_GRACE_MILLIS);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Performs the necessary processing to periodically resize the pool
+     */
+    @Override
+    public void runThread()
+    {
+        while (run)
+        {
+            try
+            {
+                Thread.sleep(intervalMillis);
+                List<DereferenceThread> retired = new ArrayList<>(1);
+                synchronized (lock)
+                {
+                    if (run)
+                    {
+                        resize(retired);
+                    }
+                }
+                retire(retired);
+            } catch (InterruptedException e)
+            {
+                run = false;
+            } catch (RuntimeException e)
+            {
+                serverContext.logMessage(LogSeverity.MILD_ERROR, "Unable to resize the dereference thread pool: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of threads currently in the pool
+     *
+     * @return the number of threads
+     */
+    public int size()
+    {
+        synchronized (lock)
+        {
+            return workers.size();
+        }
+    }
+
+    /**
+     * Retrieves the number of threads started and not retired yet
+     *
+     * @return the number of active threads
+     */
+    public int getActiveWorkers()
+    {
+        return activeWorkers.get();
+    }
+
+    /**
+     * Retrieves the number of threads started since the pool was created
+     *
+     * @return the number of threads started
+     */
+    public long getWorkersStarted()
+    {
+        return workersStarted.get();
+    }
+
+    /**
+     * Retrieves the number of threads retired since the pool was created
+     *
+     * @return the number of threads retired
+     */
+    public long getWorkersRetired()
+    {
+        return workersRetired.get();
+    }
+
+    /**
+     * Retrieves the number of retired threads that did not exit within the grace period
+     *
+     * @return the number of threads that did not exit
+     */
+    public long getWorkersLeaked()
+    {
+        return workersLeaked.get();
+    }
+
+    /**
+     * Retrieves the number of threads the supervisor added
+     *
+     * @return the number of scale ups
+     */
+    public long getScaleUps()
+    {
+        return scaleUps.get();
+    }
+
+    /**
+     * Retrieves the number of threads the supervisor retired
+     *
+     * @return the number of scale downs
+     */
+    public long getScaleDowns()
+    {
+        return scaleDowns.get();
+    }
+
+    /**
+     * Retrieves the average time the threads of this pool spent on an operation, as of the last sample
+     *
+     * @return the average latency in nanoseconds
+     */
+    public long getAverageLatencyNanos()
+    {
+        return averageLatencyNanos.get();
+    }
+
+    /**
+     * Performs the necessary processing to add or retire a thread based on what happened since the previous sample
+     *
+     * @param retired the list to add the thread to retire to, if any
+     */
+    private void resize(final List<DereferenceThread> retired)
+    {
+        long executed = 0L;
+        long busy = 0L;
+        for (DereferenceThread worker : workers)
+        {
+            executed += worker.getExecuted();
+            busy += worker.getBusyNanos();
+        }
+        // the counters of retired threads were taken out of the previous totals when they were retired
+        long executedDelta = Math.max(0L, executed - lastExecuted);
+        long busyDelta = Math.max(0L, busy - lastBusyNanos);
+        lastExecuted = executed;
+        lastBusyNanos = busy;
+
+        long latency = executedDelta == 0L ? averageLatencyNanos.get() : busyDelta / executedDelta;
+        averageLatencyNanos.set(latency);
+        int depth = queue.size();
+        int size = workers.size();
+        double utilization = (double) busyDelta / (size * TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+
+        if (depth > 0 && size < maxWorkers && (double) depth * latency / size > targetDrainNanos)
+        {
+            idleSamples = 0;
+            start();
+            scaleUps.incrementAndGet();
+        } else if (depth == 0 && utilization < 0.5d && size > minWorkers)
+        {
+            if (++idleSamples >= IDLE_SAMPLES_BEFORE_SHRINK)
+            {
+                idleSamples = 0;
+                detach(workers.get(workers.size() - 1), retired);
+                scaleDowns.incrementAndGet();
+            }
+        } else
+        {
+            idleSamples = 0;
+        }
+    }
+
+    /**
+     * Performs the necessary processing to create and start a thread
+     */
+    private void start()
+    {
+        DereferenceThread worker = factory.create();
+        worker.serverContext = serverContext;
+        workers.add(worker);
+        Thread t = serverContext.createThread(worker, "Deref thr-" + nextId++ + " for " + name);
+        t.start();
+        activeWorkers.incrementAndGet();
+        workersStarted.incrementAndGet();
+    }
+
+    /**
+     * Performs the necessary processing to halt every thread and remove it from the pool, halting them all first so
+     * that they exit in parallel once retired
+     *
+     * @param retired the list to add the threads to
+     */
+    private void detachAll(final List<DereferenceThread> retired)
+    {
+        for (DereferenceThread worker : workers)
+        {
+            worker.halt();
+        }
+        while (!workers.isEmpty())
+        {
+            detach(workers.get(workers.size() - 1), retired);
+        }
+        lastExecuted = 0L;
+        lastBusyNanos = 0L;
+    }
+
+    /**
+     * Performs the necessary processing to halt a thread and remove it from the pool
+     * The thread must then be retired without holding the lock
+     *
+     * @param worker  the thread to remove
+     * @param retired the list to add the thread to
+     */
+    private void detach(final DereferenceThread worker, final List<DereferenceThread> retired)
+    {
+        worker.halt();
+        workers.remove(worker);
+        lastExecuted -= worker.getExecuted();
+        lastBusyNanos -= worker.getBusyNanos();
+        activeWorkers.decrementAndGet();
+        workersRetired.incrementAndGet();
+        retired.add(worker);
+    }
+
+    /**
+     * Performs the necessary processing to wait for removed threads to exit
+     * The threads were all halted when removed so they exit in parallel and the grace period is not cumulative
+     * unless they are stuck
+     *
+     * @param retired the threads to wait for
+     */
+    private void retire(final List<DereferenceThread> retired)
+    {
+        for (DereferenceThread worker : retired)
+        {
+            try
+            {
+                if (!worker.retire(RETIRE_GRACE_MILLIS))
+                {
+                    workersLeaked.incrementAndGet();
+                    serverContext.logMessage(LogSeverity.MILD_WARNING, "A dereference thread for " + name
+                            + " did not exit within " + RETIRE_GRACE_MILLIS + "ms of being retired");
+                }
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
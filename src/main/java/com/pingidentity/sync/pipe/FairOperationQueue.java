@@ -0,0 +1,287 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DNNormalizer;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This queue keeps the dereference operations of each group in their own sub-queue and serves the groups with
+ * pending operations in turn, one operation at a time, so that a change to a large group does not hold up the
+ * changes to other groups that were queued after it
+ * <p>
+ * When a small group threshold is set, groups start out as small and are served first, up to a number of operations
+ * for each operation served from the large groups so that those keep draining in the background. A group becomes
+ * large once more operations than the threshold were queued for it while it had pending operations. A group with no
+ * more pending operations is forgotten, so its next change starts out as small again.
+ * <p>
+ * Operations whose group is not known share a single sub-queue. Within a group, operations are served in the order
+ * they were queued.
+ * <p>
+ * A group that becomes large is only marked as such and appended to the large groups. Its entry among the small
+ * groups is left in place and dropped when it reaches the head of the rotation, so that a promotion does not have to
+ * search the small groups while holding the lock.
+ */
+public class FairOperationQueue extends AbstractQueue<DereferenceOperation>
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Group> groups = new HashMap<>();
+    private final ArrayDeque<Group> smallGroups = new ArrayDeque<>();
+    private final ArrayDeque<Group> largeGroups = new ArrayDeque<>();
+    private final Integer capacity;
+    private final Integer smallGroupThreshold;
+    private final int smallGroupWeight;
+    private int smallServed = 0;
+    private int smallCount = 0;
+    private int count = 0;
+    private long promotions = 0L;
+
+    /**
+     * Performs the necessary processing to initialize the queue
+     *
+     * @param queueCapacity the maximum number of operations the queue may hold (null = unbounded)
+     * @param threshold     the number of operations past which a group is no longer served first (null = all groups
+     *                      are served in turn)
+     * @param weight        the number of operations served from small groups for each operation served from large
+     *                      groups
+     */
+    public FairOperationQueue(final Integer queueCapacity, final Integer threshold, final int weight)
+    {
+        capacity = queueCapacity;
+        smallGroupThreshold = threshold;
+        smallGroupWeight = Math.max(1, weight);
+    }
+
+    @Override
+    public boolean offer(DereferenceOperation operation)
+    {
+        String groupDN = operation.getGroupDN();
+        String key = groupDN == null ? "" : DNNormalizer.normalize(groupDN);
+        lock.lock();
+        try
+        {
+            if (capacity != null && count >= capacity)
+            {
+                return false;
+            }
+            Group group = groups.get(key);
+            if (group == null)
+            {
+                group = new Group(key, smallGroupThreshold == null);
+                groups.put(key, group);
+                if (group.large)
+                {
+                    largeGroups.add(group);
+                } else
+                {
+                    smallGroups.add(group);
+                    smallCount++;
+                }
+            }
+            group.operations.add(operation);
+            group.queued++;
+            if (!group.large && group.queued > smallGroupThreshold)
+            {
+                // the stale entry among the small groups is skipped once it reaches their head
+                group.large = true;
+                smallCount--;
+                largeGroups.add(group);
+                promotions++;
+            }
+            count++;
+            return true;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DereferenceOperation poll()
+    {
+        lock.lock();
+        try
+        {
+            if (count == 0)
+            {
+                return null;
+            }
+            pruneSmallGroups();
+            ArrayDeque<Group> turn;
+            if (!smallGroups.isEmpty() && (largeGroups.isEmpty() || smallServed < smallGroupWeight))
+            {
+                turn = smallGroups;
+                smallServed++;
+            } else
+            {
+                turn = largeGroups;
+                smallServed = 0;
+            }
+            Group group = turn.poll();
+            DereferenceOperation operation = group.operations.poll();
+            if (group.operations.isEmpty())
+            {
+                groups.remove(group.key);
+                if (!group.large)
+                {
+                    smallCount--;
+                }
+            } else
+            {
+                turn.add(group);
+            }
+            count--;
+            return operation;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DereferenceOperation peek()
+    {
+        lock.lock();
+        try
+        {
+            pruneSmallGroups();
+            Group group = !smallGroups.isEmpty() && (largeGroups.isEmpty() || smallServed < smallGroupWeight)
+                    ? smallGroups.peek() : largeGroups.peek();
+            return group == null ? null : group.operations.peek();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves a snapshot of the pending operations, group by group
+     * Removing operations through the iterator is not supported
+     *
+     * @return an iterator over the pending operations
+     */
+    @Override
+    public Iterator<DereferenceOperation> iterator()
+    {
+        lock.lock();
+        try
+        {
+            List<DereferenceOperation> snapshot = new ArrayList<>(count);
+            for (Group group : smallGroups)
+            {
+                if (!group.large)
+                {
+                    snapshot.addAll(group.operations);
+                }
+            }
+            for (Group group : largeGroups)
+            {
+                snapshot.addAll(group.operations);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return count;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of small groups with pending operations
+     *
+     * @return the number of small groups
+     */
+    public int getSmallGroupCount()
+    {
+        lock.lock();
+        try
+        {
+            return smallCount;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of large groups with pending operations
+     *
+     * @return the number of large groups
+     */
+    public int getLargeGroupCount()
+    {
+        lock.lock();
+        try
+        {
+            return largeGroups.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of times a group went past the small group threshold
+     *
+     * @return the number of groups that became large
+     */
+    public long getPromotions()
+    {
+        lock.lock();
+        try
+        {
+            return promotions;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs the necessary processing to drop the entries of groups that became large from the head of the small
+     * groups, so that the next small group to serve is at their head
+     */
+    private void pruneSmallGroups()
+    {
+        while (!smallGroups.isEmpty() && smallGroups.peek().large)
+        {
+            smallGroups.poll();
+        }
+    }
+
+    /**
+     * This class holds the pending operations of a group
+     */
+    private static class Group
+    {
+        final String key;
+        final ArrayDeque<DereferenceOperation> operations = new ArrayDeque<>();
+        long queued = 0L;
+        boolean large;
+
+        Group(final String k, final boolean l)
+        {
+            key = k;
+            large = l;
+        }
+    }
+}
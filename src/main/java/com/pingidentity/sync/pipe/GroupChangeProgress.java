@@ -0,0 +1,191 @@
+package com.pingidentity.sync.pipe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records how far the processing of a group change went when its members could not all be handed off,
+ * so that the change resumes where it stopped when it is retried instead of handing off its first members again
+ * <p>
+ * A group change hands off its members in steps, one per member attribute or modification, and each step hands off
+ * its members in the same order every time the change is processed. When a member cannot be handed off, the number
+ * of members each step already handed off is recorded under the key of the change. When the change is retried, the
+ * members already handed off are skipped. The record is dropped once the change completes.
+ * <p>
+ * The members of a step may be read again from the source when the change is retried. Each step therefore also
+ * records a fingerprint of its members, and a step whose members differ from those it was interrupted with starts
+ * over rather than skip members it never handed off.
+ * <p>
+ * A change that is never retried again, as when the retry limit of the pipe is reached, leaves its record behind.
+ * The number of records is therefore bounded and the oldest ones are dropped first.
+ */
+public class GroupChangeProgress
+{
+    private final Map<String, Map<String, Step>> changes;
+    private final AtomicLong resumed = new AtomicLong(0L);
+
+    /**
+     * This interface hands off a single member of a group change
+     */
+    public interface HandOff
+    {
+        /**
+         * Performs the necessary processing to hand off a member
+         *
+         * @param referenceDN the member DN
+         * @return false if the member could not be handed off and the change should be retried, true otherwise
+         */
+        public boolean handOff(String referenceDN);
+    }
+
+    /**
+     * Performs the necessary processing to initialize the instance
+     *
+     * @param maxChanges the maximum number of interrupted changes to remember
+     */
+    public GroupChangeProgress(final int maxChanges)
+    {
+        changes = new LinkedHashMap<String, Map<String, Step>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Step>> eldest)
+            {
+                return size() > maxChanges;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the progress of a change, as recorded the last time the change could not be completed
+     *
+     * @param changeKey the key identifying the change (null = the progress of the change is not recorded)
+     * @return the cursor to hand off the members of the change with
+     */
+    public Cursor resume(final String changeKey)
+    {
+        Map<String, Step> steps = null;
+        if (changeKey != null)
+        {
+            synchronized (changes)
+            {
+                steps = changes.remove(changeKey);
+            }
+        }
+        if (steps == null)
+        {
+            steps = new HashMap<>(4);
+        } else
+        {
+            resumed.incrementAndGet();
+        }
+        return new Cursor(changeKey, steps);
+    }
+
+    /**
+     * Retrieves the number of interrupted changes currently remembered
+     *
+     * @return the number of changes
+     */
+    public int size()
+    {
+        synchronized (changes)
+        {
+            return changes.size();
+        }
+    }
+
+    /**
+     * Retrieves the number of times a change resumed from where it was interrupted
+     *
+     * @return the number of resumed changes
+     */
+    public long getResumed()
+    {
+        return resumed.get();
+    }
+
+    /**
+     * This class keeps track of the members of a change handed off so far
+     */
+    public class Cursor
+    {
+        private final String key;
+        private final Map<String, Step> steps;
+
+        private Cursor(final String k, final Map<String, Step> s)
+        {
+            key = k;
+            steps = s;
+        }
+
+        /**
+         * Performs the necessary processing to hand off the members of a step, skipping those that were handed off
+         * before the change was interrupted
+         * When a member cannot be handed off, the progress of the change is recorded and the remaining members of
+         * the step are left for the retry
+         *
+         * @param step         the name of the step, unique within the change
+         * @param referenceDNs the members of the step, in the same order every time the change is processed
+         * @param handOff      how to hand off each member
+         * @return false if a member could not be handed off and the change should be retried, true otherwise
+         */
+        public boolean handOff(final String step, final String[] referenceDNs, final HandOff handOff)
+        {
+            int fingerprint = Arrays.hashCode(referenceDNs);
+            Step previous = steps.get(step);
+            int done = previous == null || previous.fingerprint != fingerprint ? 0 : previous.done;
+            for (int i = done; i < referenceDNs.length; i++)
+            {
+                if (!handOff.handOff(referenceDNs[i]))
+                {
+                    steps.put(step, new Step(i, fingerprint));
+                    if (key != null)
+                    {
+                        synchronized (changes)
+                        {
+                            changes.put(key, steps);
+                        }
+                    }
+                    return false;
+                }
+            }
+            steps.put(step, new Step(referenceDNs.length, fingerprint));
+            return true;
+        }
+
+        /**
+         * Performs the necessary processing to forget the progress of the change once all its members were handed
+         * off
+         */
+        public void complete()
+        {
+            if (key != null)
+            {
+                synchronized (changes)
+                {
+                    changes.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * This class holds the number of members of a step handed off so far and the fingerprint of the members
+     */
+    private static class Step
+    {
+        final int done;
+        final int fingerprint;
+
+        Step(final int d, final int f)
+        {
+            done = d;
+            fingerprint = f;
+        }
+    }
+}
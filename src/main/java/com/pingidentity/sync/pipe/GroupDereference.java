@@ -1,6 +1,8 @@
 package com.pingidentity.sync.pipe;
 
-import com.unboundid.directory.sdk.common.api.ServerThread;
+import com.pingidentity.util.AdaptiveRateLimiter;
+import com.pingidentity.util.DNNormalizer;
+import com.pingidentity.util.DepthTrackingQueue;
 import com.unboundid.directory.sdk.common.types.LogSeverity;
 import com.unboundid.directory.sdk.sync.api.SyncPipePlugin;
 import com.unboundid.directory.sdk.sync.config.SyncPipePluginConfig;
@@ -8,10 +10,16 @@ import com.unboundid.directory.sdk.sync.types.PreStepResult;
 import com.unboundid.directory.sdk.sync.types.SyncOperation;
 import com.unboundid.directory.sdk.sync.types.SyncServerContext;
 import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.unboundidds.ChangeLogEntryAttributeExceededMaxValuesCount;
+import com.unboundid.ldap.sdk.unboundidds.UnboundIDChangelogEntry;
 import com.unboundid.util.FixedRateBarrier;
 import com.unboundid.util.args.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -34,27 +42,85 @@ public class GroupDereference extends SyncPipePlugin
     public static final String STRATEGY_ENQUEUE_DN = "enqueue-member-dn";
     public static final String ARG_NAME_STRATEGY = "strategy";
     public static final String ARG_NAME_DEREF_RATE = "max-rate-per-second";
+    public static final String ARG_NAME_RATE_CONTROL = "rate-control";
+    public static final String RATE_CONTROL_FIXED = "fixed";
+    public static final String RATE_CONTROL_ADAPTIVE = "adaptive";
+    public static final String ARG_NAME_MIN_RATE = "min-rate-per-second";
+    public static final String ARG_NAME_RATE_INCREASE = "rate-increase-per-second";
+    public static final String ARG_NAME_RATE_DECREASE = "rate-decrease-percent";
+    public static final String ARG_NAME_LATENCY_THRESHOLD = "latency-threshold-millis";
     public static final String ARG_NAME_DEREF_MAX_GROUP_SIZE = "max-group-size";
     public static final String ARG_NAME_DEREF_ATTRIBUTE = "attribute";
     public static final String ARG_NAME_DEREF_THREADS = "number-of-threads";
+    public static final String ARG_NAME_DEREF_MAX_THREADS = "max-number-of-threads";
+    public static final String ARG_NAME_SCALE_INTERVAL = "scale-interval-millis";
+    public static final String ARG_NAME_TARGET_DRAIN = "target-drain-millis";
     public static final String ARG_NAME_ABORT_SYNC = "skip-group-sync";
     public static final String ARG_NAME_DEREF_PARSE_MODE = "parse-mode";
     public static final String ARG_NAME_VERBOSE = "verbose";
     public static final String PARSE_MODE_WHOLE_GROUP = "parse-whole-group";
     public static final String PARSE_MODE_CHANGELOG = "parse-group-change";
+    public static final String ARG_NAME_QUEUE_CAPACITY = "queue-capacity";
+    public static final String ARG_NAME_QUEUE_FULL_POLICY = "queue-full-policy";
+    public static final String QUEUE_FULL_POLICY_BLOCK = "block";
+    public static final String QUEUE_FULL_POLICY_RETRY = "retry";
+    public static final String QUEUE_FULL_POLICY_EXECUTE = "execute-in-pipe-thread";
+    public static final String QUEUE_FULL_POLICY_SPILL = "spill-to-disk";
+    public static final String ARG_NAME_SPILL_DIRECTORY = "spill-directory";
+    public static final String ARG_NAME_IDLE_STRATEGY = "idle-strategy";
+    public static final String ARG_NAME_IDLE_MAX_PARK = "idle-max-park-micros";
+    public static final String IDLE_STRATEGY_BLOCKING = "blocking";
+    public static final String IDLE_STRATEGY_BACKOFF = "backoff";
+    public static final String IDLE_STRATEGY_PARK = "park";
+    public static final String ARG_NAME_COALESCE = "coalesce-pending-members";
+    public static final String ARG_NAME_ASYNC_OUTSTANDING = "max-outstanding-requests";
+    public static final String ARG_NAME_BATCH_SIZE = "batch-size";
+    public static final String ARG_NAME_BATCH_LINGER = "batch-linger-millis";
+    public static final String ARG_NAME_TOUCH_ATTRIBUTE = "touch-attribute";
+    public static final String ARG_NAME_SNAPSHOT_DIRECTORY = "membership-snapshot-directory";
+    public static final String ARG_NAME_PARTITION = "partition-by-member-dn";
+    public static final String ARG_NAME_LANES_PER_THREAD = "lanes-per-thread";
+    public static final String ARG_NAME_FAIR_SCHEDULING = "fair-group-scheduling";
+    public static final String ARG_NAME_SMALL_GROUP_THRESHOLD = "small-group-threshold";
+    public static final String ARG_NAME_SMALL_GROUP_WEIGHT = "small-group-weight";
+    public static final String ARG_NAME_LARGE_GROUP_THRESHOLD = "large-group-threshold";
+    public static final String ARG_NAME_LARGE_GROUP_THREADS = "large-group-threads";
+    public static final String ARG_NAME_LARGE_GROUP_RATE = "large-group-max-rate-per-second";
+    public static final String ARG_NAME_LARGE_GROUP_QUEUE_CAPACITY = "large-group-queue-capacity";
+    private static final int MAX_INTERRUPTED_CHANGES = 1024;
     
-    Queue<DereferenceOperation> queue = null;
+    static final Set<GroupDereference> instances = ConcurrentHashMap.newKeySet();
+    DepthTrackingQueue<DereferenceOperation> queue = null;
+    DepthTrackingQueue<DereferenceOperation> largeGroupQueue = null;
     private SyncServerContext context;
-    private Integer maxGroupSize;
-    private List<DereferenceThread> threads = new ArrayList<>();
+    private Integer largeGroupThreshold;
+    private DereferenceWorkerPool pool = null;
+    private DereferenceWorkerPool largeGroupPool = null;
+    private List<Object> rateSettings = null;
+    private FixedRateBarrier derefBarrier = null;
+    private AdaptiveRateLimiter derefLimiter = null;
     private List<String> memberAttributes;
     private String strategy;
     private String parseMode;
     private boolean abortSync;
+    private String queueFullPolicy;
+    private String idleStrategy;
+    private long idleMaxParkNanos;
+    private boolean coalesce;
+    private Integer maxOutstandingRequests;
+    private int batchSize;
+    private int batchLingerMillis;
+    private String touchAttribute;
+    private String snapshotDirectory;
+    private MembershipSnapshotStore snapshotStore;
+    private volatile LDAPInterface lastConnection = null;
+    private final GroupChangeProgress progress = new GroupChangeProgress(MAX_INTERRUPTED_CHANGES);
 
-    static AtomicLong maxQueueSize = new AtomicLong(0L);
+    static volatile AdaptiveRateLimiter rateLimiter = null;
     static AtomicLong queueAddFailures = new AtomicLong(0L);
     static AtomicLong queueAddAttempts = new AtomicLong(0L);
+    static AtomicLong queueFullEvents = new AtomicLong(0L);
+    static AtomicLong largeGroupChanges = new AtomicLong(0L);
     
     
     /**
@@ -76,16 +142,74 @@ public class GroupDereference extends SyncPipePlugin
                         + "dereference operations. This will prevent surges of requests when processing large groups.");
         parser.addArgument(rateArg);
         
+        Set<String> allowedRateControls = new HashSet<>();
+        allowedRateControls.add(RATE_CONTROL_FIXED);
+        allowedRateControls.add(RATE_CONTROL_ADAPTIVE);
+        StringArgument rateControlArg = new StringArgument(null, ARG_NAME_RATE_CONTROL, false, 1, "{control}",
+                "How the rate of dereference operations is controlled: " + RATE_CONTROL_FIXED + " caps it at "
+                + ARG_NAME_DEREF_RATE + ", " + RATE_CONTROL_ADAPTIVE + " starts at " + ARG_NAME_MIN_RATE
+                + " and raises it by " + ARG_NAME_RATE_INCREASE + " every second while the source responds "
+                + "within " + ARG_NAME_LATENCY_THRESHOLD + ", up to " + ARG_NAME_DEREF_RATE + ", and cuts it by "
+                + ARG_NAME_RATE_DECREASE + " when the source is busy, unavailable or slow.",
+                allowedRateControls, RATE_CONTROL_FIXED);
+        parser.addArgument(rateControlArg);
+        
+        IntegerArgument minRateArg = new IntegerArgument(null, ARG_NAME_MIN_RATE, false, 1, "{rate}",
+                "Lowest rate per second with " + RATE_CONTROL_ADAPTIVE + " rate control.", 1, Integer.MAX_VALUE, 10);
+        parser.addArgument(minRateArg);
+        
+        IntegerArgument rateIncreaseArg = new IntegerArgument(null, ARG_NAME_RATE_INCREASE, false, 1, "{rate}",
+                "How much the rate grows every second while the source is healthy with " + RATE_CONTROL_ADAPTIVE
+                + " rate control.", 1, Integer.MAX_VALUE, 10);
+        parser.addArgument(rateIncreaseArg);
+        
+        IntegerArgument rateDecreaseArg = new IntegerArgument(null, ARG_NAME_RATE_DECREASE, false, 1, "{percent}",
+                "How much of the rate is cut when the source is in distress with " + RATE_CONTROL_ADAPTIVE
+                + " rate control.", 1, 99, 50);
+        parser.addArgument(rateDecreaseArg);
+        
+        IntegerArgument latencyThresholdArg = new IntegerArgument(null, ARG_NAME_LATENCY_THRESHOLD, false, 1,
+                "{millis}", "Response time past which the source is considered in distress with "
+                + RATE_CONTROL_ADAPTIVE + " rate control. When not set, only result codes are considered.", 1,
+                Integer.MAX_VALUE);
+        parser.addArgument(latencyThresholdArg);
+        
         IntegerArgument groupSizeArg = new IntegerArgument(
                 null,
                 ARG_NAME_DEREF_MAX_GROUP_SIZE,
                 false,
                 1,
                 "{size}",
-                "Maximum group size to process. This parameters allows to limit the impact on sync processing by " +
-                        "filtering large groups out.");
+                "Deprecated, use " + ARG_NAME_LARGE_GROUP_THRESHOLD + " instead. When " +
+                        ARG_NAME_LARGE_GROUP_THRESHOLD + " is not set, it is used as the threshold: the changes to " +
+                        "groups of at least this size are processed apart as large groups rather than filtered out.");
         parser.addArgument(groupSizeArg);
         
+        IntegerArgument largeGroupThresholdArg = new IntegerArgument(null, ARG_NAME_LARGE_GROUP_THRESHOLD, false, 1,
+                "{size}", "Number of members past which a group change is processed apart, from its own queue by " +
+                "its own threads, so that it does not hold up changes to other groups. The number of members is " +
+                "the number of changed members when it is known. Cannot be set with " + ARG_NAME_PARTITION + ". " +
+                "Creating or removing the queue requires a restart.", 1, Integer.MAX_VALUE);
+        parser.addArgument(largeGroupThresholdArg);
+        
+        IntegerArgument largeGroupThreadsArg = new IntegerArgument(null, ARG_NAME_LARGE_GROUP_THREADS, false, 1,
+                "{threads}", "Number of threads to use to process the changes to large groups.", 1,
+                Integer.MAX_VALUE, 1);
+        parser.addArgument(largeGroupThreadsArg);
+        
+        IntegerArgument largeGroupRateArg = new IntegerArgument(null, ARG_NAME_LARGE_GROUP_RATE, false, 1, "{rate}",
+                "Maximum rate per second to execute the dereference operations of large groups. With " +
+                RATE_CONTROL_ADAPTIVE + " rate control, they also follow the adaptive rate. When not set, the " +
+                "operations of large groups are only throttled by the adaptive rate, if any.", 1, Integer.MAX_VALUE);
+        parser.addArgument(largeGroupRateArg);
+        
+        IntegerArgument largeGroupQueueCapacityArg = new IntegerArgument(null, ARG_NAME_LARGE_GROUP_QUEUE_CAPACITY,
+                false, 1, "{capacity}", "Maximum number of dereference operations of large groups that may be " +
+                "pending. When not set, the queue is unbounded. The " + ARG_NAME_QUEUE_FULL_POLICY + " applies " +
+                "when it is full, except for " + QUEUE_FULL_POLICY_SPILL + " which behaves like "
+                + QUEUE_FULL_POLICY_RETRY + ". Changing this value requires a restart.", 1, Integer.MAX_VALUE);
+        parser.addArgument(largeGroupQueueCapacityArg);
+        
         String[] defaultAttributes = new String[]{
                 "member", "uniqueMember"};
         StringArgument attributeArg = new StringArgument(null, ARG_NAME_DEREF_ATTRIBUTE, false, 0,
@@ -94,9 +218,27 @@ public class GroupDereference extends SyncPipePlugin
         parser.addArgument(attributeArg);
         
         IntegerArgument threadsArg = new IntegerArgument(null, ARG_NAME_DEREF_THREADS, false, 1, "{threads}",
-                "Number of threads to use to process dereference operations", 1);
+                "Number of threads to use to process dereference operations. When " + ARG_NAME_DEREF_MAX_THREADS +
+                " is set, this is the minimum number of threads.", 1);
         parser.addArgument(threadsArg);
         
+        IntegerArgument maxThreadsArg = new IntegerArgument(null, ARG_NAME_DEREF_MAX_THREADS, false, 1,
+                "{threads}", "Maximum number of threads to use to process dereference operations. When set above "
+                + ARG_NAME_DEREF_THREADS + ", threads are added while the queue would take longer than "
+                + ARG_NAME_TARGET_DRAIN + " to drain at the observed operation latency, and retired once they have "
+                + "been mostly idle for a few intervals.", 1, Integer.MAX_VALUE);
+        parser.addArgument(maxThreadsArg);
+        
+        IntegerArgument scaleIntervalArg = new IntegerArgument(null, ARG_NAME_SCALE_INTERVAL, false, 1,
+                "{millis}", "How often the number of threads is reevaluated when " + ARG_NAME_DEREF_MAX_THREADS
+                + " is set.", 100, Integer.MAX_VALUE, 1000);
+        parser.addArgument(scaleIntervalArg);
+        
+        IntegerArgument targetDrainArg = new IntegerArgument(null, ARG_NAME_TARGET_DRAIN, false, 1,
+                "{millis}", "How long pending operations may take to be processed by the current threads before "
+                + "a thread is added, when " + ARG_NAME_DEREF_MAX_THREADS + " is set.", 1, Integer.MAX_VALUE, 1000);
+        parser.addArgument(targetDrainArg);
+        
         BooleanArgument abortArg = new BooleanArgument(
                 null,
                 ARG_NAME_ABORT_SYNC,
@@ -127,51 +269,348 @@ public class GroupDereference extends SyncPipePlugin
                 allowedDereferencing, STRATEGY_ENQUEUE_DN);
         parser.addArgument(dereferenceModeArg);
         
+        IntegerArgument queueCapacityArg = new IntegerArgument(null, ARG_NAME_QUEUE_CAPACITY, false, 1,
+                "{capacity}", "Maximum number of dereference operations that may be pending in the queue. When not " +
+                "set, the queue is unbounded. Changing this value requires a restart.", 1, Integer.MAX_VALUE);
+        parser.addArgument(queueCapacityArg);
+        
+        Set<String> allowedQueueFullPolicies = new HashSet<>();
+        allowedQueueFullPolicies.add(QUEUE_FULL_POLICY_BLOCK);
+        allowedQueueFullPolicies.add(QUEUE_FULL_POLICY_RETRY);
+        allowedQueueFullPolicies.add(QUEUE_FULL_POLICY_EXECUTE);
+        allowedQueueFullPolicies.add(QUEUE_FULL_POLICY_SPILL);
+        StringArgument queueFullPolicyArg = new StringArgument(null, ARG_NAME_QUEUE_FULL_POLICY, false, 1,
+                "{policy}", "What to do when the queue is full: " + QUEUE_FULL_POLICY_BLOCK + " the pipe thread " +
+                "until room is available, return a " + QUEUE_FULL_POLICY_RETRY + " result so the group change is " +
+                "processed again later from the first member that was not queued, execute the dereference operation directly in the pipe thread ("
+                + QUEUE_FULL_POLICY_EXECUTE + ") or write the operation to disk until the queue drains ("
+                + QUEUE_FULL_POLICY_SPILL + "). Only applies when " + ARG_NAME_QUEUE_CAPACITY + " is set. Switching " +
+                "to or from " + QUEUE_FULL_POLICY_SPILL + " requires a restart.",
+                allowedQueueFullPolicies, QUEUE_FULL_POLICY_BLOCK);
+        parser.addArgument(queueFullPolicyArg);
+        
+        StringArgument spillDirectoryArg = new StringArgument(null, ARG_NAME_SPILL_DIRECTORY, false, 1, "{path}",
+                "Directory, relative to the server root if not absolute, where operations are written with the " +
+                QUEUE_FULL_POLICY_SPILL + " policy. Operations are stored as the member DN and strategy only and " +
+                "the files are discarded on restart.", "tmp/group-dereference-spill");
+        parser.addArgument(spillDirectoryArg);
+        
+        Set<String> allowedIdleStrategies = new HashSet<>();
+        allowedIdleStrategies.add(IDLE_STRATEGY_BLOCKING);
+        allowedIdleStrategies.add(IDLE_STRATEGY_BACKOFF);
+        allowedIdleStrategies.add(IDLE_STRATEGY_PARK);
+        StringArgument idleStrategyArg = new StringArgument(null, ARG_NAME_IDLE_STRATEGY, false, 1,
+                "{idleStrategy}", "How dereference threads wait for operations when the queue is empty: "
+                + IDLE_STRATEGY_BLOCKING + " waits on the queue (requires " + ARG_NAME_QUEUE_CAPACITY
+                + ", falls back to " + IDLE_STRATEGY_BACKOFF + " otherwise), " + IDLE_STRATEGY_BACKOFF
+                + " spins, then yields, then parks for increasing periods and " + IDLE_STRATEGY_PARK
+                + " parks for a fixed period.", allowedIdleStrategies, IDLE_STRATEGY_BACKOFF);
+        parser.addArgument(idleStrategyArg);
+        
+        IntegerArgument idleMaxParkArg = new IntegerArgument(null, ARG_NAME_IDLE_MAX_PARK, false, 1,
+                "{micros}", "Longest period in microseconds an idle dereference thread may park before checking " +
+                "the queue again. This bounds the latency to pick up new operations.", 1, Integer.MAX_VALUE, 1000);
+        parser.addArgument(idleMaxParkArg);
+        
+        BooleanArgument coalesceArg = new BooleanArgument(null, ARG_NAME_COALESCE, "Whether to drop the " +
+                "dereference of a member that is already pending. This is useful when the same members are " +
+                "changed in many groups within a short period of time.");
+        parser.addArgument(coalesceArg);
+        
+        IntegerArgument outstandingArg = new IntegerArgument(null, ARG_NAME_ASYNC_OUTSTANDING, false, 1,
+                "{requests}", "Maximum number of asynchronous requests to keep in flight per connection when " +
+                "fetching member entries with the " + STRATEGY_ENQUEUE_ENTRY + " strategy. When not set, entries " +
+                "are fetched synchronously, one at a time per thread.", 1, Integer.MAX_VALUE);
+        parser.addArgument(outstandingArg);
+        
+        IntegerArgument batchSizeArg = new IntegerArgument(null, ARG_NAME_BATCH_SIZE, false, 1, "{size}",
+                "Maximum number of members to process together. With the " + STRATEGY_ENQUEUE_ENTRY + " strategy, " +
+                "members sharing the same parent entry are fetched with a single search. With the " + STRATEGY_TOUCH +
+                " strategy, members are touched with a single multi-update extended request. 1 disables batching.",
+                1, Integer.MAX_VALUE, 1);
+        parser.addArgument(batchSizeArg);
+        
+        IntegerArgument batchLingerArg = new IntegerArgument(null, ARG_NAME_BATCH_LINGER, false, 1, "{millis}",
+                "How long a dereference thread waits for more members to fill a batch before processing it.",
+                0, Integer.MAX_VALUE, 5);
+        parser.addArgument(batchLingerArg);
+        
+        StringArgument touchAttributeArg = new StringArgument(null, ARG_NAME_TOUCH_ATTRIBUTE, false, 1,
+                "{attribute}", "Attribute to replace with the current time to touch member entries with the " +
+                STRATEGY_TOUCH + " strategy. This is a single write instead of deleting and adding back the top " +
+                "objectClass value. The attribute must be allowed in member entries.");
+        touchAttributeArg.addValueValidator(new AttributeNameArgumentValueValidator());
+        parser.addArgument(touchAttributeArg);
+        
+        StringArgument snapshotDirectoryArg = new StringArgument(null, ARG_NAME_SNAPSHOT_DIRECTORY, false, 1,
+                "{path}", "Directory, relative to the server root if not absolute, where to keep a snapshot of the " +
+                "members of each group. With the " + PARSE_MODE_WHOLE_GROUP + " parse mode, only the members added " +
+                "or removed since the previous version of the group are then dereferenced.");
+        parser.addArgument(snapshotDirectoryArg);
+        
+        BooleanArgument partitionArg = new BooleanArgument(null, ARG_NAME_PARTITION, "Whether to route dereference " +
+                "operations to lanes by member DN so that the operations of a member are processed in order, one at " +
+                "a time, while idle threads take over the lanes of busy ones. With a " + ARG_NAME_QUEUE_CAPACITY +
+                ", the " + QUEUE_FULL_POLICY_BLOCK + " policy returns a " + QUEUE_FULL_POLICY_RETRY + " result " +
+                "instead of blocking and " + QUEUE_FULL_POLICY_SPILL + " is not available. Changing this value " +
+                "requires a restart.");
+        parser.addArgument(partitionArg);
+        
+        IntegerArgument lanesPerThreadArg = new IntegerArgument(null, ARG_NAME_LANES_PER_THREAD, false, 1,
+                "{lanes}", "Number of lanes per dereference thread when " + ARG_NAME_PARTITION + " is set. More " +
+                "lanes make it less likely that a busy member holds up other members. Changing this value requires " +
+                "a restart.", 1, 1024, 4);
+        parser.addArgument(lanesPerThreadArg);
+        
+        BooleanArgument fairSchedulingArg = new BooleanArgument(null, ARG_NAME_FAIR_SCHEDULING, "Whether to keep " +
+                "the dereference operations of each group apart and serve the groups in turn, so that a change to a " +
+                "large group does not hold up changes to other groups. Not used when " + ARG_NAME_PARTITION + " is " +
+                "set. With a " + ARG_NAME_QUEUE_CAPACITY + ", the " + QUEUE_FULL_POLICY_BLOCK + " policy returns a " +
+                QUEUE_FULL_POLICY_RETRY + " result instead of blocking and " + QUEUE_FULL_POLICY_SPILL + " is not " +
+                "available. Changing this value requires a restart.");
+        parser.addArgument(fairSchedulingArg);
+        
+        IntegerArgument smallGroupThresholdArg = new IntegerArgument(null, ARG_NAME_SMALL_GROUP_THRESHOLD, false, 1,
+                "{operations}", "With " + ARG_NAME_FAIR_SCHEDULING + ", groups with up to this many pending " +
+                "operations are served ahead of larger ones. When not set, all groups are served in turn. Changing " +
+                "this value requires a restart.", 1, Integer.MAX_VALUE);
+        parser.addArgument(smallGroupThresholdArg);
+        
+        IntegerArgument smallGroupWeightArg = new IntegerArgument(null, ARG_NAME_SMALL_GROUP_WEIGHT, false, 1,
+                "{operations}", "With " + ARG_NAME_SMALL_GROUP_THRESHOLD + ", the number of operations served from " +
+                "small groups for each operation served from larger groups, so that those keep draining. Changing " +
+                "this value requires a restart.", 1, Integer.MAX_VALUE, 4);
+        parser.addArgument(smallGroupWeightArg);
+        
         BooleanArgument verboseArg = new BooleanArgument(null, ARG_NAME_VERBOSE, "Verbose output");
         parser.addArgument(verboseArg);
     }
     
+    /**
+     * Performs the necessary processing to check the configuration
+     * Operations on the same member are only kept apart by the lanes of the partitioned queue, so large groups cannot
+     * be processed from their own queue when the queue is partitioned
+     *
+     * @param config              the configuration object of the instance of the extension
+     * @param parser              the argument parser
+     * @param unacceptableReasons the list to add the reasons the configuration is not acceptable to
+     * @return true if the configuration is acceptable, false otherwise
+     */
+    @Override
+    public boolean isConfigurationAcceptable(SyncPipePluginConfig config, ArgumentParser parser,
+                                             List<String> unacceptableReasons)
+    {
+        if (parser.getBooleanArgument(ARG_NAME_PARTITION).isPresent() && getLargeGroupThreshold(parser) != null)
+        {
+            unacceptableReasons.add(ARG_NAME_LARGE_GROUP_THRESHOLD + " (or the deprecated " +
+                    ARG_NAME_DEREF_MAX_GROUP_SIZE + ") cannot be set with " + ARG_NAME_PARTITION + ", the changes " +
+                    "to a member could otherwise be processed concurrently from both queues.");
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Performs the necessary processing to determine the number of members past which a group change is processed
+     * apart, falling back on the deprecated maximum group size
+     *
+     * @param parser the argument parser
+     * @return the threshold or null if large groups are not processed apart
+     */
+    private static Integer getLargeGroupThreshold(ArgumentParser parser)
+    {
+        Integer threshold = parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_THRESHOLD).getValue();
+        return threshold != null ? threshold : parser.getIntegerArgument(ARG_NAME_DEREF_MAX_GROUP_SIZE).getValue();
+    }
+    
     @Override
     public ResultCode applyConfiguration(SyncPipePluginConfig config, ArgumentParser parser, List<String>
             adminActionsRequired, List<String> messages)
     {
         FixedRateBarrier rateBarrier = null;
+        AdaptiveRateLimiter limiter = null;
         Integer value = parser.getIntegerArgument(ARG_NAME_DEREF_RATE).getValue();
-        if (value != null)
+        String rateControl = parser.getStringArgument(ARG_NAME_RATE_CONTROL).getValue();
+        List<Object> newRateSettings = Arrays.asList(rateControl, value,
+                parser.getIntegerArgument(ARG_NAME_MIN_RATE).getValue(),
+                parser.getIntegerArgument(ARG_NAME_RATE_INCREASE).getValue(),
+                parser.getIntegerArgument(ARG_NAME_RATE_DECREASE).getValue(),
+                parser.getIntegerArgument(ARG_NAME_LATENCY_THRESHOLD).getValue());
+        if (newRateSettings.equals(rateSettings))
+        {
+            // the threads keep the barrier or limiter they were created with
+            rateBarrier = derefBarrier;
+            limiter = derefLimiter;
+        } else if (RATE_CONTROL_ADAPTIVE.equals(rateControl))
+        {
+            int minRate = parser.getIntegerArgument(ARG_NAME_MIN_RATE).getValue();
+            // resume from the current rate rather than start over when the configuration changes
+            AdaptiveRateLimiter previous = rateLimiter;
+            limiter = new AdaptiveRateLimiter(minRate, value == null ? Integer.MAX_VALUE : value,
+                    previous == null ? minRate : previous.getRate(),
+                    parser.getIntegerArgument(ARG_NAME_RATE_INCREASE).getValue(),
+                    parser.getIntegerArgument(ARG_NAME_RATE_DECREASE).getValue(),
+                    parser.getIntegerArgument(ARG_NAME_LATENCY_THRESHOLD).getValue());
+        } else if (value != null)
         {
             rateBarrier = new FixedRateBarrier(1000L, value);
         }
+        rateSettings = newRateSettings;
+        derefBarrier = rateBarrier;
+        derefLimiter = limiter;
+        rateLimiter = limiter;
         
         abortSync = parser.getBooleanArgument(ARG_NAME_ABORT_SYNC).isPresent();
+        coalesce = parser.getBooleanArgument(ARG_NAME_COALESCE).isPresent();
+        maxOutstandingRequests = parser.getIntegerArgument(ARG_NAME_ASYNC_OUTSTANDING).getValue();
+        // fetchers are created again on demand with the new limit, releasing the connections they pinned
+        AsyncEntryFetcher.closeAll();
+        batchSize = parser.getIntegerArgument(ARG_NAME_BATCH_SIZE).getValue();
+        batchLingerMillis = parser.getIntegerArgument(ARG_NAME_BATCH_LINGER).getValue();
+        touchAttribute = parser.getStringArgument(ARG_NAME_TOUCH_ATTRIBUTE).getValue();
+        
+        String newSnapshotDirectory = parser.getStringArgument(ARG_NAME_SNAPSHOT_DIRECTORY).getValue();
+        if (!Objects.equals(newSnapshotDirectory, snapshotDirectory))
+        {
+            MembershipSnapshotStore newSnapshotStore = null;
+            if (newSnapshotDirectory != null)
+            {
+                File directory = new File(newSnapshotDirectory);
+                if (!directory.isAbsolute())
+                {
+                    directory = new File(config.getServerContext().getServerRoot(), newSnapshotDirectory);
+                }
+                try
+                {
+                    newSnapshotStore = new MembershipSnapshotStore(directory);
+                } catch (IOException e)
+                {
+                    messages.add(e.getMessage());
+                    return ResultCode.OTHER;
+                }
+            }
+            snapshotDirectory = newSnapshotDirectory;
+            snapshotStore = newSnapshotStore;
+        }
         strategy = parser.getStringArgument(ARG_NAME_STRATEGY).getValue();
         parseMode = parser.getStringArgument(ARG_NAME_DEREF_PARSE_MODE).getValue();
-        maxGroupSize = parser.getIntegerArgument(ARG_NAME_DEREF_MAX_GROUP_SIZE).getValue();
+        queueFullPolicy = parser.getStringArgument(ARG_NAME_QUEUE_FULL_POLICY).getValue();
+        idleStrategy = parser.getStringArgument(ARG_NAME_IDLE_STRATEGY).getValue();
+        idleMaxParkNanos = TimeUnit.MICROSECONDS.toNanos(parser.getIntegerArgument(ARG_NAME_IDLE_MAX_PARK).getValue());
+        
+        Integer queueCapacity = parser.getIntegerArgument(ARG_NAME_QUEUE_CAPACITY).getValue();
+        if (!Objects.equals(queueCapacity, DereferenceOperationQueue.getCapacity()))
+        {
+            adminActionsRequired.add("The " + ARG_NAME_QUEUE_CAPACITY + " change will only take effect after the " +
+                    "server is restarted.");
+        }
+        if (QUEUE_FULL_POLICY_SPILL.equals(queueFullPolicy) != (DereferenceOperationQueue.getSpillOverQueue() != null)
+                && DereferenceOperationQueue.getPartitionedQueue() == null
+                && DereferenceOperationQueue.getFairQueue() == null)
+        {
+            adminActionsRequired.add("The " + ARG_NAME_QUEUE_FULL_POLICY + " change to or from " +
+                    QUEUE_FULL_POLICY_SPILL + " will only take effect after the server is restarted.");
+        }
+        
+        if (parser.getBooleanArgument(ARG_NAME_PARTITION).isPresent()
+                != (DereferenceOperationQueue.getPartitionedQueue() != null))
+        {
+            adminActionsRequired.add("The " + ARG_NAME_PARTITION + " change will only take effect after the " +
+                    "server is restarted.");
+        }
+        if (DereferenceOperationQueue.getPartitionedQueue() == null
+                && parser.getBooleanArgument(ARG_NAME_FAIR_SCHEDULING).isPresent()
+                != (DereferenceOperationQueue.getFairQueue() != null))
+        {
+            adminActionsRequired.add("The " + ARG_NAME_FAIR_SCHEDULING + " change will only take effect after the " +
+                    "server is restarted.");
+        }
+        
+        largeGroupThreshold = getLargeGroupThreshold(parser);
+        if (parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_THRESHOLD).getValue() == null
+                && parser.getIntegerArgument(ARG_NAME_DEREF_MAX_GROUP_SIZE).getValue() != null)
+        {
+            messages.add("The " + ARG_NAME_DEREF_MAX_GROUP_SIZE + " argument is deprecated, it is used as the " +
+                    ARG_NAME_LARGE_GROUP_THRESHOLD + " so larger groups are processed apart rather than filtered out.");
+        }
+        if ((largeGroupThreshold != null) != (largeGroupQueue != null))
+        {
+            adminActionsRequired.add("The " + ARG_NAME_LARGE_GROUP_THRESHOLD + " change to or from no value will " +
+                    "only take effect after the server is restarted.");
+        }
+        Integer largeGroupQueueCapacity = parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_QUEUE_CAPACITY).getValue();
+        if (largeGroupQueue != null
+                && !Objects.equals(largeGroupQueueCapacity, DereferenceOperationQueue.getLargeGroupCapacity()))
+        {
+            adminActionsRequired.add("The " + ARG_NAME_LARGE_GROUP_QUEUE_CAPACITY + " change will only take " +
+                    "effect after the server is restarted.");
+        }
         
         memberAttributes = parser.getStringArgument(ARG_NAME_DEREF_ATTRIBUTE).getValues();
-        Integer numberOfThreads = parser.getIntegerArgument(ARG_NAME_DEREF_THREADS).getValue();
-        if (threads == null || threads.size() != numberOfThreads)
+        int numberOfThreads = parser.getIntegerArgument(ARG_NAME_DEREF_THREADS).getValue();
+        Integer maxNumberOfThreads = parser.getIntegerArgument(ARG_NAME_DEREF_MAX_THREADS).getValue();
+        if (pool == null)
+        {
+            pool = new DereferenceWorkerPool(config.getServerContext(), config.getConfigObjectName(), queue);
+        }
+        final FixedRateBarrier barrier = rateBarrier;
+        final AdaptiveRateLimiter adaptiveLimiter = limiter;
+        final PartitionedOperationQueue partitions = DereferenceOperationQueue.getPartitionedQueue();
+        // the threads are only replaced when one of the settings they were created with has changed
+        List<Object> threadSettings = Arrays.asList(rateSettings, batchSize, batchLingerMillis, idleStrategy,
+                idleMaxParkNanos);
+        pool.configure(() -> adaptiveLimiter != null
+                        ? new DereferenceThread(queue, adaptiveLimiter, createIdleStrategy(), batchSize,
+                        batchLingerMillis, partitions)
+                        : new DereferenceThread(queue, barrier, createIdleStrategy(), batchSize,
+                        batchLingerMillis, partitions), threadSettings, numberOfThreads,
+                maxNumberOfThreads == null ? numberOfThreads : maxNumberOfThreads,
+                parser.getIntegerArgument(ARG_NAME_SCALE_INTERVAL).getValue(),
+                parser.getIntegerArgument(ARG_NAME_TARGET_DRAIN).getValue());
+        
+        if (largeGroupQueue != null)
         {
-            List<DereferenceThread> newThreads = new ArrayList<>();
-            for (int i = 0; i < parser.getIntegerArgument(ARG_NAME_DEREF_THREADS).getValue(); i++)
+            Integer largeGroupRate = parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_RATE).getValue();
+            final FixedRateBarrier largeGroupBarrier = largeGroupRate == null ? null
+                    : new FixedRateBarrier(1000L, largeGroupRate);
+            int largeGroupThreads = parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_THREADS).getValue();
+            if (largeGroupPool == null)
             {
-                DereferenceThread thread = new DereferenceThread(queue, rateBarrier);
-                newThreads.add(thread);
-                Thread t = config.getServerContext().createThread((ServerThread) thread, "Deref thr-"
-                        + i + " for " + config.getConfigObjectName());
-                t.start();
-            }
-            
-            if (threads != null ){
-                for (DereferenceThread thread: threads)
-                {
-                    thread.halt();
-                }
+                largeGroupPool = new DereferenceWorkerPool(config.getServerContext(),
+                        config.getConfigObjectName() + " large groups", largeGroupQueue);
             }
-            threads=newThreads;
+            // the large groups share the adaptive rate with the other changes, as both load the same source
+            largeGroupPool.configure(() -> new DereferenceThread(largeGroupQueue, adaptiveLimiter, largeGroupBarrier,
+                            createIdleStrategy(), batchSize, batchLingerMillis, null),
+                    Arrays.asList(threadSettings, largeGroupRate), largeGroupThreads, largeGroupThreads,
+                    parser.getIntegerArgument(ARG_NAME_SCALE_INTERVAL).getValue(),
+                    parser.getIntegerArgument(ARG_NAME_TARGET_DRAIN).getValue());
         }
         return ResultCode.SUCCESS;
     }
     
+    /**
+     * Performs the necessary processing to create a new instance of the configured idle strategy
+     *
+     * @return the idle strategy, one per thread
+     */
+    private IdleStrategy createIdleStrategy()
+    {
+        IdleStrategy backoff = new BackoffIdleStrategy(100L, 10L,
+                Math.min(TimeUnit.MICROSECONDS.toNanos(50L), idleMaxParkNanos), idleMaxParkNanos);
+        switch (idleStrategy)
+        {
+            case IDLE_STRATEGY_BLOCKING:
+                // threads blocked on the queue wake up as soon as an operation is added, the timeout only bounds
+                // how long it takes for a halted thread to notice
+                return new BlockingIdleStrategy(1000L, backoff);
+            case IDLE_STRATEGY_PARK:
+                return new ParkIdleStrategy(idleMaxParkNanos);
+            default:
+                return backoff;
+        }
+    }
+    
     /**
      * Performs the necessary processing to initialize the instance of the extension
      *
@@ -184,10 +623,48 @@ public class GroupDereference extends SyncPipePlugin
                                          SyncPipePluginConfig config, ArgumentParser parser) throws LDAPException
     {
         context = serverContext;
-        queue = DereferenceOperationQueue.getInstance();
+        Integer queueCapacity = parser.getIntegerArgument(ARG_NAME_QUEUE_CAPACITY).getValue();
+        if (parser.getBooleanArgument(ARG_NAME_PARTITION).isPresent())
+        {
+            queue = DereferenceOperationQueue.getPartitionedInstance(
+                    parser.getIntegerArgument(ARG_NAME_DEREF_THREADS).getValue(),
+                    parser.getIntegerArgument(ARG_NAME_LANES_PER_THREAD).getValue(), queueCapacity);
+        } else if (parser.getBooleanArgument(ARG_NAME_FAIR_SCHEDULING).isPresent())
+        {
+            queue = DereferenceOperationQueue.getFairInstance(queueCapacity,
+                    parser.getIntegerArgument(ARG_NAME_SMALL_GROUP_THRESHOLD).getValue(),
+                    parser.getIntegerArgument(ARG_NAME_SMALL_GROUP_WEIGHT).getValue());
+        } else if (queueCapacity != null
+                && QUEUE_FULL_POLICY_SPILL.equals(parser.getStringArgument(ARG_NAME_QUEUE_FULL_POLICY).getValue()))
+        {
+            File spillDirectory = new File(parser.getStringArgument(ARG_NAME_SPILL_DIRECTORY).getValue());
+            if (!spillDirectory.isAbsolute())
+            {
+                spillDirectory = new File(serverContext.getServerRoot(), spillDirectory.getPath());
+            }
+            try
+            {
+                DereferenceOperationCodec codec = new DereferenceOperationCodec(this);
+                queue = DereferenceOperationQueue.getInstance(queueCapacity, spillDirectory, codec, codec);
+            } catch (IOException e)
+            {
+                serverContext.logMessage(LogSeverity.SEVERE_ERROR, "Unable to spill dereference operations to " +
+                        spillDirectory + ", the queue will be bounded instead: " + e.getMessage());
+            }
+        }
+        if (queue == null)
+        {
+            queue = DereferenceOperationQueue.getInstance(queueCapacity);
+        }
+        if (getLargeGroupThreshold(parser) != null)
+        {
+            largeGroupQueue = DereferenceOperationQueue.getLargeGroupInstance(
+                    parser.getIntegerArgument(ARG_NAME_LARGE_GROUP_QUEUE_CAPACITY).getValue());
+        }
         List<String> adminActionsRequired = new ArrayList<>(3);
         List<String> messages = new ArrayList<>(3);
         applyConfiguration(config,parser,adminActionsRequired,messages);
+        instances.add(this);
     }
     
     /**
@@ -195,12 +672,14 @@ public class GroupDereference extends SyncPipePlugin
      */
     public void finalizeSyncPipePlugin()
     {
-        if ( threads != null )
+        instances.remove(this);
+        if (pool != null)
         {
-            for (DereferenceThread thread : threads)
-            {
-                thread.halt();
-            }
+            pool.shutdown();
+        }
+        if (largeGroupPool != null)
+        {
+            largeGroupPool.shutdown();
         }
     }
     
@@ -252,6 +731,10 @@ public class GroupDereference extends SyncPipePlugin
          */
         LDAPInterface connection = (LDAPInterface) operation
                 .getAttachment(ATTACHMENT_ID);
+        if (connection != null)
+        {
+            lastConnection = connection;
+        }
         if (connection == null
                 && STRATEGY_TOUCH.equalsIgnoreCase(strategy))
         {
@@ -285,24 +768,53 @@ public class GroupDereference extends SyncPipePlugin
             return getResult();
         }
         
-        if (PARSE_MODE_WHOLE_GROUP.equalsIgnoreCase(parseMode))
+        String groupDN = sourceEntry != null ? sourceEntry.getDN() : cle != null ? cle.getTargetDN() : null;
+        // a retried change resumes after the members it already handed off
+        GroupChangeProgress.Cursor cursor = progress.resume(getChangeKey(cle));
+        if (PARSE_MODE_WHOLE_GROUP.equalsIgnoreCase(parseMode) && snapshotStore != null)
+        {
+            if (groupDN == null)
+            {
+                return getResult();
+            }
+            for (String attrName : memberAttributes)
+            {
+                // a missing attribute or group means that all members were removed
+                Attribute attribute = sourceEntry == null ? null : sourceEntry.getAttribute(attrName);
+                String[] values = attribute == null ? new String[0] : attribute.getValues();
+                try (MembershipSnapshotStore.Delta delta = snapshotStore.diff(groupDN, attrName, values))
+                {
+                    List<String> changedMembers = delta.getChangedMembers();
+                    if (!packageOperations(changedMembers.toArray(new String[changedMembers.size()]), connection,
+                            groupDN, getLane(changedMembers.size()), cursor, "delta:" + attrName))
+                    {
+                        return PreStepResult.RETRY_OPERATION_LIMITED;
+                    }
+                    delta.commit();
+                } catch (IOException e)
+                {
+                    context.logMessage(LogSeverity.MILD_ERROR, "Unable to use the membership snapshot of " + groupDN
+                            + ", processing all members: " + e.getMessage());
+                    if (!packageOperations(values, connection, groupDN, getLane(values.length), cursor,
+                            "all:" + attrName))
+                    {
+                        return PreStepResult.RETRY_OPERATION_LIMITED;
+                    }
+                }
+            }
+        } else if (PARSE_MODE_WHOLE_GROUP.equalsIgnoreCase(parseMode))
         {
             for (String attrName : memberAttributes)
             {
                 Attribute attribute = sourceEntry.getAttribute(attrName);
                 if (attribute != null)
                 {
-                    String[] values = attribute.getValues();
-                    if (values != null)
+                    // the number of values is known without decoding them
+                    int size = attribute.size();
+                    if (!packageOperations(attribute.getValues(), connection, groupDN, getLane(size), cursor,
+                            attrName))
                     {
-                        if (maxGroupSize == null
-                                || (maxGroupSize != null && values.length < maxGroupSize))
-                        {
-                            for (String referenceDN : attribute.getValues())
-                            {
-                                packageOperation(referenceDN, connection);
-                            }
-                        }
+                        return PreStepResult.RETRY_OPERATION_LIMITED;
                     }
                 }
             }
@@ -316,9 +828,11 @@ public class GroupDereference extends SyncPipePlugin
                     {
                         if (memberAttributes.stream().anyMatch(attribute.getBaseName()::equalsIgnoreCase))
                         {
-                            for (String referenceDN : attribute.getValues())
+                            invalidateSnapshot(cle.getTargetDN(), attribute.getBaseName());
+                            if (!packageOperations(attribute.getValues(), connection, groupDN,
+                                    getLane(attribute.size()), cursor, attribute.getName()))
                             {
-                                packageOperation(referenceDN, connection);
+                                return PreStepResult.RETRY_OPERATION_LIMITED;
                             }
                         }
                     }
@@ -329,24 +843,40 @@ public class GroupDereference extends SyncPipePlugin
                     {
                         if (memberAttributes.stream().anyMatch(attribute.getBaseName()::equalsIgnoreCase))
                         {
-                            for (String referenceDN : attribute.getValues())
+                            invalidateSnapshot(cle.getTargetDN(), attribute.getBaseName());
+                            if (!packageOperations(attribute.getValues(), connection, groupDN,
+                                    getLane(attribute.size()), cursor, attribute.getName()))
                             {
-                                packageOperation(referenceDN, connection);
+                                return PreStepResult.RETRY_OPERATION_LIMITED;
                             }
                         }
                     }
                     break;
                 case MODIFY:
                     // check every modification in the changelog entry
-                    for (Modification modification : operation.getChangeLogEntry().getModifications())
+                    List<Modification> modifications = operation.getChangeLogEntry().getModifications();
+                    for (int i = 0; i < modifications.size(); i++)
                     {
+                        Modification modification = modifications.get(i);
                         // if it's on an attribute we are interested in ..
                         if (memberAttributes.stream().anyMatch(modification.getAttributeName()::equalsIgnoreCase))
                         {
+                            String step = "modification:" + i;
+                            if (ModificationType.REPLACE == modification.getModificationType())
+                            {
+                                // only package the members that actually changed
+                                if (!packageReplacedMembers(cle, modification, connection, cursor, step))
+                                {
+                                    return PreStepResult.RETRY_OPERATION_LIMITED;
+                                }
+                                continue;
+                            }
+                            invalidateSnapshot(cle.getTargetDN(), modification.getAttributeName());
                             // grab all the values and package them for update
-                            for (String referenceDN : modification.getValues())
+                            if (!packageOperations(modification.getValues(), connection, groupDN,
+                                    getLane(modification.getRawValues().length), cursor, step))
                             {
-                                packageOperation(referenceDN, connection);
+                                return PreStepResult.RETRY_OPERATION_LIMITED;
                             }
                         }
                     }
@@ -356,6 +886,7 @@ public class GroupDereference extends SyncPipePlugin
                     break;
             }
         }
+        cursor.complete();
         return getResult();
     }
     
@@ -369,33 +900,317 @@ public class GroupDereference extends SyncPipePlugin
         return abortSync ? PreStepResult.ABORT_OPERATION : PreStepResult.CONTINUE;
     }
     
+    /**
+     * Performs the necessary processing to package the members added or removed by a replace modification
+     * <p>
+     * The values before the change are taken from the changelog entry when the server provides them. Otherwise the
+     * membership snapshot is used when configured. If neither is available, all the values are packaged.
+     *
+     * @param cle          the changelog entry
+     * @param modification the replace modification
+     * @param connection   a connection (may be null)
+     * @param cursor       the progress of the group change
+     * @param step         the name of the modification within the group change
+     * @return false if the queue was full and the group change should be retried, true otherwise
+     */
+    private boolean packageReplacedMembers(ChangeLogEntry cle, Modification modification, LDAPInterface connection,
+                                           GroupChangeProgress.Cursor cursor, String step)
+    {
+        String[] values = modification.getValues();
+        String[] beforeValues = getValuesBeforeChange(cle, modification.getAttributeName());
+        
+        MembershipSnapshotStore.Delta delta = null;
+        if (snapshotStore != null)
+        {
+            try
+            {
+                delta = snapshotStore.diff(cle.getTargetDN(), modification.getAttributeName(), values);
+            } catch (IOException e)
+            {
+                context.logMessage(LogSeverity.MILD_ERROR, "Unable to use the membership snapshot of "
+                        + cle.getTargetDN() + ": " + e.getMessage());
+            }
+        }
+        
+        String[] changedMembers = values;
+        if (beforeValues != null)
+        {
+            changedMembers = getSymmetricDifference(beforeValues, values);
+        } else if (delta != null)
+        {
+            changedMembers = delta.getChangedMembers().toArray(new String[0]);
+        }
+        
+        try
+        {
+            if (!packageOperations(changedMembers, connection, cle.getTargetDN(), getLane(changedMembers.length),
+                    cursor, step))
+            {
+                return false;
+            }
+            
+            if (delta != null)
+            {
+                try
+                {
+                    delta.commit();
+                } catch (IOException e)
+                {
+                    context.logMessage(LogSeverity.MILD_ERROR, "Unable to update the membership snapshot of "
+                            + cle.getTargetDN() + ": " + e.getMessage());
+                    invalidateSnapshot(cle.getTargetDN(), modification.getAttributeName());
+                }
+            }
+            return true;
+        } finally
+        {
+            if (delta != null)
+            {
+                delta.close();
+            }
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to retrieve the values an attribute had before the change from the
+     * changelog entry
+     *
+     * @param cle           the changelog entry
+     * @param attributeName the attribute name
+     * @return the values before the change or null if the changelog entry does not include them
+     */
+    private String[] getValuesBeforeChange(ChangeLogEntry cle, String attributeName)
+    {
+        try
+        {
+            UnboundIDChangelogEntry changelogEntry = new UnboundIDChangelogEntry(cle);
+            List<ChangeLogEntryAttributeExceededMaxValuesCount> exceeded =
+                    changelogEntry.getAttributesThatExceededMaxValuesCount();
+            if (exceeded != null)
+            {
+                for (ChangeLogEntryAttributeExceededMaxValuesCount attribute : exceeded)
+                {
+                    if (Attribute.getBaseName(attribute.getAttributeName()).equalsIgnoreCase(attributeName))
+                    {
+                        // the server only recorded the number of values
+                        return null;
+                    }
+                }
+            }
+            List<Attribute> beforeAttributes = changelogEntry.getUpdatedAttributesBeforeChange();
+            if (beforeAttributes == null)
+            {
+                return null;
+            }
+            for (Attribute attribute : beforeAttributes)
+            {
+                if (attribute.getBaseName().equalsIgnoreCase(attributeName))
+                {
+                    return attribute.getValues();
+                }
+            }
+            // the attribute may not be among those the changelog records, its previous values are unknown
+            return null;
+        } catch (LDAPException e)
+        {
+            context.debugCaught(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to compute the DNs present in only one of the provided arrays
+     *
+     * @param before the DNs before the change
+     * @param after  the DNs after the change
+     * @return the DNs that were added or removed
+     */
+    private static String[] getSymmetricDifference(String[] before, String[] after)
+    {
+        Set<String> normalizedBefore = new HashSet<>(before.length * 2);
+        for (String dn : before)
+        {
+            normalizedBefore.add(DNNormalizer.normalize(dn));
+        }
+        Set<String> normalizedAfter = new HashSet<>(after.length * 2);
+        List<String> result = new ArrayList<>();
+        for (String dn : after)
+        {
+            String normalizedDN = DNNormalizer.normalize(dn);
+            normalizedAfter.add(normalizedDN);
+            if (!normalizedBefore.contains(normalizedDN))
+            {
+                result.add(dn);
+            }
+        }
+        for (String dn : before)
+        {
+            if (!normalizedAfter.contains(DNNormalizer.normalize(dn)))
+            {
+                result.add(dn);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+    
+    /**
+     * Performs the necessary processing to discard the membership snapshot of a group attribute that changed
+     * without the snapshot being updated
+     *
+     * @param groupDN       the group DN
+     * @param attributeName the member attribute name
+     */
+    private void invalidateSnapshot(String groupDN, String attributeName)
+    {
+        if (snapshotStore != null)
+        {
+            snapshotStore.invalidate(groupDN, attributeName);
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to select the queue for a group change
+     *
+     * @param operations the number of operations the group change results in, known before they are created
+     * @return the queue of large group operations if the change is past the threshold, the queue otherwise
+     */
+    private DepthTrackingQueue<DereferenceOperation> getLane(int operations)
+    {
+        if (largeGroupQueue != null && largeGroupThreshold != null && operations >= largeGroupThreshold)
+        {
+            largeGroupChanges.incrementAndGet();
+            return largeGroupQueue;
+        }
+        return queue;
+    }
+    
+    /**
+     * Performs the necessary processing to compute the key under which the progress of a group change is recorded
+     * Only changes read from the changelog can be told apart from later changes to the same group
+     *
+     * @param cle the changelog entry (may be null)
+     * @return the key or null if the change cannot be identified
+     */
+    private static String getChangeKey(ChangeLogEntry cle)
+    {
+        return cle == null ? null : "change:" + cle.getChangeNumber();
+    }
+    
+    /**
+     * Convenience method to package a series of reference DNs
+     * The reference DNs already handed off before the group change was interrupted are skipped
+     *
+     * @param referenceDNs the reference DNs (must not be null)
+     * @param connection   a connection (may be null)
+     * @param groupDN      the DN of the group the reference DNs were found in (may be null)
+     * @param lane         the queue to add the operations to
+     * @param cursor       the progress of the group change
+     * @param step         the name of the attribute or modification within the group change
+     * @return false if the queue was full and the group change should be retried, true otherwise
+     */
+    private boolean packageOperations(String[] referenceDNs, LDAPInterface connection, String groupDN,
+                                      DepthTrackingQueue<DereferenceOperation> lane,
+                                      GroupChangeProgress.Cursor cursor, String step)
+    {
+        return cursor.handOff(step, referenceDNs, referenceDN -> packageOperation(referenceDN, connection, groupDN,
+                lane));
+    }
+    
     /**
      * This method will package the change in a {@code DereferenceOperation} based on configuration arguments
      *
      * @param referenceDN a reference DN (must not be null)
      * @param connection  a connection (may be null)
+     * @param groupDN     the DN of the group the reference DN was found in (may be null)
+     * @return false if the queue was full and the group change should be retried, true otherwise
+     */
+    boolean packageOperation(String referenceDN, LDAPInterface connection, String groupDN)
+    {
+        return packageOperation(referenceDN, connection, groupDN, queue);
+    }
+    
+    /**
+     * This method will package the change in a {@code DereferenceOperation} based on configuration arguments and
+     * add it to the provided queue
+     *
+     * @param referenceDN a reference DN (must not be null)
+     * @param connection  a connection (may be null)
+     * @param groupDN     the DN of the group the reference DN was found in (may be null)
+     * @param lane        the queue to add the operation to
+     * @return false if the queue was full and the group change should be retried, true otherwise
+     */
+    private boolean packageOperation(String referenceDN, LDAPInterface connection, String groupDN,
+                                     DepthTrackingQueue<DereferenceOperation> lane)
+    {
+        if (coalesce && !PendingMemberSet.getInstance().claim(strategy, referenceDN))
+        {
+            // the member is already pending, this operation would not achieve anything more
+            return true;
+        }
+        
+        DereferenceOperation derefOp = createOperation(strategy, referenceDN, connection, groupDN);
+        if (derefOp != null && enqeue(derefOp, lane))
+        {
+            return true;
+        }
+        if (coalesce)
+        {
+            PendingMemberSet.getInstance().release(strategy, referenceDN);
+        }
+        return derefOp == null;
+    }
+    
+    /**
+     * Performs the necessary processing to create an operation with the most recent connection to the source, as
+     * when reading back an operation that spilled to disk
+     *
+     * @param dereferenceStrategy the strategy
+     * @param referenceDN         a reference DN (must not be null)
+     * @param groupDN             the DN of the group the reference DN was found in (may be null)
+     * @return the operation or null if it cannot be created
      */
-    private void packageOperation(String referenceDN, LDAPInterface connection)
+    DereferenceOperation createOperation(String dereferenceStrategy, String referenceDN, String groupDN)
+    {
+        return createOperation(dereferenceStrategy, referenceDN, lastConnection, groupDN);
+    }
+    
+    /**
+     * Performs the necessary processing to create the {@code DereferenceOperation} for a strategy
+     *
+     * @param dereferenceStrategy the strategy
+     * @param referenceDN         a reference DN (must not be null)
+     * @param connection          a connection (may be null)
+     * @param groupDN             the DN of the group the reference DN was found in (may be null)
+     * @return the operation or null if it cannot be created
+     */
+    private DereferenceOperation createOperation(String dereferenceStrategy, String referenceDN,
+                                                 LDAPInterface connection, String groupDN)
     {
         DereferenceOperation derefOp = null;
         // Other ways to dereference may be added later
         // This will simply issue a modify operation on the
         // referenced entry so that it can then be picked up
         // by another sync pipe or class
-        switch (strategy)
+        switch (dereferenceStrategy)
         {
             case STRATEGY_TOUCH:
                 if (connection != null)
                 {
-                    derefOp = new TouchDereferenceOperation(context, connection, referenceDN);
+                    derefOp = new TouchDereferenceOperation(context, connection, referenceDN, touchAttribute,
+                            groupDN);
                 }
                 break;
             
             case STRATEGY_ENQUEUE_ENTRY:
                 try
                 {
+                    AsyncEntryFetcher fetcher = null;
+                    if (maxOutstandingRequests != null && connection != null)
+                    {
+                        fetcher = AsyncEntryFetcher.getInstance(context, connection, maxOutstandingRequests);
+                    }
                     derefOp = new WholeEntryDereferenceOperation(context,
-                            connection, referenceDN);
+                            connection, referenceDN, fetcher, groupDN);
                 } catch (Exception e)
                 {
                     context.logMessage(LogSeverity.MILD_ERROR, e.getMessage());
@@ -403,32 +1218,82 @@ public class GroupDereference extends SyncPipePlugin
                 break;
             
             case STRATEGY_ENQUEUE_DN:
-                derefOp = new DNDereferenceOperation(referenceDN);
+                derefOp = new DNDereferenceOperation(referenceDN, groupDN);
                 break;
         }
+        return derefOp;
+    }
+    
+    /**
+     * Performs the necessary processing to add an operation to the queue, applying the configured policy when the
+     * queue is full
+     *
+     * @param op the operation to add
+     * @return false if the operation could not be handed off, true otherwise
+     */
+    boolean enqeue(DereferenceOperation op)
+    {
+        return enqeue(op, queue);
+    }
+    
+    /**
+     * Performs the necessary processing to add an operation to the provided queue, applying the configured policy
+     * when the queue is full
+     *
+     * @param op   the operation to add
+     * @param lane the queue to add the operation to
+     * @return false if the operation could not be handed off, true otherwise
+     */
+    private boolean enqeue(DereferenceOperation op, DepthTrackingQueue<DereferenceOperation> lane)
+    {
+        queueAddAttempts.incrementAndGet();
+        if (lane.offer(op))
+        {
+            return true;
+        }
         
-        if (derefOp != null)
+        queueFullEvents.incrementAndGet();
+        switch (queueFullPolicy)
         {
-            enqeue(derefOp);
+            case QUEUE_FULL_POLICY_BLOCK:
+                if (lane.isBlocking())
+                {
+                    try
+                    {
+                        lane.put(op);
+                        return true;
+                    } catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                break;
+            
+            case QUEUE_FULL_POLICY_EXECUTE:
+                op.execute();
+                return true;
         }
+        queueAddFailures.incrementAndGet();
+        return false;
     }
     
-    private void enqeue(DereferenceOperation op)
+    /**
+     * Retrieves the pool of threads processing the dereference queue
+     *
+     * @return the pool or null if the extension is not initialized
+     */
+    DereferenceWorkerPool getPool()
     {
-        queueAddAttempts.incrementAndGet();
-        boolean addSuccessful = queue.add(op);
-        if ( !addSuccessful ) {
-            queueAddFailures.incrementAndGet();
-        }
-        updateQueueMax();
+        return pool;
     }
-
-    private synchronized void updateQueueMax()
+    
+    /**
+     * Retrieves the pool of threads processing the changes to large groups
+     *
+     * @return the pool or null if large groups are not processed apart
+     */
+    DereferenceWorkerPool getLargeGroupPool()
     {
-        Long size = new Long(queue.size());
-        if ( size > maxQueueSize.get() )
-        {
-            maxQueueSize.set(size);
-        }
+        return largeGroupPool;
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,14 @@
 package com.pingidentity.sync.pipe;
 
+import com.pingidentity.sync.source.MemberDNQueue;
+import com.pingidentity.sync.source.MemberEntryQueue;
+import com.pingidentity.util.AdaptiveRateLimiter;
+import com.pingidentity.util.DepthTrackingQueue;
+import com.pingidentity.util.SpillOverQueue;
 import com.unboundid.directory.sdk.common.api.MonitorProvider;
 import com.unboundid.directory.sdk.common.config.MonitorProviderConfig;
 import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.directory.sdk.sync.types.ChangeRecord;
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
@@ -14,7 +20,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 public class GroupDereferenceMonitorProvider extends MonitorProvider {
 
@@ -79,18 +85,121 @@ public class GroupDereferenceMonitorProvider extends MonitorProvider {
         return ResultCode.SUCCESS;
     }
 
+    /**
+     * Performs the necessary processing to report the threads of the provided pools
+     *
+     * @param result the attributes to add to
+     * @param prefix the prefix of the attribute names
+     * @param pools  the pools to report together
+     */
+    private static void addPoolAttributes(final List<Attribute> result, final String prefix,
+                                          final List<DereferenceWorkerPool> pools) {
+        long active = 0L;
+        long started = 0L;
+        long retired = 0L;
+        long leaked = 0L;
+        long scaleUps = 0L;
+        long scaleDowns = 0L;
+        long latency = 0L;
+        for (DereferenceWorkerPool pool : pools) {
+            active += pool.getActiveWorkers();
+            started += pool.getWorkersStarted();
+            retired += pool.getWorkersRetired();
+            leaked += pool.getWorkersLeaked();
+            scaleUps += pool.getScaleUps();
+            scaleDowns += pool.getScaleDowns();
+            latency += pool.getAverageLatencyNanos();
+        }
+        result.add(new Attribute(prefix + "dereference-threads",Long.toString(active)));
+        result.add(new Attribute(prefix + "dereference-threads-started",Long.toString(started)));
+        result.add(new Attribute(prefix + "dereference-threads-retired",Long.toString(retired)));
+        result.add(new Attribute(prefix + "dereference-threads-not-exited",Long.toString(leaked)));
+        result.add(new Attribute(prefix + "dereference-scale-ups",Long.toString(scaleUps)));
+        result.add(new Attribute(prefix + "dereference-scale-downs",Long.toString(scaleDowns)));
+        result.add(new Attribute(prefix + "average-operation-latency-micros",
+                Long.toString(TimeUnit.NANOSECONDS.toMicros(pools.isEmpty() ? 0L : latency / pools.size()))));
+    }
+
     @Override
     public List<Attribute> getMonitorAttributes() {
         List<Attribute> result = new ArrayList<>();
 
         result.add(new Attribute("monitor-last-updated",dateFormat.format(Calendar.getInstance().getTime())));
 
-        Queue<DereferenceOperation> queue = DereferenceOperationQueue.getInstance();
+        DepthTrackingQueue<DereferenceOperation> queue = DereferenceOperationQueue.peekInstance();
 
-        result.add(new Attribute("current-queue-size",Integer.toString(queue.size())));
-        result.add(new Attribute("max-queue-size",Long.toString(GroupDereference.maxQueueSize.get())));
+        result.add(new Attribute("current-queue-size",Integer.toString(queue == null ? 0 : queue.size())));
+        Integer capacity = DereferenceOperationQueue.getCapacity();
+        if (capacity != null) {
+            result.add(new Attribute("queue-capacity",Integer.toString(capacity)));
+        }
+        result.add(new Attribute("max-queue-size",Long.toString(queue == null ? 0L : queue.getHighWaterMark())));
         result.add(new Attribute("queue-add-attempts",Long.toString(GroupDereference.queueAddAttempts.get())));
         result.add(new Attribute("queue-add-failures",Long.toString(GroupDereference.queueAddFailures.get())));
+        result.add(new Attribute("queue-full-events",Long.toString(GroupDereference.queueFullEvents.get())));
+        DepthTrackingQueue<DereferenceOperation> largeGroupQueue = DereferenceOperationQueue.peekLargeGroupInstance();
+        if (largeGroupQueue != null) {
+            result.add(new Attribute("current-large-group-queue-size",Integer.toString(largeGroupQueue.size())));
+            result.add(new Attribute("max-large-group-queue-size",Long.toString(largeGroupQueue.getHighWaterMark())));
+            Integer largeGroupCapacity = DereferenceOperationQueue.getLargeGroupCapacity();
+            if (largeGroupCapacity != null) {
+                result.add(new Attribute("large-group-queue-capacity",Integer.toString(largeGroupCapacity)));
+            }
+        }
+        result.add(new Attribute("large-group-changes",Long.toString(GroupDereference.largeGroupChanges.get())));
+        SpillOverQueue<DereferenceOperation> spillOverQueue = DereferenceOperationQueue.getSpillOverQueue();
+        if (spillOverQueue != null) {
+            result.add(new Attribute("spilled-operations",Long.toString(spillOverQueue.getSpilledCount())));
+            result.add(new Attribute("spill-failures",Long.toString(spillOverQueue.getSpillFailures())));
+        }
+        PartitionedOperationQueue partitionedQueue = DereferenceOperationQueue.getPartitionedQueue();
+        if (partitionedQueue != null) {
+            result.add(new Attribute("partition-lanes",Integer.toString(partitionedQueue.getLaneCount())));
+            result.add(new Attribute("max-lane-depth",Integer.toString(partitionedQueue.getMaxLaneDepth())));
+            result.add(new Attribute("lane-steals",Long.toString(partitionedQueue.getSteals())));
+        }
+        FairOperationQueue fairQueue = DereferenceOperationQueue.getFairQueue();
+        if (fairQueue != null) {
+            result.add(new Attribute("small-groups-pending",Integer.toString(fairQueue.getSmallGroupCount())));
+            result.add(new Attribute("large-groups-pending",Integer.toString(fairQueue.getLargeGroupCount())));
+            result.add(new Attribute("groups-past-small-group-threshold",Long.toString(fairQueue.getPromotions())));
+        }
+        AdaptiveRateLimiter rateLimiter = GroupDereference.rateLimiter;
+        if (rateLimiter != null) {
+            result.add(new Attribute("current-rate-per-second",String.format("%.1f",rateLimiter.getRate())));
+            result.add(new Attribute("min-rate-per-second",String.format("%.0f",rateLimiter.getFloor())));
+            result.add(new Attribute("max-rate-per-second",String.format("%.0f",rateLimiter.getCeiling())));
+            result.add(new Attribute("rate-increases",Long.toString(rateLimiter.getIncreases())));
+            result.add(new Attribute("rate-decreases",Long.toString(rateLimiter.getDecreases())));
+        }
+        List<DereferenceWorkerPool> pools = new ArrayList<>();
+        List<DereferenceWorkerPool> largeGroupPools = new ArrayList<>();
+        for (GroupDereference instance : GroupDereference.instances) {
+            if (instance.getPool() != null) {
+                pools.add(instance.getPool());
+            }
+            if (instance.getLargeGroupPool() != null) {
+                largeGroupPools.add(instance.getLargeGroupPool());
+            }
+        }
+        addPoolAttributes(result, "", pools);
+        if (!largeGroupPools.isEmpty()) {
+            addPoolAttributes(result, "large-group-", largeGroupPools);
+        }
+        result.add(new Attribute("async-requests-in-flight",Long.toString(AsyncEntryFetcher.requestsInFlight.get())));
+
+        PendingMemberSet pendingMembers = PendingMemberSet.getInstance();
+        result.add(new Attribute("pending-members",Integer.toString(pendingMembers.size())));
+        result.add(new Attribute("coalesced-members",Long.toString(pendingMembers.getMerges())));
+        result.add(new Attribute("coalesce-ratio",String.format("%.4f",pendingMembers.getMergeRatio())));
+
+        DepthTrackingQueue<ChangeRecord> memberDNQueue = MemberDNQueue.getInstance();
+        result.add(new Attribute("current-member-dn-queue-size",Integer.toString(memberDNQueue.size())));
+        result.add(new Attribute("max-member-dn-queue-size",Long.toString(memberDNQueue.getHighWaterMark())));
+        result.add(new Attribute("spilled-member-dns",Long.toString(MemberDNQueue.getSpillOverQueue().getSpilledCount())));
+        DepthTrackingQueue<ChangeRecord> memberEntryQueue = MemberEntryQueue.getInstance();
+        result.add(new Attribute("current-member-entry-queue-size",Integer.toString(memberEntryQueue.size())));
+        result.add(new Attribute("max-member-entry-queue-size",Long.toString(memberEntryQueue.getHighWaterMark())));
 
         return result;
     }
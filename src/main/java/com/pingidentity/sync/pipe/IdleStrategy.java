@@ -0,0 +1,21 @@
+package com.pingidentity.sync.pipe;
+
+import java.util.Queue;
+
+/**
+ * This interface defines how a {@code DereferenceThread} retrieves the next operation from the queue and how it
+ * waits when there is nothing to process
+ * <p>
+ * Implementations are not expected to be thread safe, each thread gets its own instance
+ */
+public interface IdleStrategy
+{
+    /**
+     * Retrieves the next operation from the queue, waiting according to the strategy if the queue is empty
+     *
+     * @param queue the queue to retrieve the operation from
+     * @return the next operation or null if none was available after waiting
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public DereferenceOperation next(Queue<DereferenceOperation> queue) throws InterruptedException;
+}
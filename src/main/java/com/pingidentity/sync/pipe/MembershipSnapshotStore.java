@@ -0,0 +1,531 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DNNormalizer;
+import com.unboundid.util.StaticUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a snapshot of the members of each group so that only the members that were actually added or
+ * removed since the previous version of the group need to be dereferenced
+ * <p>
+ * Each group attribute is stored in its own file. Members are identified by a 64-bit hash of their normalized DN,
+ * kept sorted so that two versions can be compared with a single merge pass. The DNs themselves are kept in the file
+ * as well so that removed members can still be dereferenced. Files are read sequentially through small buffers so
+ * that large groups do not need to be loaded on the heap, and they survive restarts.
+ * <p>
+ * A group attribute is only locked while its snapshot is read or replaced, not while the delta is processed. Each
+ * snapshot carries a generation that is checked again when a delta is committed: if another delta of the same group
+ * attribute was committed in the meantime, both were computed against the same snapshot and neither can be trusted
+ * as a base, so the snapshot is dropped and the next version of the group is processed in full.
+ * <p>
+ * File layout: magic (int), member count N (int), generation (long), N sorted hashes (long), N+1 offsets (long) in
+ * the DN section, DN section (UTF-8)
+ */
+public class MembershipSnapshotStore
+{
+    private static final int MAGIC = 0x47534E32;
+    private static final int HEADER_SIZE = 16;
+    private static final String SUFFIX = ".snapshot";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+
+    /**
+     * Performs the necessary processing to initialize the store
+     *
+     * @param dir the directory where snapshots are stored
+     * @throws IOException if the directory cannot be created
+     */
+    public MembershipSnapshotStore(final File dir) throws IOException
+    {
+        directory = dir;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create membership snapshot directory " + directory);
+        }
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Performs the necessary processing to compare the provided members with the snapshot of the group attribute
+     * The snapshot is only updated when the returned delta is committed
+     *
+     * @param groupDN       the DN of the group
+     * @param attributeName the name of the member attribute
+     * @param members       the current members (may be empty)
+     * @return the delta, which must be closed
+     * @throws IOException if the snapshot cannot be read
+     */
+    public Delta diff(final String groupDN, final String attributeName, final String[] members) throws IOException
+    {
+        long key = hash(StaticUtils.toLowerCase(attributeName) + ':' + DNNormalizer.normalize(groupDN));
+        File file = new File(directory, String.format("%016x", key) + SUFFIX);
+
+        long[] hashes = new long[members.length];
+        int[] order = new int[members.length];
+        for (int i = 0; i < members.length; i++)
+        {
+            hashes[i] = hash(DNNormalizer.normalize(members[i]));
+            order[i] = i;
+        }
+        sort(hashes, order);
+        int n = dedupe(hashes, order);
+
+        List<String> changed = new ArrayList<>();
+        long generation;
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try (Snapshot previous = Snapshot.read(file))
+        {
+            generation = previous == null ? 0L : previous.generation;
+            int i = 0;
+            int j = 0;
+            int previousCount = previous == null ? 0 : previous.count;
+            while (i < n || j < previousCount)
+            {
+                long current = i < n ? hashes[i] : Long.MAX_VALUE;
+                long old = j < previousCount ? previous.getHash(j) : Long.MAX_VALUE;
+                if (i < n && (j >= previousCount || current < old))
+                {
+                    changed.add(members[order[i++]]);
+                } else if (j < previousCount && (i >= n || old < current))
+                {
+                    changed.add(previous.getDN(j++));
+                } else
+                {
+                    i++;
+                    j++;
+                }
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        return new Delta(file, lock, generation, members, hashes, order, n, changed);
+    }
+
+    /**
+     * Performs the necessary processing to forget the snapshot of a group attribute, so that the next version of
+     * the group is processed in full
+     *
+     * @param groupDN       the DN of the group
+     * @param attributeName the name of the member attribute
+     */
+    public void invalidate(final String groupDN, final String attributeName)
+    {
+        long key = hash(StaticUtils.toLowerCase(attributeName) + ':' + DNNormalizer.normalize(groupDN));
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try
+        {
+            new File(directory, String.format("%016x", key) + SUFFIX).delete();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock getLock(final long key)
+    {
+        return locks[(int) (key & (locks.length - 1))];
+    }
+
+    /**
+     * Performs the necessary processing to read the generation of the snapshot of a group attribute
+     * The caller must hold the lock of the group attribute
+     *
+     * @param file the snapshot file
+     * @return the generation or 0 if there is no valid snapshot
+     * @throws IOException if the snapshot cannot be read
+     */
+    private static long readGeneration(final File file) throws IOException
+    {
+        try (Snapshot snapshot = Snapshot.read(file))
+        {
+            return snapshot == null ? 0L : snapshot.generation;
+        }
+    }
+
+    /**
+     * This class holds the difference between the current members of a group attribute and its snapshot
+     */
+    public class Delta implements Closeable
+    {
+        private final File file;
+        private final ReentrantLock lock;
+        private final long generation;
+        private final String[] members;
+        private final long[] hashes;
+        private final int[] order;
+        private final int count;
+        private final List<String> changedMembers;
+        private boolean closed = false;
+
+        private Delta(final File f, final ReentrantLock l, final long g, final String[] m, final long[] h,
+                      final int[] o, final int n, final List<String> changed)
+        {
+            file = f;
+            lock = l;
+            generation = g;
+            members = m;
+            hashes = h;
+            order = o;
+            count = n;
+            changedMembers = changed;
+        }
+
+        /**
+         * Retrieves the members that were added or removed since the snapshot
+         *
+         * @return the DNs of the changed members
+         */
+        public List<String> getChangedMembers()
+        {
+            return changedMembers;
+        }
+
+        /**
+         * Performs the necessary processing to replace the snapshot with the current members
+         * If another delta of the group attribute was committed since this one was computed, the snapshot is dropped
+         * instead so that the next version of the group is processed in full
+         *
+         * @return true if the snapshot was replaced, false if it was dropped
+         * @throws IOException if the snapshot cannot be written
+         */
+        public boolean commit() throws IOException
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("The membership delta was already closed");
+            }
+            closed = true;
+            lock.lock();
+            try
+            {
+                if (readGeneration(file) != generation)
+                {
+                    Files.deleteIfExists(file.toPath());
+                    return false;
+                }
+                if (count == 0)
+                {
+                    Files.deleteIfExists(file.toPath());
+                    return true;
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp), 65536)))
+                {
+                    byte[][] dns = new byte[count][];
+                    out.writeInt(MAGIC);
+                    out.writeInt(count);
+                    out.writeLong(generation + 1L);
+                    for (int i = 0; i < count; i++)
+                    {
+                        out.writeLong(hashes[i]);
+                        dns[i] = members[order[i]].getBytes(StandardCharsets.UTF_8);
+                    }
+                    long offset = 0L;
+                    out.writeLong(offset);
+                    for (int i = 0; i < count; i++)
+                    {
+                        offset += dns[i].length;
+                        out.writeLong(offset);
+                    }
+                    for (int i = 0; i < count; i++)
+                    {
+                        out.write(dns[i]);
+                    }
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Performs the necessary processing to discard the delta, leaving the snapshot as is if it was not committed
+         */
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    /**
+     * This class provides read access to a snapshot file through its channel
+     * Hashes, offsets and DNs are each read through their own buffer since the comparison walks all three in order
+     */
+    private static class Snapshot implements Closeable
+    {
+        private final FileChannel channel;
+        private final int count;
+        private final long generation;
+        private final long offsetsPosition;
+        private final long dnsPosition;
+        private final Window hashes;
+        private final Window offsets;
+        private final Window dns;
+
+        private Snapshot(final FileChannel c, final int n, final long g)
+        {
+            channel = c;
+            count = n;
+            generation = g;
+            offsetsPosition = HEADER_SIZE + 8L * n;
+            dnsPosition = offsetsPosition + 8L * (n + 1);
+            hashes = new Window(c);
+            offsets = new Window(c);
+            dns = new Window(c);
+        }
+
+        static Snapshot read(final File file) throws IOException
+        {
+            if (!file.exists())
+            {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try
+            {
+                long size = channel.size();
+                if (size < HEADER_SIZE)
+                {
+                    channel.close();
+                    return null;
+                }
+                Window header = new Window(channel);
+                if (header.getInt(0L) != MAGIC)
+                {
+                    channel.close();
+                    return null;
+                }
+                int n = header.getInt(4L);
+                if (n < 0 || HEADER_SIZE + 16L * n + 8L > size)
+                {
+                    channel.close();
+                    return null;
+                }
+                return new Snapshot(channel, n, header.getLong(8L));
+            } catch (IOException | RuntimeException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+
+        long getHash(final int index) throws IOException
+        {
+            return hashes.getLong(HEADER_SIZE + 8L * index);
+        }
+
+        String getDN(final int index) throws IOException
+        {
+            long start = offsets.getLong(offsetsPosition + 8L * index);
+            long end = offsets.getLong(offsetsPosition + 8L * (index + 1));
+            if (start < 0L || end < start || end - start > Integer.MAX_VALUE)
+            {
+                throw new IOException("Invalid member offsets in membership snapshot");
+            }
+            return new String(dns.get(dnsPosition + start, (int) (end - start)), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * This class buffers positional reads from a channel
+     */
+    private static class Window
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long start = -1L;
+
+        private Window(final FileChannel c)
+        {
+            channel = c;
+        }
+
+        int getInt(final long position) throws IOException
+        {
+            fill(position, 4);
+            return buffer.getInt((int) (position - start));
+        }
+
+        long getLong(final long position) throws IOException
+        {
+            fill(position, 8);
+            return buffer.getLong((int) (position - start));
+        }
+
+        byte[] get(final long position, final int length) throws IOException
+        {
+            byte[] bytes = new byte[length];
+            if (length > buffer.capacity())
+            {
+                ByteBuffer target = ByteBuffer.wrap(bytes);
+                readFully(target, position);
+                if (target.hasRemaining())
+                {
+                    throw new EOFException("Truncated membership snapshot");
+                }
+                return bytes;
+            }
+            fill(position, length);
+            System.arraycopy(buffer.array(), (int) (position - start), bytes, 0, length);
+            return bytes;
+        }
+
+        private void fill(final long position, final int length) throws IOException
+        {
+            if (start >= 0L && position >= start && position + length <= start + buffer.limit())
+            {
+                return;
+            }
+            buffer.clear();
+            readFully(buffer, position);
+            buffer.flip();
+            start = position;
+            if (buffer.limit() < length)
+            {
+                throw new EOFException("Truncated membership snapshot");
+            }
+        }
+
+        private void readFully(final ByteBuffer target, final long position) throws IOException
+        {
+            long p = position;
+            while (target.hasRemaining())
+            {
+                int read = channel.read(target, p);
+                if (read < 0)
+                {
+                    return;
+                }
+                p += read;
+            }
+        }
+    }
+    /**
+     * Performs the necessary processing to compute a 64-bit FNV-1a hash of the provided string, with a final mix to
+     * spread the bits
+     *
+     * @param value the value to hash
+     * @return the hash
+     */
+    static long hash(final String value)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++)
+        {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+     * Performs the necessary processing to sort hashes along with the index of the member each one was computed from
+     * A heap sort keeps both arrays in place, so large groups need no other copy of their hashes
+     *
+     * @param hashes the hashes
+     * @param order  the member indexes, moved along with the hashes
+     */
+    private static void sort(final long[] hashes, final int[] order)
+    {
+        int n = hashes.length;
+        for (int i = n / 2 - 1; i >= 0; i--)
+        {
+            siftDown(hashes, order, i, n);
+        }
+        for (int end = n - 1; end > 0; end--)
+        {
+            swap(hashes, order, 0, end);
+            siftDown(hashes, order, 0, end);
+        }
+    }
+
+    private static void siftDown(final long[] hashes, final int[] order, final int from, final int end)
+    {
+        int root = from;
+        int child;
+        while ((child = 2 * root + 1) < end)
+        {
+            if (child + 1 < end && hashes[child + 1] > hashes[child])
+            {
+                child++;
+            }
+            if (hashes[root] >= hashes[child])
+            {
+                return;
+            }
+            swap(hashes, order, root, child);
+            root = child;
+        }
+    }
+
+    private static void swap(final long[] hashes, final int[] order, final int i, final int j)
+    {
+        long hash = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = hash;
+        int index = order[i];
+        order[i] = order[j];
+        order[j] = index;
+    }
+
+    /**
+     * Performs the necessary processing to remove duplicates from sorted hashes
+     * The first member with a given hash is the one kept in the snapshot
+     *
+     * @param hashes the sorted hashes
+     * @param order  the member indexes matching the hashes
+     * @return the number of distinct hashes
+     */
+    private static int dedupe(final long[] hashes, final int[] order)
+    {
+        if (hashes.length == 0)
+        {
+            return 0;
+        }
+        int distinct = 1;
+        for (int i = 1; i < hashes.length; i++)
+        {
+            if (hashes[i] != hashes[distinct - 1])
+            {
+                hashes[distinct] = hashes[i];
+                order[distinct++] = order[i];
+            } else if (order[i] < order[distinct - 1])
+            {
+                order[distinct - 1] = order[i];
+            }
+        }
+        return distinct;
+    }
+}
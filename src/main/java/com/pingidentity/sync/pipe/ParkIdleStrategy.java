@@ -0,0 +1,37 @@
+package com.pingidentity.sync.pipe;
+
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This idle strategy parks the thread for a fixed period of time whenever the queue is empty
+ */
+public class ParkIdleStrategy implements IdleStrategy
+{
+    long parkNanos;
+    
+    /**
+     * Performs the necessary processing to initialize the strategy
+     *
+     * @param park the park period in nanoseconds
+     */
+    public ParkIdleStrategy(final long park)
+    {
+        parkNanos = park;
+    }
+    
+    @Override
+    public DereferenceOperation next(Queue<DereferenceOperation> queue) throws InterruptedException
+    {
+        DereferenceOperation operation = queue.poll();
+        if (operation == null)
+        {
+            LockSupport.parkNanos(this, parkNanos);
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+        return operation;
+    }
+}
@@ -0,0 +1,302 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DNNormalizer;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This queue routes dereference operations to lanes by a hash of the normalized member DN so that the operations of a
+ * member are always processed in order and never at the same time, while the operations of different members are
+ * processed by several threads
+ * <p>
+ * A dereference thread registers as a worker and is assigned a home set of lanes. When it polls an operation, it
+ * holds the lane the operation came from until it calls {@link #release()}, once the operation (or the batch it is
+ * part of) has been executed. Other workers skip held lanes. A worker looks at its home lanes first and steals from
+ * any other lane that is not held when its home lanes are empty, so that a busy lane never leaves the other workers
+ * idle.
+ * <p>
+ * Threads that did not register, such as a thread clearing the queue, take operations without holding lanes.
+ * Operations executed asynchronously, as with asynchronous entry fetches, are only ordered up to the point where their
+ * request is sent.
+ */
+public class PartitionedOperationQueue extends AbstractQueue<DereferenceOperation>
+{
+    private final Lane[] lanes;
+    private final int lanesPerWorker;
+    private final Integer capacity;
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final AtomicInteger nextHome = new AtomicInteger(0);
+    private final AtomicLong steals = new AtomicLong(0L);
+    private final ThreadLocal<Worker> workers = new ThreadLocal<>();
+
+    /**
+     * Performs the necessary processing to initialize the queue
+     *
+     * @param workerCount    the expected number of workers
+     * @param lanesPerWorker the number of lanes in the home set of each worker
+     * @param queueCapacity  the maximum number of operations the queue may hold (null = unbounded)
+     */
+    public PartitionedOperationQueue(final int workerCount, final int lanesPerWorker, final Integer queueCapacity)
+    {
+        this.lanesPerWorker = Math.max(1, lanesPerWorker);
+        lanes = new Lane[Math.max(1, workerCount) * this.lanesPerWorker];
+        for (int i = 0; i < lanes.length; i++)
+        {
+            lanes[i] = new Lane();
+        }
+        capacity = queueCapacity;
+    }
+
+    /**
+     * Performs the necessary processing to register the calling thread as a worker and assign it a home set of lanes
+     */
+    public void register()
+    {
+        int homes = lanes.length / lanesPerWorker;
+        workers.set(new Worker((nextHome.getAndIncrement() % homes) * lanesPerWorker));
+    }
+
+    /**
+     * Performs the necessary processing to release the lanes the calling thread took operations from, so that the
+     * next operations of their members may be processed
+     */
+    public void release()
+    {
+        Worker worker = workers.get();
+        if (worker == null)
+        {
+            return;
+        }
+        for (Lane lane : worker.held)
+        {
+            lane.owner.set(null);
+        }
+        worker.held.clear();
+    }
+
+    @Override
+    public boolean offer(DereferenceOperation operation)
+    {
+        if (capacity != null)
+        {
+            int c;
+            do
+            {
+                c = count.get();
+                if (c >= capacity)
+                {
+                    return false;
+                }
+            } while (!count.compareAndSet(c, c + 1));
+        } else
+        {
+            count.incrementAndGet();
+        }
+        lanes[index(operation)].operations.offer(operation);
+        return true;
+    }
+
+    @Override
+    public DereferenceOperation poll()
+    {
+        Worker worker = workers.get();
+        if (worker == null)
+        {
+            for (Lane lane : lanes)
+            {
+                DereferenceOperation operation = take(lane);
+                if (operation != null)
+                {
+                    return operation;
+                }
+            }
+            return null;
+        }
+        // lanes already held first so that a batch does not spread over more lanes than needed
+        for (Lane lane : worker.held)
+        {
+            DereferenceOperation operation = take(lane);
+            if (operation != null)
+            {
+                return operation;
+            }
+        }
+        Thread thread = Thread.currentThread();
+        for (int i = 0; i < lanes.length; i++)
+        {
+            Lane lane = lanes[(worker.home + i) % lanes.length];
+            if (lane.operations.isEmpty() || !lane.owner.compareAndSet(null, thread))
+            {
+                continue;
+            }
+            DereferenceOperation operation = take(lane);
+            if (operation == null)
+            {
+                lane.owner.set(null);
+                continue;
+            }
+            worker.held.add(lane);
+            if (i >= lanesPerWorker)
+            {
+                steals.incrementAndGet();
+            }
+            return operation;
+        }
+        return null;
+    }
+
+    @Override
+    public DereferenceOperation peek()
+    {
+        for (Lane lane : lanes)
+        {
+            DereferenceOperation operation = lane.operations.peek();
+            if (operation != null)
+            {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<DereferenceOperation> iterator()
+    {
+        return new Iterator<DereferenceOperation>()
+        {
+            private int index = 0;
+            private Iterator<DereferenceOperation> current = lanes[0].operations.iterator();
+            private Iterator<DereferenceOperation> last = null;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (!current.hasNext() && index + 1 < lanes.length)
+                {
+                    current = lanes[++index].operations.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public DereferenceOperation next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                last = current;
+                return current.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                if (last == null)
+                {
+                    throw new IllegalStateException();
+                }
+                last.remove();
+                last = null;
+                count.decrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public int size()
+    {
+        return Math.max(0, count.get());
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return count.get() <= 0;
+    }
+
+    /**
+     * Retrieves the number of lanes
+     *
+     * @return the number of lanes
+     */
+    public int getLaneCount()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * Retrieves the number of operations held by the most loaded lane
+     *
+     * @return the largest lane depth
+     */
+    public int getMaxLaneDepth()
+    {
+        int max = 0;
+        for (Lane lane : lanes)
+        {
+            max = Math.max(max, lane.operations.size());
+        }
+        return max;
+    }
+
+    /**
+     * Retrieves the number of operations workers took from lanes outside of their home set
+     *
+     * @return the number of steals
+     */
+    public long getSteals()
+    {
+        return steals.get();
+    }
+
+    private DereferenceOperation take(final Lane lane)
+    {
+        DereferenceOperation operation = lane.operations.poll();
+        if (operation != null)
+        {
+            count.decrementAndGet();
+        }
+        return operation;
+    }
+
+    private int index(final DereferenceOperation operation)
+    {
+        String dn = operation.getDN();
+        int hash = dn == null ? 0 : DNNormalizer.normalize(dn).hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * This class holds the operations of a lane and the worker processing them
+     */
+    private static class Lane
+    {
+        final Queue<DereferenceOperation> operations = new ConcurrentLinkedQueue<>();
+        final AtomicReference<Thread> owner = new AtomicReference<>(null);
+    }
+
+    /**
+     * This class holds the home set and the lanes held by a worker
+     */
+    private static class Worker
+    {
+        final int home;
+        final List<Lane> held = new ArrayList<>(4);
+
+        Worker(final int h)
+        {
+            home = h;
+        }
+    }
+}
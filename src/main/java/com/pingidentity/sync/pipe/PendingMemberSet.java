@@ -0,0 +1,120 @@
+package com.pingidentity.sync.pipe;
+
+
+import com.pingidentity.util.DNNormalizer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton pattern to keep track of the member DNs that are pending dereferencing
+ * <p>
+ * When a member is already pending for a given strategy, dereferencing it again would produce the same result, so
+ * the duplicate can be dropped. A member is claimed when its operation is packaged and released at the point after
+ * which a new change must be dereferenced again:
+ * - when the operation executes for the touch and enqueue-member-entry strategies, since the touch or the fetch
+ * happens then
+ * - when the sync source picks the DN from the {@code MemberDNQueue} for the enqueue-member-dn strategy, since the
+ * entry is only fetched by the source after that
+ */
+public class PendingMemberSet
+{
+    private static PendingMemberSet instance = null;
+    
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong claimAttempts = new AtomicLong(0L);
+    private final AtomicLong merges = new AtomicLong(0L);
+    
+    private PendingMemberSet()
+    {
+    }
+    
+    public static synchronized PendingMemberSet getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PendingMemberSet();
+        }
+        return instance;
+    }
+    
+    /**
+     * Performs the necessary processing to mark a member as pending
+     *
+     * @param strategy the dereference strategy
+     * @param dn       the member DN
+     * @return true if the member was not pending already, false if it was and the new operation can be dropped
+     */
+    public boolean claim(final String strategy, final String dn)
+    {
+        claimAttempts.incrementAndGet();
+        if (pending.add(getKey(strategy, dn)))
+        {
+            return true;
+        }
+        merges.incrementAndGet();
+        return false;
+    }
+    
+    /**
+     * Performs the necessary processing to mark a member as no longer pending
+     *
+     * @param strategy the dereference strategy
+     * @param dn       the member DN (may be null)
+     */
+    public void release(final String strategy, final String dn)
+    {
+        // avoid normalizing DNs when coalescing is not in use
+        if (dn == null || pending.isEmpty())
+        {
+            return;
+        }
+        pending.remove(getKey(strategy, dn));
+    }
+    
+    /**
+     * Performs the necessary processing to mark all members as no longer pending, when some of them can no longer be
+     * released individually
+     * Members that are still queued may then be dereferenced twice, which is harmless
+     */
+    public void clear()
+    {
+        pending.clear();
+    }
+    
+    /**
+     * Retrieves the number of members currently pending
+     *
+     * @return the number of pending members
+     */
+    public int size()
+    {
+        return pending.size();
+    }
+    
+    /**
+     * Retrieves the number of operations dropped because the member was already pending
+     *
+     * @return the number of merged operations
+     */
+    public long getMerges()
+    {
+        return merges.get();
+    }
+    
+    /**
+     * Retrieves the proportion of operations that were merged with an already pending one
+     *
+     * @return the merge ratio, between 0 and 1
+     */
+    public double getMergeRatio()
+    {
+        long attempts = claimAttempts.get();
+        return attempts == 0L ? 0.0 : (double) merges.get() / attempts;
+    }
+    
+    private static String getKey(final String strategy, final String dn)
+    {
+        return strategy + ':' + DNNormalizer.normalize(dn);
+    }
+}
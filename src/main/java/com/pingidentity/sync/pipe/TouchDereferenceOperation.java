@@ -1,10 +1,19 @@
 package com.pingidentity.sync.pipe;
 
+import com.pingidentity.util.AdaptiveRateLimiter;
 import com.unboundid.directory.sdk.common.types.LogSeverity;
 import com.unboundid.directory.sdk.sync.types.SyncServerContext;
 import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -14,8 +23,13 @@ import java.util.List;
  * high availability mechanisms in stock sync sources.
  * The drawback is obviously that this may generate extraneous
  * write load on the source server
+ *
+ * To limit that load, the entry may be touched by replacing a single
+ * dedicated attribute with the current time rather than deleting and
+ * adding back an objectClass value, and touches may be batched in
+ * multi-update extended requests
  */
-public class TouchDereferenceOperation implements DereferenceOperation
+public class TouchDereferenceOperation implements BatchableDereferenceOperation
 {
     final static List<Modification> modifications = new ArrayList<Modification>(2){{
         add(new Modification(ModificationType.DELETE,
@@ -27,6 +41,8 @@ public class TouchDereferenceOperation implements DereferenceOperation
     LDAPInterface connection;
     String dn;
     SyncServerContext context;
+    String touchAttribute = null;
+    String groupDN = null;
     
     public TouchDereferenceOperation(final SyncServerContext ctx,
                                      final LDAPInterface c, final String d)
@@ -36,30 +52,183 @@ public class TouchDereferenceOperation implements DereferenceOperation
         context = ctx;
     }
     
+    /**
+     * Performs the necessary processing to initialize an operation touching the entry through a single attribute
+     *
+     * @param ctx the server context
+     * @param c   the connection to the source
+     * @param d   the DN of the entry to touch
+     * @param a   the attribute to replace with the current time (null = delete and add back objectClass top)
+     */
+    public TouchDereferenceOperation(final SyncServerContext ctx,
+                                     final LDAPInterface c, final String d, final String a)
+    {
+        this(ctx, c, d);
+        touchAttribute = a;
+    }
+    
+    /**
+     * Performs the necessary processing to initialize an operation touching the entry through a single attribute
+     *
+     * @param ctx the server context
+     * @param c   the connection to the source
+     * @param d   the DN of the entry to touch
+     * @param a   the attribute to replace with the current time (null = delete and add back objectClass top)
+     * @param g   the DN of the group whose change caused the operation (may be null)
+     */
+    public TouchDereferenceOperation(final SyncServerContext ctx,
+                                     final LDAPInterface c, final String d, final String a, final String g)
+    {
+        this(ctx, c, d, a);
+        groupDN = g;
+    }
+    
     @Override
-    public void execute()
+    public ResultCode execute()
     {
         if (dn == null)
         {
             context.logMessage(LogSeverity.SEVERE_ERROR,
                     "DN not available. Aborting dereference operation");
-            return;
+            return ResultCode.LOCAL_ERROR;
         }
         if (connection == null)
         {
             context.logMessage(LogSeverity.INFO,
                     "Connection not available to execute this dereference operation for entry "
                             + dn);
-            return;
+            return ResultCode.LOCAL_ERROR;
+        }
+        
+        PendingMemberSet.getInstance().release(GroupDereference.STRATEGY_TOUCH, dn);
+        try
+        {
+            return connection.modify(createModifyRequest()).getResultCode();
+        } catch (LDAPException e)
+        {
+            context.logMessage(LogSeverity.MILD_ERROR, e.getMessage());
+            return e.getResultCode();
+        }
+    }
+    
+    @Override
+    public String getDN()
+    {
+        return dn;
+    }
+    
+    @Override
+    public String getGroupDN()
+    {
+        return groupDN;
+    }
+    
+    @Override
+    public boolean canBatchWith(DereferenceOperation other)
+    {
+        if (!(other instanceof TouchDereferenceOperation))
+        {
+            return false;
+        }
+        TouchDereferenceOperation otherTouch = (TouchDereferenceOperation) other;
+        return otherTouch.connection == connection && otherTouch.dn != null
+                && (touchAttribute == null ? otherTouch.touchAttribute == null
+                : touchAttribute.equalsIgnoreCase(otherTouch.touchAttribute));
+    }
+    
+    /**
+     * Performs the necessary processing to touch all the entries of the batch with a single multi-update extended
+     * request. If the connection or the server does not support it, entries are touched one by one
+     *
+     * @param batch the operations to execute, starting with this one
+     */
+    @Override
+    public ResultCode executeBatch(List<DereferenceOperation> batch)
+    {
+        if (dn == null || connection == null
+                || !(connection instanceof LDAPConnection || connection instanceof LDAPConnectionPool))
+        {
+            return executeIndividually(batch);
+        }
+        
+        List<LDAPRequest> requests = new ArrayList<>(batch.size());
+        for (DereferenceOperation operation : batch)
+        {
+            TouchDereferenceOperation touch = (TouchDereferenceOperation) operation;
+            PendingMemberSet.getInstance().release(GroupDereference.STRATEGY_TOUCH, touch.dn);
+            requests.add(touch.createModifyRequest());
         }
         
-        ModifyRequest modifyRequest = new ModifyRequest(dn, modifications);
         try
         {
-            connection.modify(modifyRequest);
+            MultiUpdateExtendedRequest request = new MultiUpdateExtendedRequest(
+                    MultiUpdateErrorBehavior.CONTINUE_ON_ERROR, requests);
+            ExtendedResult extendedResult;
+            if (connection instanceof LDAPConnection)
+            {
+                extendedResult = ((LDAPConnection) connection).processExtendedOperation(request);
+            } else
+            {
+                extendedResult = ((LDAPConnectionPool) connection).processExtendedOperation(request);
+            }
+            MultiUpdateExtendedResult result = new MultiUpdateExtendedResult(extendedResult);
+            if (result.getChangesApplied() == MultiUpdateChangesApplied.NONE
+                    && (ResultCode.UNWILLING_TO_PERFORM.equals(result.getResultCode())
+                    || ResultCode.PROTOCOL_ERROR.equals(result.getResultCode())))
+            {
+                // the server does not support the multi-update extended operation
+                context.logMessage(LogSeverity.MILD_WARNING, "Multi-update request rejected ("
+                        + result.getDiagnosticMessage() + "), touching entries individually");
+                return executeIndividually(batch);
+            }
+            ResultCode resultCode = result.getResultCode();
+            for (ObjectPair<OperationType, LDAPResult> updateResult : result.getResults())
+            {
+                LDAPResult ldapResult = updateResult.getSecond();
+                if (!ResultCode.SUCCESS.equals(ldapResult.getResultCode()))
+                {
+                    context.logMessage(LogSeverity.MILD_ERROR, "Unable to touch entry: "
+                            + ldapResult.getDiagnosticMessage() + " (" + ldapResult.getResultCode() + ")");
+                    if (!AdaptiveRateLimiter.isDistress(resultCode))
+                    {
+                        resultCode = ldapResult.getResultCode();
+                    }
+                }
+            }
+            return resultCode;
         } catch (LDAPException e)
         {
             context.logMessage(LogSeverity.MILD_ERROR, e.getMessage());
+            return e.getResultCode();
+        }
+    }
+    
+    private ResultCode executeIndividually(List<DereferenceOperation> batch)
+    {
+        ResultCode resultCode = ResultCode.SUCCESS;
+        for (DereferenceOperation operation : batch)
+        {
+            ResultCode operationResultCode = operation.execute();
+            if (operationResultCode != null && !AdaptiveRateLimiter.isDistress(resultCode))
+            {
+                resultCode = operationResultCode;
+            }
+        }
+        return resultCode;
+    }
+    
+    /**
+     * Performs the necessary processing to build the request touching the entry
+     *
+     * @return the modify request
+     */
+    ModifyRequest createModifyRequest()
+    {
+        if (touchAttribute == null)
+        {
+            return new ModifyRequest(dn, modifications);
         }
+        return new ModifyRequest(dn, Collections.singletonList(new Modification(ModificationType.REPLACE,
+                touchAttribute, StaticUtils.encodeGeneralizedTime(new Date()))));
     }
 }
\ No newline at end of file
@@ -1,12 +1,14 @@
 package com.pingidentity.sync.pipe;
 
+import com.pingidentity.sync.source.JournaledChangeQueue;
 import com.pingidentity.sync.source.MemberEntryQueue;
+import com.pingidentity.util.AdaptiveRateLimiter;
+import com.pingidentity.util.ChildFilters;
 import com.unboundid.directory.sdk.common.types.LogSeverity;
-import com.unboundid.directory.sdk.sync.types.ChangeRecord;
 import com.unboundid.directory.sdk.sync.types.SyncServerContext;
 import com.unboundid.ldap.sdk.*;
 
-import java.util.Queue;
+import java.util.*;
 
 /**
  * This class implements a {@code DereferenceOperation} that reaches back to
@@ -15,13 +17,18 @@ import java.util.Queue;
  *
  * This type of dereference operation avoids having to connect the subsequent source to the initial source
  * from which the change was originally detected
+ *
+ * When batched, the members sharing the same parent entry are retrieved with a single one-level search whose
+ * filter matches their RDNs
  */
-public class WholeEntryDereferenceOperation implements DereferenceOperation
+public class WholeEntryDereferenceOperation implements BatchableDereferenceOperation
 {
     LDAPInterface connection;
     String dn;
     SyncServerContext context;
-    Queue<ChangeRecord> queue = MemberEntryQueue.getInstance();
+    JournaledChangeQueue queue = MemberEntryQueue.getJournaledInstance();
+    AsyncEntryFetcher asyncFetcher = null;
+    String groupDN = null;
     
     /**
      * Performs the necessary processing to initialize the instance of the operation
@@ -43,44 +50,198 @@ public class WholeEntryDereferenceOperation implements DereferenceOperation
         context = ctx;
     }
     
+    /**
+     * Performs the necessary processing to initialize the instance of the operation for asynchronous execution
+     * @param ctx the server context
+     * @param c the connection to the server from which the change was detected (cannot be null)
+     * @param d the DN (cannot be null)
+     * @param f the fetcher to use to send the request asynchronously (null = synchronous)
+     * @throws Exception if there is a missing parameter
+     */
+    public WholeEntryDereferenceOperation(final SyncServerContext ctx,
+                                          final LDAPInterface c, final String d,
+                                          final AsyncEntryFetcher f) throws Exception
+    {
+        this(ctx, c, d);
+        asyncFetcher = f;
+    }
+    
+    /**
+     * Performs the necessary processing to initialize the instance of the operation for asynchronous execution
+     * @param ctx the server context
+     * @param c the connection to the server from which the change was detected (cannot be null)
+     * @param d the DN (cannot be null)
+     * @param f the fetcher to use to send the request asynchronously (null = synchronous)
+     * @param g the DN of the group whose change caused the operation (may be null)
+     * @throws Exception if there is a missing parameter
+     */
+    public WholeEntryDereferenceOperation(final SyncServerContext ctx,
+                                          final LDAPInterface c, final String d,
+                                          final AsyncEntryFetcher f, final String g) throws Exception
+    {
+        this(ctx, c, d, f);
+        groupDN = g;
+    }
+    
     
     /**
      * Performs the necessary processing to retrieve the entry and put it in the queue
      */
     @Override
-    public void execute()
+    public ResultCode execute()
     {
         if (dn == null)
         {
             context.logMessage(LogSeverity.SEVERE_ERROR,
                     "DN not available. Aborting dereference operation");
-            return;
+            return ResultCode.LOCAL_ERROR;
         }
         if (connection == null)
         {
             context.logMessage(LogSeverity.INFO,
                     "Connection not available to execute this dereference operation for entry "
                             + dn);
-            return;
+            return ResultCode.LOCAL_ERROR;
         }
         if (queue == null)
         {
             context.logMessage(LogSeverity.INFO, "Queue not available to execute this dereference operation for entry" +
                     " " + dn);
-            return;
+            return ResultCode.LOCAL_ERROR;
         }
         
+        // released before fetching so that a change happening while the entry is fetched is not lost
+        PendingMemberSet.getInstance().release(GroupDereference.STRATEGY_ENQUEUE_ENTRY, dn);
         try
         {
+            if (asyncFetcher != null && asyncFetcher.fetch(dn))
+            {
+                // the completion will feed the queue and report the result code
+                return null;
+            }
             SearchResultEntry sre = connection.getEntry(dn, "*", "+");
-            ChangeRecord.Builder builder = new ChangeRecord.Builder(ChangeType.MODIFY, dn);
-            builder.fullEntry(sre);
-            builder.changeTime(System.currentTimeMillis());
-            ChangeRecord changeRecord = builder.build();
-            queue.add(changeRecord);
+            queue.addEntry(dn, sre);
+            return ResultCode.SUCCESS;
         } catch (LDAPException e)
         {
             context.logMessage(LogSeverity.MILD_ERROR, e.getMessage());
+            return e.getResultCode();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            context.logMessage(LogSeverity.MILD_ERROR, "Interrupted while fetching entry " + dn);
+            return ResultCode.LOCAL_ERROR;
+        }
+    }
+    
+    @Override
+    public String getDN()
+    {
+        return dn;
+    }
+    
+    @Override
+    public String getGroupDN()
+    {
+        return groupDN;
+    }
+    
+    @Override
+    public boolean canBatchWith(DereferenceOperation other)
+    {
+        return other instanceof WholeEntryDereferenceOperation
+                && ((WholeEntryDereferenceOperation) other).connection == connection
+                && ((WholeEntryDereferenceOperation) other).dn != null;
+    }
+    
+    /**
+     * Performs the necessary processing to retrieve the entries of a batch of operations with as few searches as
+     * possible and put them in the queue
+     * @param batch the operations to execute, starting with this one
+     */
+    @Override
+    public ResultCode executeBatch(List<DereferenceOperation> batch)
+    {
+        ResultCode resultCode = ResultCode.SUCCESS;
+        if (dn == null || connection == null || queue == null)
+        {
+            for (DereferenceOperation operation : batch)
+            {
+                resultCode = worst(resultCode, operation.execute());
+            }
+            return resultCode;
+        }
+        
+        List<String> dns = new ArrayList<>(batch.size());
+        for (DereferenceOperation operation : batch)
+        {
+            String memberDN = ((WholeEntryDereferenceOperation) operation).dn;
+            PendingMemberSet.getInstance().release(GroupDereference.STRATEGY_ENQUEUE_ENTRY, memberDN);
+            dns.add(memberDN);
+        }
+        
+        List<String> individualDNs = new ArrayList<>();
+        for (List<DN> siblings : ChildFilters.groupByParent(dns, batch.size(), individualDNs))
+        {
+            if (siblings.size() == 1)
+            {
+                individualDNs.add(siblings.get(0).toString());
+                continue;
+            }
+            try
+            {
+                SearchRequest searchRequest = new SearchRequest(siblings.get(0).getParent().toString(),
+                        SearchScope.ONE, ChildFilters.createRDNFilter(siblings), "*", "+");
+                SearchResult searchResult = connection.search(searchRequest);
+                Map<DN, SearchResultEntry> found = new HashMap<>(searchResult.getEntryCount() * 2);
+                for (SearchResultEntry entry : searchResult.getSearchEntries())
+                {
+                    found.put(entry.getParsedDN(), entry);
+                }
+                for (DN memberDN : siblings)
+                {
+                    // consistent with a single fetch where a missing entry yields a null entry
+                    queue.addEntry(memberDN.toString(), found.get(memberDN));
+                }
+            } catch (LDAPException e)
+            {
+                resultCode = worst(resultCode, e.getResultCode());
+                context.logMessage(LogSeverity.MILD_ERROR, "Batched fetch below " + siblings.get(0).getParent()
+                        + " failed, fetching entries individually: " + e.getMessage());
+                for (DN memberDN : siblings)
+                {
+                    individualDNs.add(memberDN.toString());
+                }
+            }
+        }
+        
+        for (String memberDN : individualDNs)
+        {
+            try
+            {
+                queue.addEntry(memberDN, connection.getEntry(memberDN, "*", "+"));
+            } catch (LDAPException e)
+            {
+                resultCode = worst(resultCode, e.getResultCode());
+                context.logMessage(LogSeverity.MILD_ERROR, e.getMessage());
+            }
+        }
+        return resultCode;
+    }
+    
+    /**
+     * Performs the necessary processing to keep the result code showing distress, if any
+     *
+     * @param current the result code so far
+     * @param next    the result code of the next request (may be null)
+     * @return the result code to keep
+     */
+    private static ResultCode worst(final ResultCode current, final ResultCode next)
+    {
+        if (next == null || AdaptiveRateLimiter.isDistress(current))
+        {
+            return current;
         }
+        return next;
     }
 }
\ No newline at end of file
@@ -0,0 +1,299 @@
+package com.pingidentity.sync.source;
+
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class starts fetching the entries of a batch of changes as soon as the batch is handed to the engine, so that
+ * the latency of the fetches overlaps with the processing of the batch instead of adding up one entry at a time
+ * <p>
+ * The searches of a batch are pipelined on a single connection checked out of the pool. Their results are kept in a
+ * bounded buffer until the engine asks for the entry. DNs that do not fit in the buffer are simply not prefetched and
+ * are read directly when the engine asks for them.
+ * <p>
+ * The engine may never ask for a prefetched entry, as when its change is dropped or the pipe stops. Entries are
+ * therefore only kept for a limited time: expired entries are evicted before each batch is prefetched, so that they
+ * neither fill the buffer for good nor get served long after they were read.
+ */
+public class EntryPrefetcher
+{
+    private static final long MAX_WAIT_MILLIS = 10000L;
+    private static final long MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30L);
+
+    private final SyncServerContext context;
+    private final LDAPConnectionPool pool;
+    private final String[] attributes;
+    private final int capacity;
+    private final ConcurrentHashMap<String, Prefetched> buffer = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong expirations = new AtomicLong(0L);
+
+    /**
+     * Performs the necessary processing to initialize the prefetcher
+     *
+     * @param ctx        the server context
+     * @param p          the pool of connections to the server to fetch entries from
+     * @param attrs      the attributes to fetch
+     * @param bufferSize the maximum number of entries fetched or being fetched ahead of the engine
+     */
+    public EntryPrefetcher(final SyncServerContext ctx, final LDAPConnectionPool p, final String[] attrs,
+                           final int bufferSize)
+    {
+        context = ctx;
+        pool = p;
+        attributes = attrs;
+        capacity = bufferSize;
+    }
+
+    /**
+     * Performs the necessary processing to start fetching the provided entries, as far as the buffer allows
+     *
+     * @param dns the DNs of the entries to fetch
+     */
+    public void prefetch(final List<String> dns)
+    {
+        if (dns.isEmpty())
+        {
+            return;
+        }
+        evictExpired();
+        if (buffer.size() >= capacity)
+        {
+            return;
+        }
+        LDAPConnection connection;
+        try
+        {
+            connection = pool.getConnection();
+        } catch (LDAPException e)
+        {
+            // entries will be read directly
+            context.debugCaught(e);
+            return;
+        }
+        // the connection goes back to the pool once the last search sent on it completes
+        AtomicInteger pending = new AtomicInteger(1);
+        for (String dn : dns)
+        {
+            if (dn == null || buffer.size() >= capacity)
+            {
+                continue;
+            }
+            CompletableFuture<Entry> future = new CompletableFuture<>();
+            Prefetched prefetched = new Prefetched(future);
+            if (buffer.putIfAbsent(dn, prefetched) != null)
+            {
+                continue;
+            }
+            pending.incrementAndGet();
+            try
+            {
+                connection.asyncSearch(new SearchRequest(new Listener(future, connection, pending), dn,
+                        SearchScope.BASE, Filter.createPresenceFilter("objectClass"), attributes));
+            } catch (LDAPException e)
+            {
+                context.debugCaught(e);
+                buffer.remove(dn, prefetched);
+                future.completeExceptionally(e);
+                release(connection, pending);
+                // the connection is most likely unusable for the rest of the batch
+                break;
+            }
+        }
+        release(connection, pending);
+    }
+
+    /**
+     * Performs the necessary processing to retrieve a prefetched entry, waiting for its search to complete if needed
+     *
+     * @param dn the DN of the entry
+     * @return the entry (which may be null if it does not exist)
+     * @throws PrefetchMissException if the entry was not prefetched, has expired or its search failed and it should
+     *                               be read directly instead
+     */
+    public Entry take(final String dn) throws PrefetchMissException
+    {
+        Prefetched prefetched = dn == null ? null : buffer.remove(dn);
+        if (prefetched == null)
+        {
+            misses.incrementAndGet();
+            throw new PrefetchMissException();
+        }
+        if (prefetched.isExpired(System.nanoTime()))
+        {
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            throw new PrefetchMissException();
+        }
+        try
+        {
+            Entry entry = prefetched.future.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            hits.incrementAndGet();
+            return entry;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e)
+        {
+            context.debugCaught(e);
+        }
+        misses.incrementAndGet();
+        throw new PrefetchMissException();
+    }
+
+    /**
+     * Performs the necessary processing to discard the prefetched entries, as when the startpoint is set
+     */
+    public void clear()
+    {
+        buffer.clear();
+    }
+
+    /**
+     * Retrieves the number of entries fetched or being fetched ahead of the engine
+     *
+     * @return the number of entries in the buffer
+     */
+    public int size()
+    {
+        return buffer.size();
+    }
+
+    /**
+     * Retrieves the number of entries served from the buffer
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of entries that had to be read directly
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of entries discarded because the engine did not ask for them in time
+     *
+     * @return the number of expirations
+     */
+    public long getExpirations()
+    {
+        return expirations.get();
+    }
+
+    /**
+     * Performs the necessary processing to discard the entries that were prefetched too long ago
+     */
+    private void evictExpired()
+    {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Prefetched> prefetched : buffer.entrySet())
+        {
+            if (prefetched.getValue().isExpired(now) && buffer.remove(prefetched.getKey(), prefetched.getValue()))
+            {
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    private void release(final LDAPConnection connection, final AtomicInteger pending)
+    {
+        if (pending.decrementAndGet() == 0)
+        {
+            pool.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * This exception signals that an entry must be read directly
+     */
+    public static class PrefetchMissException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * This class holds an entry fetched or being fetched along with when its search was sent
+     */
+    private static class Prefetched
+    {
+        final CompletableFuture<Entry> future;
+        final long created = System.nanoTime();
+
+        Prefetched(final CompletableFuture<Entry> f)
+        {
+            future = f;
+        }
+
+        boolean isExpired(final long now)
+        {
+            return now - created > MAX_AGE_NANOS;
+        }
+    }
+
+    /**
+     * This listener completes the future of a single prefetched entry
+     */
+    private class Listener implements AsyncSearchResultListener
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final CompletableFuture<Entry> future;
+        private final LDAPConnection connection;
+        private final AtomicInteger pending;
+        private volatile SearchResultEntry entry = null;
+
+        Listener(final CompletableFuture<Entry> f, final LDAPConnection c, final AtomicInteger p)
+        {
+            future = f;
+            connection = c;
+            pending = p;
+        }
+
+        @Override
+        public void searchEntryReturned(SearchResultEntry searchEntry)
+        {
+            entry = searchEntry;
+        }
+
+        @Override
+        public void searchReferenceReturned(SearchResultReference searchReference)
+        {
+        }
+
+        @Override
+        public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult)
+        {
+            try
+            {
+                ResultCode resultCode = searchResult.getResultCode();
+                if (ResultCode.SUCCESS.equals(resultCode) || ResultCode.NO_SUCH_OBJECT.equals(resultCode))
+                {
+                    // consistent with a direct read where a missing entry yields a null entry
+                    future.complete(entry);
+                } else
+                {
+                    future.completeExceptionally(new LDAPException(searchResult));
+                }
+            } finally
+            {
+                release(connection, pending);
+            }
+        }
+    }
+}
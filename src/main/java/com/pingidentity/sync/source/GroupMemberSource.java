@@ -1,17 +1,23 @@
 package com.pingidentity.sync.source;
 
+import com.pingidentity.util.DepthTrackingQueue;
+import com.unboundid.directory.sdk.common.types.LogSeverity;
 import com.unboundid.directory.sdk.sync.api.SyncSource;
-import com.unboundid.directory.sdk.sync.types.ChangeRecord;
-import com.unboundid.directory.sdk.sync.types.EndpointException;
-import com.unboundid.directory.sdk.sync.types.SetStartpointOptions;
-import com.unboundid.directory.sdk.sync.types.SyncOperation;
+import com.unboundid.directory.sdk.sync.config.SyncSourceConfig;
+import com.unboundid.directory.sdk.sync.types.*;
 import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.args.ArgumentException;
+import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.IntegerArgument;
+import com.unboundid.util.args.StringArgument;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -19,7 +25,14 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class GroupMemberSource extends SyncSource
 {
-    Queue<ChangeRecord> queue = MemberEntryQueue.getInstance();
+    public static final String ARG_JOURNAL_DIRECTORY = "journal-directory";
+    public static final String ARG_JOURNAL_SEGMENT_SIZE = "journal-segment-size-mb";
+    public static final int ARG_JOURNAL_SEGMENT_SIZE_DEFAULT = 64;
+    public static final String ARG_MAX_WAIT = "max-wait-millis";
+    private SyncServerContext serverContext;
+    DepthTrackingQueue<ChangeRecord> queue = MemberEntryQueue.getInstance();
+    JournaledChangeQueue journaledQueue = MemberEntryQueue.getJournaledInstance();
+    private long maxWaitMillis = 0L;
     
     @Override
     public String getExtensionName()
@@ -41,14 +54,61 @@ public class GroupMemberSource extends SyncSource
     }
     
     @Override
-    public void setStartpoint(SetStartpointOptions options)
+    public void defineConfigArguments(ArgumentParser parser) throws ArgumentException
     {
+        parser.addArgument(new StringArgument(null, ARG_JOURNAL_DIRECTORY, false, 1, "{path}", "Directory, " +
+                "relative to the server root if not absolute, where to journal the member entries queued for this " +
+                "source so that they survive a restart. The queue is kept in memory only if not set."));
+        parser.addArgument(new IntegerArgument(null, ARG_JOURNAL_SEGMENT_SIZE, false, 1, "{size-mb}", "The size " +
+                "in megabytes of each journal segment file", 1, 1024, ARG_JOURNAL_SEGMENT_SIZE_DEFAULT));
+        parser.addArgument(new IntegerArgument(null, ARG_MAX_WAIT, false, 1, "{millis}", "How long to wait for a " +
+                "member entry when none is pending before returning an empty batch. The batch is returned as soon " +
+                "as a member entry arrives.", 0, 60000, 0));
+    }
+    
+    @Override
+    public void initializeSyncSource(SyncServerContext serverContext, SyncSourceConfig config, ArgumentParser parser)
+    {
+        this.serverContext = serverContext;
+        maxWaitMillis = parser.getIntegerArgument(ARG_MAX_WAIT).getValue();
+        String journalDirectory = parser.getStringArgument(ARG_JOURNAL_DIRECTORY).getValue();
+        if (journalDirectory != null)
+        {
+            File directory = new File(journalDirectory);
+            if (!directory.isAbsolute())
+            {
+                directory = new File(serverContext.getServerRoot(), journalDirectory);
+            }
+            try
+            {
+                journaledQueue.open(directory,
+                        parser.getIntegerArgument(ARG_JOURNAL_SEGMENT_SIZE).getValue() * 1024 * 1024);
+            } catch (IOException e)
+            {
+                serverContext.debugCaught(e);
+                serverContext.logMessage(LogSeverity.SEVERE_ERROR, "Unable to open the journal in " + directory +
+                        ", member entries will only be queued in memory: " + e.getMessage());
+            }
+        }
+    }
+    
+    @Override
+    public void setStartpoint(SetStartpointOptions options) throws EndpointException
+    {
+        try
+        {
+            journaledQueue.setStartpoint(options);
+        } catch (IOException e)
+        {
+            throw new EndpointException(PostStepResult.ABORT_OPERATION, "Unable to set the startpoint in the " +
+                    "journal: " + e.getMessage(), e);
+        }
     }
     
     @Override
     public Serializable getStartpoint()
     {
-        return null;
+        return journaledQueue.getStartpoint();
     }
     
     @Override
@@ -56,18 +116,14 @@ public class GroupMemberSource extends SyncSource
                                                     AtomicLong numStillPending) throws EndpointException
     {
         List<ChangeRecord> result = new ArrayList<>();
-        int i = 0;
-        while (i++ < maxChanges && !queue.isEmpty())
+        try
         {
-            ChangeRecord record = queue.poll();
-            if (record != null)
-            {
-                result.add(record);
-            } else
-            {
-                break;
-            }
+            queue.drainTo(result, maxChanges, maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
         }
+        numStillPending.set(queue.size());
         return result;
     }
     
@@ -80,5 +136,16 @@ public class GroupMemberSource extends SyncSource
     @Override
     public void acknowledgeCompletedOps(LinkedList<SyncOperation> completedOps)
     {
+        try
+        {
+            journaledQueue.acknowledge(completedOps);
+        } catch (IOException e)
+        {
+            // the acknowledgements are kept and the checkpoint is written with the next batch
+            if (serverContext != null)
+            {
+                serverContext.debugCaught(e);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,313 @@
+package com.pingidentity.sync.source;
+
+import com.pingidentity.util.DepthTrackingQueue;
+import com.pingidentity.util.SegmentJournal;
+import com.pingidentity.util.SpillOverQueue;
+import com.unboundid.directory.sdk.sync.types.ChangeRecord;
+import com.unboundid.directory.sdk.sync.types.SetStartpointOptions;
+import com.unboundid.directory.sdk.sync.types.SyncOperation;
+import com.unboundid.ldap.ldif.LDIFException;
+import com.unboundid.ldap.ldif.LDIFReader;
+import com.unboundid.ldap.sdk.ChangeType;
+import com.unboundid.ldap.sdk.Entry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class builds the change records handed to the group member sources and optionally writes them to a
+ * {@code SegmentJournal} before they are queued, so that pending changes survive a restart
+ * <p>
+ * Journaled records carry their sequence number as a property. The source acknowledges the sequence numbers of
+ * completed operations and exposes the acknowledged sequence number as its startpoint.
+ * <p>
+ * Records are serialized compactly: a type byte, the change time, the DN and, for full entry records, the entry in
+ * LDIF form.
+ */
+public class JournaledChangeQueue
+{
+    public static final String PROPERTY_DN = "DN";
+    public static final String PROPERTY_SEQUENCE = "journal-sequence";
+    private static final byte TYPE_DN = 0;
+    private static final byte TYPE_ENTRY = 1;
+
+    private final DepthTrackingQueue<ChangeRecord> queue;
+    private volatile SegmentJournal journal = null;
+
+    static AtomicLong journalWriteFailures = new AtomicLong(0L);
+    static AtomicLong journalReplayFailures = new AtomicLong(0L);
+
+    /**
+     * Performs the necessary processing to initialize the instance
+     *
+     * @param q the queue the records are added to
+     */
+    public JournaledChangeQueue(final DepthTrackingQueue<ChangeRecord> q)
+    {
+        queue = q;
+    }
+
+    /**
+     * Performs the necessary processing to start journaling records, queueing the records that were not
+     * acknowledged before the journal was last closed
+     * Calling this method again once the journal is open has no effect
+     *
+     * @param directory   the directory where the journal is stored
+     * @param segmentSize the size of a journal segment in bytes
+     * @throws IOException if the journal cannot be opened
+     */
+    public synchronized void open(final File directory, final int segmentSize) throws IOException
+    {
+        if (journal == null)
+        {
+            journal = new SegmentJournal(directory, segmentSize, this::queueReplayed);
+        }
+    }
+
+    /**
+     * Performs the necessary processing to queue a change record carrying only a DN, for the source to fetch
+     *
+     * @param dn the DN
+     */
+    public void addDN(final String dn)
+    {
+        add(TYPE_DN, dn, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Performs the necessary processing to queue a change record carrying a full entry
+     *
+     * @param dn    the DN
+     * @param entry the entry (may be null if it was not found)
+     */
+    public void addEntry(final String dn, final Entry entry)
+    {
+        add(TYPE_ENTRY, dn, entry, System.currentTimeMillis());
+    }
+
+    /**
+     * Performs the necessary processing to acknowledge the records of completed operations and truncate the journal
+     *
+     * @param completedOps the completed operations
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void acknowledge(final List<SyncOperation> completedOps) throws IOException
+    {
+        SegmentJournal currentJournal = journal;
+        if (currentJournal == null)
+        {
+            return;
+        }
+        for (SyncOperation operation : completedOps)
+        {
+            ChangeRecord changeRecord = operation.getChangeRecord();
+            Object sequence = changeRecord == null ? null : changeRecord.getProperty(PROPERTY_SEQUENCE);
+            if (sequence instanceof Long)
+            {
+                currentJournal.acknowledge((Long) sequence);
+            }
+        }
+        currentJournal.checkpoint();
+    }
+
+    /**
+     * Retrieves the startpoint: the sequence number up to which all records were processed
+     *
+     * @return the startpoint or null if the queue is not journaled
+     */
+    public Serializable getStartpoint()
+    {
+        SegmentJournal currentJournal = journal;
+        return currentJournal == null ? null : currentJournal.getAcknowledgedSequence();
+    }
+
+    /**
+     * Performs the necessary processing to set the startpoint, discarding the pending records and queueing those
+     * following the new startpoint again
+     *
+     * @param options the startpoint options
+     * @throws IOException if the journal cannot be read or the checkpoint written
+     */
+    public synchronized void setStartpoint(final SetStartpointOptions options) throws IOException
+    {
+        SegmentJournal currentJournal = journal;
+        if (currentJournal == null)
+        {
+            return;
+        }
+        long sequence;
+        switch (options.getStartpointType())
+        {
+            case BEGINNING_OF_CHANGELOG:
+                sequence = 0L;
+                break;
+            case END_OF_CHANGELOG:
+                sequence = currentJournal.getLastSequence();
+                break;
+            case RESUME_AT_SERIALIZABLE:
+                if (!(options.getSerializableValue() instanceof Long))
+                {
+                    return;
+                }
+                sequence = (Long) options.getSerializableValue();
+                break;
+            default:
+                return;
+        }
+        queue.clear();
+        currentJournal.reset(sequence);
+        currentJournal.replay(sequence, this::queueReplayed);
+    }
+
+    private void add(final byte type, final String dn, final Entry entry, final long changeTime)
+    {
+        ChangeRecord.Builder builder = createBuilder(type, dn, entry, changeTime);
+        SegmentJournal currentJournal = journal;
+        if (currentJournal != null)
+        {
+            try
+            {
+                builder.addProperty(PROPERTY_SEQUENCE, currentJournal.append(encode(type, dn, entry, changeTime)));
+            } catch (IOException e)
+            {
+                // the change is still processed, it just will not survive a restart
+                journalWriteFailures.incrementAndGet();
+            }
+        }
+        queue.add(builder.build());
+    }
+
+    /**
+     * Performs the necessary processing to queue a record replayed from the journal
+     * A record that cannot be decoded is counted and dropped so that it does not hold back the checkpoint forever
+     *
+     * @param sequence the sequence number of the record
+     * @param payload  the payload of the record
+     * @return true if the record was queued, false if it was dropped
+     */
+    private boolean queueReplayed(final long sequence, final byte[] payload)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload)))
+        {
+            byte type = in.readByte();
+            long changeTime = in.readLong();
+            String dn = in.readUTF();
+            Entry entry = null;
+            if (type == TYPE_ENTRY && in.readBoolean())
+            {
+                byte[] ldif = new byte[in.readInt()];
+                in.readFully(ldif);
+                entry = LDIFReader.decodeEntry(new String(ldif, StandardCharsets.UTF_8).split("\r?\n"));
+            }
+            ChangeRecord.Builder builder = createBuilder(type, dn, entry, changeTime);
+            builder.addProperty(PROPERTY_SEQUENCE, sequence);
+            queue.add(builder.build());
+            return true;
+        } catch (IOException | LDIFException e)
+        {
+            journalReplayFailures.incrementAndGet();
+            return false;
+        }
+    }
+
+    private static ChangeRecord.Builder createBuilder(final byte type, final String dn, final Entry entry,
+                                                      final long changeTime)
+    {
+        ChangeRecord.Builder builder = new ChangeRecord.Builder(ChangeType.MODIFY, dn);
+        if (type == TYPE_DN)
+        {
+            builder.addProperty(PROPERTY_DN, dn);
+        } else
+        {
+            builder.fullEntry(entry);
+        }
+        builder.changeTime(changeTime);
+        return builder;
+    }
+
+    private static byte[] encode(final byte type, final String dn, final Entry entry, final long changeTime)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(dn.length() + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(type);
+            out.writeLong(changeTime);
+            out.writeUTF(dn);
+            if (type == TYPE_ENTRY)
+            {
+                out.writeBoolean(entry != null);
+                if (entry != null)
+                {
+                    byte[] ldif = entry.toLDIFString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(ldif.length);
+                    out.write(ldif);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * This class converts the DN-only change records to a compact form when they spill to disk: the DN, the change
+     * time and the journal sequence number if any
+     */
+    static class DNRecordCodec implements SpillOverQueue.Codec<ChangeRecord>
+    {
+        @Override
+        public byte[] encode(ChangeRecord changeRecord) throws IOException
+        {
+            String dn = (String) changeRecord.getProperty(PROPERTY_DN);
+            if (dn == null)
+            {
+                throw new IOException("Unable to spill a change record without a DN property");
+            }
+            Object sequence = changeRecord.getProperty(PROPERTY_SEQUENCE);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(dn.length() + 20);
+            try (DataOutputStream out = new DataOutputStream(bytes))
+            {
+                out.writeLong(changeRecord.getChangeTime());
+                out.writeLong(sequence instanceof Long ? (Long) sequence : -1L);
+                out.writeUTF(dn);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Retrieves the DN of an encoded record
+         *
+         * @param bytes the encoded record
+         * @return the DN or null if the record cannot be decoded
+         */
+        static String getDN(byte[] bytes)
+        {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+            {
+                in.readLong();
+                in.readLong();
+                return in.readUTF();
+            } catch (IOException e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public ChangeRecord decode(byte[] bytes) throws IOException
+        {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+            {
+                long changeTime = in.readLong();
+                long sequence = in.readLong();
+                ChangeRecord.Builder builder = createBuilder(TYPE_DN, in.readUTF(), null, changeTime);
+                if (sequence >= 0L)
+                {
+                    builder.addProperty(PROPERTY_SEQUENCE, sequence);
+                }
+                return builder.build();
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.pingidentity.sync.source;
 
+import com.pingidentity.sync.pipe.GroupDereference;
+import com.pingidentity.sync.pipe.PendingMemberSet;
+import com.pingidentity.util.DepthTrackingQueue;
+import com.unboundid.directory.sdk.common.types.LogSeverity;
 import com.unboundid.directory.sdk.sync.api.SyncSource;
 import com.unboundid.directory.sdk.sync.config.SyncSourceConfig;
 import com.unboundid.directory.sdk.sync.types.*;
@@ -7,12 +11,14 @@ import com.unboundid.ldap.sdk.Entry;
 import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.util.args.ArgumentException;
-import com.unboundid.util.args.ArgumentParser;
-import com.unboundid.util.args.IntegerArgument;
-import com.unboundid.util.args.StringArgument;
+import com.unboundid.util.args.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -29,10 +35,27 @@ public class LDAPMemberSource extends SyncSource
     public static final int ARG_CONN_INIT_DEFAULT = 1;
     public static final int ARG_CONN_MAX_DEFAULT = 20;
     public static final String ARG_ATTRIBUTE = "attribute";
+    public static final String ARG_JOURNAL_DIRECTORY = "journal-directory";
+    public static final String ARG_JOURNAL_SEGMENT_SIZE = "journal-segment-size-mb";
+    public static final int ARG_JOURNAL_SEGMENT_SIZE_DEFAULT = 64;
+    public static final String ARG_SPILL_DIRECTORY = "spill-directory";
+    public static final String ARG_SPILL_THRESHOLD = "spill-threshold";
+    private static final int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final String ARG_MAX_WAIT = "max-wait-millis";
+    public static final String ARG_PREFETCH_BUFFER_SIZE = "prefetch-buffer-size";
+    public static final String ARG_CACHE_TTL = "cache-ttl-millis";
+    public static final String ARG_CACHE_MAX_ENTRIES = "cache-max-entries";
+    public static final String ARG_CACHE_MAX_SIZE = "cache-max-size-mb";
+    public static final String ARG_CACHE_POLICY = "cache-eviction-policy";
+    static final Set<LDAPMemberSource> instances = ConcurrentHashMap.newKeySet();
     private SyncServerContext serverContext;
     private LDAPConnectionPool ldapExternalServerConnectionPool = null;
-    Queue<ChangeRecord> queue = MemberDNQueue.getInstance();
+    DepthTrackingQueue<ChangeRecord> queue = MemberDNQueue.getInstance();
+    JournaledChangeQueue journaledQueue = MemberDNQueue.getJournaledInstance();
     private List<String> attributes;
+    private long maxWaitMillis;
+    private EntryPrefetcher prefetcher = null;
+    private MemberEntryCache cache = null;
     
     
     /**
@@ -69,21 +92,40 @@ public class LDAPMemberSource extends SyncSource
     
     /**
      * Performs the necessary processing to set the startpoint
+     * When the queue is journaled, the pending member DNs are discarded and those journaled after the startpoint
+     * are queued again
      * @param setStartpointOptions the startpoint options
+     * @throws EndpointException if the journal could not be read or updated
      */
     @Override
-    public void setStartpoint(SetStartpointOptions setStartpointOptions)
+    public void setStartpoint(SetStartpointOptions setStartpointOptions) throws EndpointException
     {
+        try
+        {
+            if (prefetcher != null)
+            {
+                prefetcher.clear();
+            }
+            if (cache != null)
+            {
+                cache.clear();
+            }
+            journaledQueue.setStartpoint(setStartpointOptions);
+        } catch (IOException e)
+        {
+            throw new EndpointException(PostStepResult.ABORT_OPERATION, "Unable to set the startpoint in the " +
+                    "journal: " + e.getMessage(), e);
+        }
     }
     
     /**
      * Performs the necessary processing to return the persisted start point
-     * @return null
+     * @return the sequence number of the last journaled member DN processed or null if the queue is not journaled
      */
     @Override
     public Serializable getStartpoint()
     {
-        return null;
+        return journaledQueue.getStartpoint();
     }
     
     /**
@@ -98,6 +140,16 @@ public class LDAPMemberSource extends SyncSource
         parser.addArgument(new IntegerArgument(null, ARG_NAME_CONN_INIT,false,1,"{num-conn}","The initial number of connections to keep in the pool", ARG_CONN_INIT_DEFAULT));
         parser.addArgument(new IntegerArgument(null, ARG_NAME_CONN_MAX,false,1,"{num-conn}","The maximum number of connections to keep in the pool", ARG_CONN_MAX_DEFAULT));
         parser.addArgument(new StringArgument(null, ARG_ATTRIBUTE,false,0,"{attribute}","Specify the attribute(s) to fetch from the source (Default: *,+)", Arrays.asList("*","+")));
+        parser.addArgument(new StringArgument(null, ARG_JOURNAL_DIRECTORY,false,1,"{path}","Directory, relative to the server root if not absolute, where to journal the member DNs queued for this source so that they survive a restart. The queue is kept in memory only if not set."));
+        parser.addArgument(new IntegerArgument(null, ARG_JOURNAL_SEGMENT_SIZE,false,1,"{size-mb}","The size in megabytes of each journal segment file", 1, 1024, ARG_JOURNAL_SEGMENT_SIZE_DEFAULT));
+        parser.addArgument(new IntegerArgument(null, ARG_PREFETCH_BUFFER_SIZE,false,1,"{entries}","The maximum number of entries to fetch ahead of the engine. Entries of a batch are fetched with pipelined asynchronous searches as soon as the batch is returned so that they are ready when the engine asks for them. Entries are fetched one at a time when the engine asks for them if not set.", 1, Integer.MAX_VALUE));
+        parser.addArgument(new IntegerArgument(null, ARG_CACHE_TTL,false,1,"{millis}","How long to cache member entries read from the external server. Member entries are read every time they are needed if not set.", 1, Integer.MAX_VALUE));
+        parser.addArgument(new IntegerArgument(null, ARG_CACHE_MAX_ENTRIES,false,1,"{entries}","The maximum number of member entries to cache", 1, Integer.MAX_VALUE, 10000));
+        parser.addArgument(new IntegerArgument(null, ARG_CACHE_MAX_SIZE,false,1,"{size-mb}","The maximum estimated size in megabytes of the cached member entries, in addition to " + ARG_CACHE_MAX_ENTRIES, 1, Integer.MAX_VALUE));
+        parser.addArgument(new StringArgument(null, ARG_CACHE_POLICY,false,1,"{policy}","Which member entries to evict when the cache is full: the least recently used (" + MemberEntryCache.POLICY_LRU + ") or, with " + MemberEntryCache.POLICY_TINY_LFU + ", the least recently used unless new entries are requested less often", new HashSet<>(Arrays.asList(MemberEntryCache.POLICY_LRU, MemberEntryCache.POLICY_TINY_LFU)), MemberEntryCache.POLICY_TINY_LFU));
+        parser.addArgument(new IntegerArgument(null, ARG_MAX_WAIT,false,1,"{millis}","How long to wait for a member DN when none is pending before returning an empty batch. The batch is returned as soon as a member DN arrives.", 0, 60000, 0));
+        parser.addArgument(new StringArgument(null, ARG_SPILL_DIRECTORY,false,1,"{path}","Directory, relative to the server root if not absolute, where member DNs are written once more than " + ARG_SPILL_THRESHOLD + " are pending. They are read back as the queue drains. The queue is kept in memory only if not set."));
+        parser.addArgument(new IntegerArgument(null, ARG_SPILL_THRESHOLD,false,1,"{count}","The number of member DNs to keep in memory before spilling to disk", 1, Integer.MAX_VALUE, 100000));
     }
     
     
@@ -124,10 +176,67 @@ public class LDAPMemberSource extends SyncSource
         }
     
         attributes = parser.getStringArgument(ARG_ATTRIBUTE).getValues();
+        maxWaitMillis = parser.getIntegerArgument(ARG_MAX_WAIT).getValue();
+        Integer cacheTTL = parser.getIntegerArgument(ARG_CACHE_TTL).getValue();
+        if (cacheTTL != null)
+        {
+            Integer cacheMaxSize = parser.getIntegerArgument(ARG_CACHE_MAX_SIZE).getValue();
+            cache = new MemberEntryCache(cacheTTL, (long) parser.getIntegerArgument(ARG_CACHE_MAX_ENTRIES).getValue(),
+                    cacheMaxSize == null ? null : cacheMaxSize * 1024L * 1024L,
+                    parser.getStringArgument(ARG_CACHE_POLICY).getValue());
+        }
+        Integer prefetchBufferSize = parser.getIntegerArgument(ARG_PREFETCH_BUFFER_SIZE).getValue();
+        if (prefetchBufferSize != null && ldapExternalServerConnectionPool != null)
+        {
+            prefetcher = new EntryPrefetcher(serverContext, ldapExternalServerConnectionPool,
+                    attributes.toArray(new String[attributes.size()]), prefetchBufferSize);
+        }
+        instances.add(this);
+        
+        String spillDirectory = parser.getStringArgument(ARG_SPILL_DIRECTORY).getValue();
+        if (spillDirectory != null)
+        {
+            File directory = new File(spillDirectory);
+            if (!directory.isAbsolute())
+            {
+                directory = new File(serverContext.getServerRoot(), spillDirectory);
+            }
+            try
+            {
+                MemberDNQueue.getSpillOverQueue().open(directory,
+                        parser.getIntegerArgument(ARG_SPILL_THRESHOLD).getValue(), SPILL_SEGMENT_SIZE);
+            } catch (IOException e)
+            {
+                serverContext.debugCaught(e);
+                serverContext.logMessage(LogSeverity.SEVERE_ERROR, "Unable to spill member DNs to " + directory +
+                        ", they will only be queued in memory: " + e.getMessage());
+            }
+        }
+        
+        String journalDirectory = parser.getStringArgument(ARG_JOURNAL_DIRECTORY).getValue();
+        if (journalDirectory != null)
+        {
+            File directory = new File(journalDirectory);
+            if (!directory.isAbsolute())
+            {
+                directory = new File(serverContext.getServerRoot(), journalDirectory);
+            }
+            try
+            {
+                journaledQueue.open(directory,
+                        parser.getIntegerArgument(ARG_JOURNAL_SEGMENT_SIZE).getValue() * 1024 * 1024);
+            } catch (IOException e)
+            {
+                serverContext.debugCaught(e);
+                serverContext.logMessage(LogSeverity.SEVERE_ERROR, "Unable to open the journal in " + directory +
+                        ", member DNs will only be queued in memory: " + e.getMessage());
+            }
+        }
     }
     
     /**
      * Performs the necessary processing to compute the next series of {@code ChangeRecord} for the engine to process
+     * When the queue is empty, waits up to the configured time for the first record
      * @param maxChanges the batch maximum size
      * @param numStillPending number of changes pending
      * @return the list of records to process
@@ -136,23 +245,34 @@ public class LDAPMemberSource extends SyncSource
     public List<ChangeRecord> getNextBatchOfChanges(int maxChanges, AtomicLong numStillPending)
     {
         List<ChangeRecord> result = new ArrayList<>();
-        int i = 0;
-        while (i++ < maxChanges && !queue.isEmpty())
+        try
         {
-            ChangeRecord record = queue.poll();
-            if (record != null)
-            {
-                result.add(record);
-            } else
+            queue.drainTo(result, maxChanges, maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        List<String> dns = new ArrayList<>(result.size());
+        for (ChangeRecord record : result)
+        {
+            String dn = (String) record.getProperty("DN");
+            PendingMemberSet.getInstance().release(GroupDereference.STRATEGY_ENQUEUE_DN, dn);
+            if (cache == null || !cache.contains(dn))
             {
-                break;
+                dns.add(dn);
             }
         }
+        if (prefetcher != null)
+        {
+            prefetcher.prefetch(dns);
+        }
+        numStillPending.set(queue.size());
         return result;
     }
     
     /**
-     * Performs the necessary processing to retrieve the entry from the external server
+     * Performs the necessary processing to retrieve the entry from the cache, from the prefetch buffer when it was
+     * fetched ahead or from the external server
      * @param syncOperation the sync operation to use to identify the entry to fetch
      * @return the Entry retrieved from the source or null if the entry was not found
      * @throws EndpointException if an exception was ecountered in the process of fetching the entry
@@ -160,9 +280,43 @@ public class LDAPMemberSource extends SyncSource
     @Override
     public Entry fetchEntry(SyncOperation syncOperation) throws EndpointException
     {
+        String dn = (String) syncOperation.getChangeRecord().getProperty("DN");
+        if (cache == null)
+        {
+            return readEntry(dn);
+        }
+        MemberEntryCache.CachedEntry cached = cache.get(dn);
+        if (cached != null)
+        {
+            // the engine may alter the entry it is handed
+            return cached.getEntry() == null ? null : cached.getEntry().duplicate();
+        }
+        Entry entry = readEntry(dn);
+        cache.put(dn, entry);
+        return entry == null ? null : entry.duplicate();
+    }
+    
+    /**
+     * Performs the necessary processing to read an entry from the prefetch buffer or the external server
+     * @param dn the DN of the entry
+     * @return the entry or null if it was not found
+     * @throws EndpointException if the entry could not be read
+     */
+    private Entry readEntry(String dn) throws EndpointException
+    {
+        if (prefetcher != null)
+        {
+            try
+            {
+                return prefetcher.take(dn);
+            } catch (EntryPrefetcher.PrefetchMissException e)
+            {
+                // read it directly
+            }
+        }
         try
         {
-            return ldapExternalServerConnectionPool.getEntry((String) syncOperation.getChangeRecord().getProperty("DN"),attributes.toArray(new String[attributes.size()]));
+            return ldapExternalServerConnectionPool.getEntry(dn,attributes.toArray(new String[attributes.size()]));
         } catch (LDAPException e)
         {
             throw new EndpointException(e);
@@ -170,12 +324,48 @@ public class LDAPMemberSource extends SyncSource
     }
     
     /**
-     * Performs the necessary processing to notify the external server that a change was processed
+     * Performs the necessary processing to acknowledge the processed member DNs in the journal so that the segments
+     * holding them can be deleted
      * @param linkedList a list of operations to acknowledge with the source
      * @throws EndpointException if any exception was encountered in the process of acknowledging
      */
     @Override
     public void acknowledgeCompletedOps(LinkedList<SyncOperation> linkedList) throws EndpointException
     {
+        try
+        {
+            journaledQueue.acknowledge(linkedList);
+        } catch (IOException e)
+        {
+            // the acknowledgements are kept and the checkpoint is written with the next batch
+            serverContext.debugCaught(e);
+        }
+    }
+    
+    /**
+     * Performs the necessary processing to shut down the extension gracefully
+     */
+    @Override
+    public void finalizeSyncSource()
+    {
+        instances.remove(this);
+    }
+    
+    /**
+     * Retrieves the member entry cache
+     * @return the cache or null if entries are not cached
+     */
+    MemberEntryCache getCache()
+    {
+        return cache;
+    }
+    
+    /**
+     * Retrieves the entry prefetcher
+     * @return the prefetcher or null if entries are not prefetched
+     */
+    EntryPrefetcher getPrefetcher()
+    {
+        return prefetcher;
     }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+package com.pingidentity.sync.source;
+
+import com.unboundid.directory.sdk.common.api.MonitorProvider;
+import com.unboundid.directory.sdk.common.config.MonitorProviderConfig;
+import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.args.ArgumentParser;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * This monitor provider tracks the member entry cache and prefetch buffer of the LDAP member sources
+ * Values are summed over all the sources running in the server
+ */
+public class LDAPMemberSourceMonitorProvider extends MonitorProvider {
+
+    DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss");
+
+    private volatile MonitorProviderConfig config;
+    private ServerContext serverContext;
+
+    /**
+     * An empty constructor is *required*
+     */
+    public LDAPMemberSourceMonitorProvider() {
+    }
+
+    @Override
+    public String getExtensionName() {
+        return "LDAPMemberSourceMonitorProvider";
+    }
+
+    @Override
+    public String[] getExtensionDescription() {
+        return new String[]{"This monitor provider tracks metrics for LDAPMemberSource"};
+    }
+
+    @Override
+    public String getMonitorInstanceName() {
+        return "LDAP Member Source Monitor Provider " + config.getConfigObjectName();
+    }
+
+    @Override()
+    public void initializeMonitorProvider(final ServerContext serverContext,
+                                          final MonitorProviderConfig config,
+                                          final ArgumentParser parser)
+            throws LDAPException {
+        this.serverContext = serverContext;
+        this.config = config;
+    }
+
+    @Override()
+    public boolean isConfigurationAcceptable(final MonitorProviderConfig config,
+                                             final ArgumentParser parser,
+                                             final List<String> unacceptableReasons) {
+        return true;
+    }
+
+    @Override()
+    public long getUpdateIntervalMillis() {
+        return 10000L;
+    }
+
+    @Override()
+    public ResultCode applyConfiguration(final MonitorProviderConfig config,
+                                         final ArgumentParser parser,
+                                         final List<String> adminActionsRequired,
+                                         final List<String> messages) {
+        this.config = config;
+        return ResultCode.SUCCESS;
+    }
+
+    @Override
+    public List<Attribute> getMonitorAttributes() {
+        List<Attribute> result = new ArrayList<>();
+
+        result.add(new Attribute("monitor-last-updated",dateFormat.format(Calendar.getInstance().getTime())));
+
+        long cacheSize = 0L;
+        long cacheBytes = 0L;
+        long cacheHits = 0L;
+        long cacheMisses = 0L;
+        long cacheEvictions = 0L;
+        long cacheExpirations = 0L;
+        long cacheRejections = 0L;
+        long prefetched = 0L;
+        long prefetchHits = 0L;
+        long prefetchMisses = 0L;
+        long prefetchExpirations = 0L;
+        for (LDAPMemberSource source : LDAPMemberSource.instances) {
+            MemberEntryCache cache = source.getCache();
+            if (cache != null) {
+                cacheSize += cache.size();
+                cacheBytes += cache.getEstimatedBytes();
+                cacheHits += cache.getHits();
+                cacheMisses += cache.getMisses();
+                cacheEvictions += cache.getEvictions();
+                cacheExpirations += cache.getExpirations();
+                cacheRejections += cache.getRejections();
+            }
+            EntryPrefetcher prefetcher = source.getPrefetcher();
+            if (prefetcher != null) {
+                prefetched += prefetcher.size();
+                prefetchHits += prefetcher.getHits();
+                prefetchMisses += prefetcher.getMisses();
+                prefetchExpirations += prefetcher.getExpirations();
+            }
+        }
+
+        result.add(new Attribute("member-entry-cache-size",Long.toString(cacheSize)));
+        result.add(new Attribute("member-entry-cache-estimated-bytes",Long.toString(cacheBytes)));
+        result.add(new Attribute("member-entry-cache-hits",Long.toString(cacheHits)));
+        result.add(new Attribute("member-entry-cache-misses",Long.toString(cacheMisses)));
+        result.add(new Attribute("member-entry-cache-hit-ratio",String.format("%.4f",
+                cacheHits + cacheMisses == 0L ? 0.0 : (double) cacheHits / (cacheHits + cacheMisses))));
+        result.add(new Attribute("member-entry-cache-evictions",Long.toString(cacheEvictions)));
+        result.add(new Attribute("member-entry-cache-expirations",Long.toString(cacheExpirations)));
+        result.add(new Attribute("member-entry-cache-rejections",Long.toString(cacheRejections)));
+        result.add(new Attribute("prefetch-buffer-size",Long.toString(prefetched)));
+        result.add(new Attribute("prefetch-hits",Long.toString(prefetchHits)));
+        result.add(new Attribute("prefetch-misses",Long.toString(prefetchMisses)));
+        result.add(new Attribute("prefetch-expirations",Long.toString(prefetchExpirations)));
+        result.add(new Attribute("journal-write-failures",Long.toString(JournaledChangeQueue.journalWriteFailures.get())));
+        result.add(new Attribute("journal-replay-failures",Long.toString(JournaledChangeQueue.journalReplayFailures.get())));
+
+        return result;
+    }
+}
@@ -1,24 +1,71 @@
 package com.pingidentity.sync.source;
 
+import com.pingidentity.sync.pipe.GroupDereference;
+import com.pingidentity.sync.pipe.PendingMemberSet;
+import com.pingidentity.util.DepthTrackingQueue;
+import com.pingidentity.util.SpillOverQueue;
 import com.unboundid.directory.sdk.sync.types.ChangeRecord;
 
-import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class MemberDNQueue
 {
-    private static Queue<ChangeRecord> instance = null;
+    private static DepthTrackingQueue<ChangeRecord> instance = null;
+    private static JournaledChangeQueue journaledInstance = null;
+    private static SpillOverQueue<ChangeRecord> spillOverQueue = null;
     
     private MemberDNQueue()
     {
     }
     
-    public static synchronized Queue<ChangeRecord> getInstance()
+    public static synchronized DepthTrackingQueue<ChangeRecord> getInstance()
     {
         if (instance == null)
         {
-            instance = new ConcurrentLinkedQueue<ChangeRecord>();
+            // held in memory until the source enables spilling to disk
+            spillOverQueue = new SpillOverQueue<>(new ConcurrentLinkedQueue<ChangeRecord>(),
+                    new JournaledChangeQueue.DNRecordCodec());
+            final DepthTrackingQueue<ChangeRecord> tracked = new DepthTrackingQueue<>(spillOverQueue);
+            spillOverQueue.setDropListener((bytes, count) -> {
+                tracked.discarded(count);
+                // the DNs that were lost would stay pending forever
+                String dn = bytes == null ? null : JournaledChangeQueue.DNRecordCodec.getDN(bytes);
+                PendingMemberSet pendingMembers = PendingMemberSet.getInstance();
+                if (dn != null)
+                {
+                    pendingMembers.release(GroupDereference.STRATEGY_ENQUEUE_DN, dn);
+                } else if (pendingMembers.size() > 0)
+                {
+                    pendingMembers.clear();
+                }
+            });
+            instance = tracked;
         }
         return instance;
     }
+    
+    /**
+     * Retrieves the producer side of the queue, which journals the records when the source enabled it
+     *
+     * @return the journaled queue
+     */
+    public static synchronized JournaledChangeQueue getJournaledInstance()
+    {
+        if (journaledInstance == null)
+        {
+            journaledInstance = new JournaledChangeQueue(getInstance());
+        }
+        return journaledInstance;
+    }
+    
+    /**
+     * Retrieves the spill-over queue backing the queue, for the source to enable spilling to disk
+     *
+     * @return the spill-over queue
+     */
+    public static synchronized SpillOverQueue<ChangeRecord> getSpillOverQueue()
+    {
+        getInstance();
+        return spillOverQueue;
+    }
 }
\ No newline at end of file
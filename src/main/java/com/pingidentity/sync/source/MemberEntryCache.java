@@ -0,0 +1,406 @@
+package com.pingidentity.sync.source;
+
+import com.pingidentity.util.DNNormalizer;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches member entries read from the external server, so that members coming through the queue again
+ * shortly after are not read again
+ * <p>
+ * Entries are keyed by normalized DN and expire after a fixed time. The cache is bounded by a number of entries
+ * and/or an estimated number of bytes. Two eviction policies are available:
+ * <ul>
+ * <li>LRU: the least recently used entry is evicted</li>
+ * <li>TinyLFU: new entries go through a small LRU window. An entry leaving the window only replaces the least
+ * recently used entry of the main area if it was requested more often, according to a count-min sketch of the
+ * recent requests. This keeps the frequently requested members cached when many members are only seen once.</li>
+ * </ul>
+ */
+public class MemberEntryCache
+{
+    public static final String POLICY_LRU = "lru";
+    public static final String POLICY_TINY_LFU = "tiny-lfu";
+
+    private final long ttlMillis;
+    private final long maxEntries;
+    private final long maxBytes;
+    private final boolean tinyLfu;
+    private final LinkedHashMap<String, CachedEntry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedEntry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long bytes = 0L;
+
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong evictions = new AtomicLong(0L);
+    private final AtomicLong expirations = new AtomicLong(0L);
+    private final AtomicLong rejections = new AtomicLong(0L);
+
+    /**
+     * Performs the necessary processing to initialize the cache
+     *
+     * @param ttl        how long an entry stays in the cache in milliseconds
+     * @param entries    the maximum number of entries (null = unbounded)
+     * @param size       the maximum estimated size of the entries in bytes (null = unbounded)
+     * @param policy     the eviction policy, {@link #POLICY_LRU} or {@link #POLICY_TINY_LFU}
+     */
+    public MemberEntryCache(final long ttl, final Long entries, final Long size, final String policy)
+    {
+        ttlMillis = ttl;
+        maxEntries = entries == null ? Long.MAX_VALUE : entries;
+        maxBytes = size == null ? Long.MAX_VALUE : size;
+        tinyLfu = POLICY_TINY_LFU.equals(policy);
+        sketch = tinyLfu ? new FrequencySketch(entries == null ? 65536 : (int) Math.min(entries, 1 << 24)) : null;
+    }
+
+    /**
+     * Retrieves a cached entry
+     *
+     * @param dn the DN of the entry
+     * @return the cached entry or null if not cached, the entry may have been cached as missing so
+     * {@link CachedEntry#getEntry()} may return null
+     */
+    public synchronized CachedEntry get(final String dn)
+    {
+        String key = DNNormalizer.normalize(dn);
+        if (sketch != null)
+        {
+            sketch.increment(key);
+        }
+        CachedEntry cached = window.get(key);
+        LinkedHashMap<String, CachedEntry> area = window;
+        if (cached == null)
+        {
+            cached = main.get(key);
+            area = main;
+        }
+        if (cached == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (cached.expiration < System.currentTimeMillis())
+        {
+            area.remove(key);
+            bytes -= cached.size;
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached;
+    }
+
+    /**
+     * Indicates whether an entry is cached and not expired, without counting it as a request
+     *
+     * @param dn the DN of the entry
+     * @return true if the entry is cached
+     */
+    public synchronized boolean contains(final String dn)
+    {
+        String key = DNNormalizer.normalize(dn);
+        CachedEntry cached = window.get(key);
+        if (cached == null)
+        {
+            cached = main.get(key);
+        }
+        return cached != null && cached.expiration >= System.currentTimeMillis();
+    }
+
+    /**
+     * Performs the necessary processing to cache an entry
+     *
+     * @param dn    the DN of the entry
+     * @param entry the entry (null if it does not exist)
+     */
+    public synchronized void put(final String dn, final Entry entry)
+    {
+        String key = DNNormalizer.normalize(dn);
+        CachedEntry cached = new CachedEntry(entry, System.currentTimeMillis() + ttlMillis, estimateSize(key, entry));
+        if (cached.size > maxBytes)
+        {
+            rejections.incrementAndGet();
+            return;
+        }
+        CachedEntry previous = window.remove(key);
+        if (previous == null)
+        {
+            previous = main.remove(key);
+        }
+        if (previous != null)
+        {
+            bytes -= previous.size;
+        }
+        if (tinyLfu)
+        {
+            window.put(key, cached);
+        } else
+        {
+            main.put(key, cached);
+        }
+        bytes += cached.size;
+        evict();
+    }
+
+    /**
+     * Performs the necessary processing to remove all entries
+     */
+    public synchronized void clear()
+    {
+        window.clear();
+        main.clear();
+        bytes = 0L;
+    }
+
+    /**
+     * Retrieves the number of cached entries
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        return window.size() + main.size();
+    }
+
+    /**
+     * Retrieves the estimated size of the cached entries
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getEstimatedBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Retrieves the number of requests served from the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of requests for entries not cached or expired
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of entries evicted to make room for others
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Retrieves the number of entries removed because they expired
+     *
+     * @return the number of expirations
+     */
+    public long getExpirations()
+    {
+        return expirations.get();
+    }
+
+    /**
+     * Retrieves the number of entries that were not cached, either because they were too large or, with the
+     * TinyLFU policy, because they were requested less often than the entry they would have replaced
+     *
+     * @return the number of rejected entries
+     */
+    public long getRejections()
+    {
+        return rejections.get();
+    }
+
+    private void evict()
+    {
+        if (!tinyLfu)
+        {
+            while (overLimit() && !main.isEmpty())
+            {
+                removeEldest(main);
+                evictions.incrementAndGet();
+            }
+            return;
+        }
+        // the window holds about 1% of the entries
+        long windowLimit = Math.max(1L, (maxEntries == Long.MAX_VALUE ? window.size() + main.size() : maxEntries)
+                / 100L);
+        while (window.size() > windowLimit || (overLimit() && !window.isEmpty()))
+        {
+            Map.Entry<String, CachedEntry> candidate = removeEldest(window);
+            main.put(candidate.getKey(), candidate.getValue());
+            bytes += candidate.getValue().size;
+            if (!overLimit())
+            {
+                continue;
+            }
+            // the candidate is now the most recent entry of the main area, compare it with the least recent one
+            Map.Entry<String, CachedEntry> victim = main.entrySet().iterator().next();
+            if (victim.getKey().equals(candidate.getKey())
+                    || sketch.frequency(candidate.getKey()) <= sketch.frequency(victim.getKey()))
+            {
+                main.remove(candidate.getKey());
+                bytes -= candidate.getValue().size;
+                rejections.incrementAndGet();
+            } else
+            {
+                removeEldest(main);
+                evictions.incrementAndGet();
+            }
+        }
+        while (overLimit() && !main.isEmpty())
+        {
+            removeEldest(main);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean overLimit()
+    {
+        return window.size() + main.size() > maxEntries || bytes > maxBytes;
+    }
+
+    private Map.Entry<String, CachedEntry> removeEldest(final LinkedHashMap<String, CachedEntry> area)
+    {
+        Iterator<Map.Entry<String, CachedEntry>> iterator = area.entrySet().iterator();
+        Map.Entry<String, CachedEntry> eldest = iterator.next();
+        Map.Entry<String, CachedEntry> result = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        bytes -= result.getValue().size;
+        return result;
+    }
+    /**
+     * Performs the necessary processing to roughly estimate the heap used by a cached entry
+     */
+    private static long estimateSize(final String key, final Entry entry)
+    {
+        long size = 64L + 2L * key.length();
+        if (entry == null)
+        {
+            return size;
+        }
+        size += 2L * entry.getDN().length();
+        for (Attribute attribute : entry.getAttributes())
+        {
+            size += 48L + 2L * attribute.getName().length();
+            for (byte[] value : attribute.getValueByteArrays())
+            {
+                size += 24L + value.length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * This class holds a cached entry
+     */
+    public static class CachedEntry
+    {
+        private final Entry entry;
+        private final long expiration;
+        private final long size;
+
+        private CachedEntry(final Entry e, final long exp, final long s)
+        {
+            entry = e;
+            expiration = exp;
+            size = s;
+        }
+
+        /**
+         * Retrieves the cached entry
+         *
+         * @return the entry or null if it did not exist when it was read
+         */
+        public Entry getEntry()
+        {
+            return entry;
+        }
+    }
+
+    /**
+     * This class estimates how often keys were requested recently with a count-min sketch of 4 rows of byte
+     * counters. Counters are halved once the number of increments reaches ten times the width of the sketch so that
+     * old requests fade away.
+     */
+    private static class FrequencySketch
+    {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+                0xD6E8FEB86659FD93L};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final long resetThreshold;
+        private long increments = 0L;
+
+        FrequencySketch(final int expectedEntries)
+        {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            resetThreshold = 10L * width;
+        }
+
+        void increment(final String key)
+        {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++)
+            {
+                int index = index(hash, i);
+                if (counters[i][index] < Byte.MAX_VALUE)
+                {
+                    counters[i][index]++;
+                }
+            }
+            if (++increments >= resetThreshold)
+            {
+                for (byte[] row : counters)
+                {
+                    for (int j = 0; j < row.length; j++)
+                    {
+                        row[j] = (byte) (row[j] >> 1);
+                    }
+                }
+                increments /= 2L;
+            }
+        }
+
+        int frequency(final String key)
+        {
+            int hash = key.hashCode();
+            int frequency = Byte.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++)
+            {
+                frequency = Math.min(frequency, counters[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(final int hash, final int row)
+        {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package com.pingidentity.sync.source;
 
+import com.pingidentity.util.DepthTrackingQueue;
 import com.unboundid.directory.sdk.sync.types.ChangeRecord;
 
-import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -11,18 +11,33 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class MemberEntryQueue
 {
-    private static Queue<ChangeRecord> instance = null;
+    private static DepthTrackingQueue<ChangeRecord> instance = null;
+    private static JournaledChangeQueue journaledInstance = null;
     
     private MemberEntryQueue()
     {
     }
     
-    public static synchronized Queue<ChangeRecord> getInstance()
+    public static synchronized DepthTrackingQueue<ChangeRecord> getInstance()
     {
         if (instance == null)
         {
-            instance = new ConcurrentLinkedQueue<>();
+            instance = new DepthTrackingQueue<>(new ConcurrentLinkedQueue<>());
         }
         return instance;
     }
+    
+    /**
+     * Retrieves the producer side of the queue, which journals the records when the source enabled it
+     *
+     * @return the journaled queue
+     */
+    public static synchronized JournaledChangeQueue getJournaledInstance()
+    {
+        if (journaledInstance == null)
+        {
+            journaledInstance = new JournaledChangeQueue(getInstance());
+        }
+        return journaledInstance;
+    }
 }
\ No newline at end of file
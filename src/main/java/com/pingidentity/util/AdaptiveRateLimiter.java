@@ -0,0 +1,200 @@
+package com.pingidentity.util;
+
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class paces requests to a server at a rate that follows the health of the server, with an additive increase
+ * and multiplicative decrease (AIMD)
+ * <p>
+ * Callers acquire permits before sending requests and report the result code and latency of each request. The rate
+ * grows by a fixed step at most once per second while requests succeed within the latency threshold and the rate is
+ * actually what limits throughput. It is cut by a factor as soon as a request fails with a result code showing the
+ * server is overloaded or takes longer than the threshold, at most once per second so that the requests that were
+ * already in flight when the server started to struggle only count once. The rate always stays between the floor
+ * and the ceiling.
+ * <p>
+ * Permits are handed out in time slots spaced by the current rate. Slots are not accumulated while idle, so that the
+ * server never receives a burst after a quiet period.
+ */
+public class AdaptiveRateLimiter
+{
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1L);
+    private static final Set<ResultCode> DISTRESS_RESULT_CODES = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList(ResultCode.BUSY, ResultCode.UNAVAILABLE, ResultCode.TIME_LIMIT_EXCEEDED, ResultCode.TIMEOUT,
+                    ResultCode.SERVER_DOWN, ResultCode.CONNECT_ERROR)));
+
+    private final double floor;
+    private final double ceiling;
+    private final double increase;
+    private final double decreaseFactor;
+    private final long latencyThresholdNanos;
+    private volatile double rate;
+    private final AtomicLong nextSlotNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastIncreaseNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime() - WINDOW_NANOS);
+    private final LongAdder completed = new LongAdder();
+    private final AtomicLong increases = new AtomicLong(0L);
+    private final AtomicLong decreases = new AtomicLong(0L);
+
+    /**
+     * Performs the necessary processing to initialize the limiter
+     *
+     * @param minRate          the lowest rate, in requests per second
+     * @param maxRate          the highest rate, in requests per second
+     * @param initialRate      the rate to start with, in requests per second
+     * @param increaseStep     how much the rate grows per second while the server is healthy
+     * @param decreasePercent  how much of the rate is cut when the server is in distress, in percent
+     * @param latencyThreshold the latency past which a request is considered a sign of distress, in milliseconds
+     *                         (null = latency is not considered)
+     */
+    public AdaptiveRateLimiter(final int minRate, final int maxRate, final double initialRate, final int increaseStep,
+                               final int decreasePercent, final Integer latencyThreshold)
+    {
+        floor = Math.max(1, minRate);
+        ceiling = Math.max(floor, maxRate);
+        increase = Math.max(1, increaseStep);
+        decreaseFactor = Math.max(0, Math.min(99, 100 - decreasePercent)) / 100d;
+        latencyThresholdNanos = latencyThreshold == null ? Long.MAX_VALUE
+                : TimeUnit.MILLISECONDS.toNanos(latencyThreshold);
+        rate = Math.max(floor, Math.min(ceiling, initialRate));
+    }
+
+    /**
+     * Determines whether a result code shows that the server is overloaded or unreachable
+     *
+     * @param resultCode the result code
+     * @return true if the rate should be cut, false otherwise
+     */
+    public static boolean isDistress(final ResultCode resultCode)
+    {
+        return resultCode != null && DISTRESS_RESULT_CODES.contains(resultCode);
+    }
+
+    /**
+     * Performs the necessary processing to wait for the next time slot at the current rate
+     * The wait ends early if the thread is interrupted, the interrupt status is kept
+     *
+     * @param permits the number of requests about to be sent
+     */
+    public void acquire(final int permits)
+    {
+        long interval = (long) (WINDOW_NANOS * permits / rate);
+        long now = System.nanoTime();
+        long slot;
+        while (true)
+        {
+            long next = nextSlotNanos.get();
+            slot = Math.max(next, now);
+            if (nextSlotNanos.compareAndSet(next, slot + interval))
+            {
+                break;
+            }
+        }
+        long remaining;
+        while ((remaining = slot - System.nanoTime()) > 0L)
+        {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.currentThread().isInterrupted())
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Performs the necessary processing to adjust the rate to the outcome of a request
+     *
+     * @param resultCode   the result code of the request
+     * @param latencyNanos how long the request took
+     * @param requests     the number of requests the outcome covers, for batches
+     */
+    public void onResult(final ResultCode resultCode, final long latencyNanos, final int requests)
+    {
+        long now = System.nanoTime();
+        if (isDistress(resultCode) || latencyNanos > latencyThresholdNanos)
+        {
+            long last = lastDecreaseNanos.get();
+            if (now - last >= WINDOW_NANOS && lastDecreaseNanos.compareAndSet(last, now))
+            {
+                rate = Math.max(floor, rate * decreaseFactor);
+                decreases.incrementAndGet();
+                // start measuring again at the new rate
+                lastIncreaseNanos.set(now);
+                completed.reset();
+            }
+            return;
+        }
+
+        completed.add(requests);
+        long last = lastIncreaseNanos.get();
+        if (now - last >= WINDOW_NANOS && lastIncreaseNanos.compareAndSet(last, now))
+        {
+            double achieved = completed.sumThenReset() * (double) WINDOW_NANOS / (now - last);
+            // growing a rate that is not reached would only make the next cut meaningless
+            if (achieved >= rate / 2 && rate < ceiling)
+            {
+                rate = Math.min(ceiling, rate + increase);
+                increases.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the current rate
+     *
+     * @return the rate, in requests per second
+     */
+    public double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Retrieves the lowest rate
+     *
+     * @return the floor, in requests per second
+     */
+    public double getFloor()
+    {
+        return floor;
+    }
+
+    /**
+     * Retrieves the highest rate
+     *
+     * @return the ceiling, in requests per second
+     */
+    public double getCeiling()
+    {
+        return ceiling;
+    }
+
+    /**
+     * Retrieves the number of times the rate was increased
+     *
+     * @return the number of increases
+     */
+    public long getIncreases()
+    {
+        return increases.get();
+    }
+
+    /**
+     * Retrieves the number of times the rate was cut
+     *
+     * @return the number of decreases
+     */
+    public long getDecreases()
+    {
+        return decreases.get();
+    }
+}
@@ -0,0 +1,93 @@
+package com.pingidentity.util;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+
+import java.util.*;
+
+/**
+ * This class provides helpers to look up many entries with a few one-level searches
+ * <p>
+ * Entries sharing the same parent can be retrieved with a single search below that parent whose filter is a
+ * disjunction of their RDNs. Unlike a filter on {@code entryDN}, this does not require any support from the server.
+ */
+public class ChildFilters
+{
+    private ChildFilters()
+    {
+    }
+    
+    /**
+     * Performs the necessary processing to group DNs by their parent DN, preserving their order
+     *
+     * @param dns         the DNs to group
+     * @param chunkSize   the maximum number of DNs in a group
+     * @param unparseable a list to which DNs that cannot be parsed or that have no parent are added
+     * @return a list of DN groups, each of which share the same parent
+     */
+    public static List<List<DN>> groupByParent(final Collection<String> dns, final int chunkSize,
+                                               final List<String> unparseable)
+    {
+        Map<DN, List<DN>> byParent = new LinkedHashMap<>();
+        for (String dn : dns)
+        {
+            try
+            {
+                DN parsedDN = new DN(dn);
+                DN parentDN = parsedDN.getParent();
+                if (parentDN == null)
+                {
+                    unparseable.add(dn);
+                    continue;
+                }
+                byParent.computeIfAbsent(parentDN, k -> new ArrayList<>()).add(parsedDN);
+            } catch (LDAPException e)
+            {
+                unparseable.add(dn);
+            }
+        }
+        
+        List<List<DN>> result = new ArrayList<>();
+        for (List<DN> siblings : byParent.values())
+        {
+            for (int i = 0; i < siblings.size(); i += chunkSize)
+            {
+                result.add(siblings.subList(i, Math.min(i + chunkSize, siblings.size())));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Performs the necessary processing to build a filter matching the provided sibling entries in a one-level
+     * search below their parent
+     *
+     * @param siblings DNs sharing the same parent
+     * @return the filter
+     */
+    public static Filter createRDNFilter(final Collection<DN> siblings)
+    {
+        List<Filter> components = new ArrayList<>(siblings.size());
+        for (DN dn : siblings)
+        {
+            RDN rdn = dn.getRDN();
+            String[] names = rdn.getAttributeNames();
+            byte[][] values = rdn.getByteArrayAttributeValues();
+            if (names.length == 1)
+            {
+                components.add(Filter.createEqualityFilter(names[0], values[0]));
+            } else
+            {
+                List<Filter> rdnComponents = new ArrayList<>(names.length);
+                for (int i = 0; i < names.length; i++)
+                {
+                    rdnComponents.add(Filter.createEqualityFilter(names[i], values[i]));
+                }
+                components.add(Filter.createANDFilter(rdnComponents));
+            }
+        }
+        return Filter.createORFilter(components);
+    }
+}
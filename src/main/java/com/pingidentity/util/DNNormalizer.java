@@ -0,0 +1,36 @@
+package com.pingidentity.util;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * This class provides a helper to normalize DNs used as keys
+ * <p>
+ * DNs read from change log entries and destination entries are not always valid. Rather than failing, a DN that
+ * cannot be parsed is keyed by its lower case version, so that it still matches itself whatever its case.
+ */
+public class DNNormalizer
+{
+    private DNNormalizer()
+    {
+    }
+
+    /**
+     * Performs the necessary processing to normalize a DN, falling back to a lower case version if it cannot be
+     * parsed
+     *
+     * @param dn the DN
+     * @return the normalized DN
+     */
+    public static String normalize(final String dn)
+    {
+        try
+        {
+            return DN.normalize(dn);
+        } catch (LDAPException e)
+        {
+            return StaticUtils.toLowerCase(dn);
+        }
+    }
+}
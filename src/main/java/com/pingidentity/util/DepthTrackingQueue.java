@@ -0,0 +1,271 @@
+package com.pingidentity.util;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class wraps a queue to keep track of its depth and high-water mark as elements are added and removed
+ * <p>
+ * Computing the size of a {@code ConcurrentLinkedQueue} requires traversing the whole queue. Here the depth is kept
+ * in a striped counter so that producers do not contend on it and reading it never walks the queue. Summing the
+ * counter visits every stripe, so the high-water mark is only sampled on a fraction of the additions and whenever the
+ * depth or the high-water mark is read. It may therefore miss a short-lived peak, but it never needs locking.
+ * <p>
+ * Consumers may wait for elements with {@link #drainTo(Collection, int, long, TimeUnit)} whatever the underlying
+ * queue. Producers only signal when a consumer is actually waiting so adding elements stays lock-free otherwise.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class DepthTrackingQueue<E> extends AbstractQueue<E>
+{
+    private static final int HIGH_WATER_MARK_SAMPLE_MASK = 63;
+    private final Queue<E> delegate;
+    private final LongAdder depth = new LongAdder();
+    private final AtomicLong highWaterMark = new AtomicLong(0L);
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private final Object notEmpty = new Object();
+
+    /**
+     * Performs the necessary processing to wrap the provided queue
+     *
+     * @param q the queue to wrap, it must not be accessed directly afterwards
+     */
+    public DepthTrackingQueue(final Queue<E> q)
+    {
+        delegate = q;
+    }
+
+    @Override
+    public boolean offer(E e)
+    {
+        if (delegate.offer(e))
+        {
+            added();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Performs the necessary processing to add an element, waiting for room if the underlying queue is bounded
+     *
+     * @param e the element to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public void put(E e) throws InterruptedException
+    {
+        if (delegate instanceof BlockingQueue)
+        {
+            ((BlockingQueue<E>) delegate).put(e);
+            added();
+        } else
+        {
+            add(e);
+        }
+    }
+
+    @Override
+    public E poll()
+    {
+        E e = delegate.poll();
+        if (e != null)
+        {
+            depth.decrement();
+        }
+        return e;
+    }
+
+    /**
+     * Performs the necessary processing to retrieve an element, waiting up to the provided time if the underlying
+     * queue supports it
+     *
+     * @param timeout how long to wait
+     * @param unit    the unit of the timeout
+     * @return the element or null if none was available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (!(delegate instanceof BlockingQueue))
+        {
+            return poll();
+        }
+        E e = ((BlockingQueue<E>) delegate).poll(timeout, unit);
+        if (e != null)
+        {
+            depth.decrement();
+        }
+        return e;
+    }
+
+    /**
+     * Performs the necessary processing to move up to the provided number of elements to a collection, waiting up
+     * to the provided time for the first one if the queue is empty
+     * The method returns as soon as at least one element is available or the timeout expires
+     *
+     * @param c           the collection to add the elements to
+     * @param maxElements the maximum number of elements to move
+     * @param timeout     how long to wait for the first element (0 = do not wait)
+     * @param unit        the unit of the timeout
+     * @return the number of elements moved
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainTo(Collection<? super E> c, int maxElements, long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        int drained = drain(c, maxElements);
+        if (drained > 0 || timeout <= 0L || maxElements <= 0)
+        {
+            return drained;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiters.incrementAndGet();
+        try
+        {
+            synchronized (notEmpty)
+            {
+                long remaining;
+                while (delegate.isEmpty() && (remaining = deadline - System.nanoTime()) > 0L)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(notEmpty, remaining);
+                }
+            }
+        } finally
+        {
+            waiters.decrementAndGet();
+        }
+        return drain(c, maxElements);
+    }
+
+    private int drain(Collection<? super E> c, int maxElements)
+    {
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null)
+        {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public E peek()
+    {
+        return delegate.peek();
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        final Iterator<E> iterator = delegate.iterator();
+        return new Iterator<E>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next()
+            {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                iterator.remove();
+                depth.decrement();
+            }
+        };
+    }
+
+    /**
+     * Retrieves the number of elements in the queue without traversing it
+     * The value is accurate when the queue is quiescent and an estimate otherwise
+     *
+     * @return the number of elements in the queue
+     */
+    @Override
+    public int size()
+    {
+        long d = sampleHighWaterMark();
+        return d < 0L ? 0 : (int) Math.min(d, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return delegate.isEmpty();
+    }
+
+    /**
+     * Performs the necessary processing to account for elements the underlying queue dropped on its own
+     *
+     * @param count the number of elements dropped
+     */
+    public void discarded(final long count)
+    {
+        depth.add(-count);
+    }
+
+    /**
+     * Indicates whether waiting operations are supported by the underlying queue
+     *
+     * @return true if the underlying queue is a {@code BlockingQueue}
+     */
+    public boolean isBlocking()
+    {
+        return delegate instanceof BlockingQueue;
+    }
+
+    /**
+     * Retrieves the largest number of elements the queue held since it was created
+     *
+     * @return the high-water mark
+     */
+    public long getHighWaterMark()
+    {
+        sampleHighWaterMark();
+        return highWaterMark.get();
+    }
+
+    private void added()
+    {
+        depth.increment();
+        if ((ThreadLocalRandom.current().nextInt() & HIGH_WATER_MARK_SAMPLE_MASK) == 0)
+        {
+            sampleHighWaterMark();
+        }
+        if (waiters.get() > 0)
+        {
+            synchronized (notEmpty)
+            {
+                notEmpty.notifyAll();
+            }
+        }
+    }
+
+    private long sampleHighWaterMark()
+    {
+        long d = depth.sum();
+        long max = highWaterMark.get();
+        while (d > max && !highWaterMark.compareAndSet(max, d))
+        {
+            max = highWaterMark.get();
+        }
+        return d;
+    }
+}
@@ -0,0 +1,329 @@
+package com.pingidentity.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+/**
+ * This class provides an append-only journal of records stored in segment files
+ * <p>
+ * Every record gets a sequence number. Records are acknowledged once they have been processed and the journal keeps
+ * track of the highest sequence number below which all records were acknowledged. That sequence number is written
+ * to a checkpoint file and segments holding only acknowledged records are deleted. After a restart, the records that
+ * were not acknowledged are handed back to the caller.
+ * <p>
+ * Record layout: payload length (int), sequence number (long), CRC-32 of the payload (int), payload. Segments are
+ * zero-filled when created so a zero length marks the end of the records in a segment. A record with an invalid
+ * checksum, as left by a crash in the middle of a write, marks the end of a segment as well.
+ * <p>
+ * Records are written to the active segment through its channel and segments are read back with plain sequential
+ * reads. Segments are never memory-mapped, so that a deleted segment releases its disk space right away rather than
+ * when a mapping is garbage collected. Written records survive the process crashing but are only guaranteed to reach
+ * the disk when the operating system flushes them.
+ */
+public class SegmentJournal implements Closeable
+{
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * This interface receives the records replayed from the journal
+     */
+    public interface RecordConsumer
+    {
+        /**
+         * Performs the necessary processing to handle a replayed record
+         *
+         * @param sequence the sequence number of the record
+         * @param payload  the payload of the record
+         * @return true if the record is pending until it is acknowledged, false if it could not be handled and should
+         * be considered acknowledged right away so that it does not hold back the checkpoint
+         */
+        public boolean accept(long sequence, byte[] payload);
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, File> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<>();
+    private FileChannel activeChannel = null;
+    private long activePosition = 0L;
+    private long activeSize = 0L;
+    private long nextSequence;
+    private volatile long acknowledged;
+
+    /**
+     * Performs the necessary processing to open the journal, replaying the records that were not acknowledged
+     *
+     * @param dir       the directory where segments are stored
+     * @param size      the size of a segment in bytes
+     * @param recovered the consumer to hand records that were not acknowledged to
+     * @throws IOException if the journal cannot be opened
+     */
+    public SegmentJournal(final File dir, final int size, final RecordConsumer recovered) throws IOException
+    {
+        directory = dir;
+        segmentSize = size;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        acknowledged = readCheckpoint();
+        File[] files = directory.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                try
+                {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e)
+                {
+                    // not one of ours
+                }
+            }
+        }
+        nextSequence = acknowledged + 1L;
+        replay(acknowledged, recovered);
+    }
+
+    /**
+     * Performs the necessary processing to append a record to the journal
+     * <p>
+     * Appends are serialized on purpose. Replay stops at the first record that is missing or torn, so the records of
+     * a segment must be written one after the other: with space reserved concurrently, a crash while an earlier
+     * record is still being copied would hide later records whose append already returned. The checksum is computed
+     * and the record is laid out before taking the lock, leaving only the write of the record inside it.
+     *
+     * @param payload the record payload
+     * @return the sequence number of the record
+     * @throws IOException if the record could not be written
+     */
+    public long append(final byte[] payload) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int checksum = (int) crc.getValue();
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(payload.length);
+        record.putLong(0L);
+        record.putInt(checksum);
+        record.put(payload);
+        synchronized (this)
+        {
+            // keep room for the terminating zero length
+            if (activeChannel == null || activeSize - activePosition < recordSize + 4)
+            {
+                roll(recordSize + 4);
+            }
+            long sequence = nextSequence;
+            record.putLong(4, sequence);
+            record.flip();
+            while (record.hasRemaining())
+            {
+                activeChannel.write(record, activePosition + record.position());
+            }
+            nextSequence++;
+            activePosition += recordSize;
+            // before the lock is released so that a checkpoint never gets past the record
+            outstanding.add(sequence);
+            return sequence;
+        }
+    }
+
+    /**
+     * Performs the necessary processing to mark a record as processed
+     * Records do not need to be acknowledged in order
+     *
+     * @param sequence the sequence number of the record
+     */
+    public void acknowledge(final long sequence)
+    {
+        outstanding.remove(sequence);
+    }
+
+    /**
+     * Performs the necessary processing to persist the acknowledged sequence number and delete the segments that
+     * only hold acknowledged records
+     *
+     * @return the highest sequence number below which all records are acknowledged
+     * @throws IOException if the checkpoint could not be written
+     */
+    public synchronized long checkpoint() throws IOException
+    {
+        long low = outstanding.isEmpty() ? nextSequence - 1L : outstanding.first() - 1L;
+        if (low > acknowledged)
+        {
+            acknowledged = low;
+            writeCheckpoint(low);
+            truncate(low);
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Performs the necessary processing to consider all the records up to the provided sequence number
+     * acknowledged and all the following ones pending, as when setting a startpoint
+     *
+     * @param sequence the sequence number of the last acknowledged record
+     * @throws IOException if the checkpoint could not be written
+     */
+    public synchronized void reset(final long sequence) throws IOException
+    {
+        outstanding.clear();
+        acknowledged = sequence;
+        writeCheckpoint(sequence);
+        truncate(sequence);
+    }
+
+    /**
+     * Performs the necessary processing to read back the records following the provided sequence number
+     * The records the consumer accepts are considered pending until they are acknowledged
+     *
+     * @param after    the sequence number after which records are replayed
+     * @param consumer the consumer to hand the records to
+     * @throws IOException if a segment could not be read
+     */
+    public synchronized void replay(final long after, final RecordConsumer consumer) throws IOException
+    {
+        for (File file : segments.values())
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536)))
+            {
+                long remaining = file.length();
+                while (remaining >= RECORD_HEADER_SIZE)
+                {
+                    int length = in.readInt();
+                    if (length <= 0 || length > remaining - RECORD_HEADER_SIZE)
+                    {
+                        break;
+                    }
+                    long sequence = in.readLong();
+                    int checksum = in.readInt();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    remaining -= RECORD_HEADER_SIZE + length;
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                    {
+                        break;
+                    }
+                    nextSequence = Math.max(nextSequence, sequence + 1L);
+                    if (sequence > after)
+                    {
+                        // pending before it is handed over since it may be acknowledged as soon as it is
+                        outstanding.add(sequence);
+                        if (!consumer.accept(sequence, payload))
+                        {
+                            outstanding.remove(sequence);
+                        }
+                    }
+                }
+            } catch (EOFException e)
+            {
+                // the segment is shorter than when its length was read, its last record is incomplete
+            }
+        }
+    }
+
+    /**
+     * Retrieves the highest sequence number below which all records were acknowledged as of the last checkpoint
+     *
+     * @return the acknowledged sequence number
+     */
+    public long getAcknowledgedSequence()
+    {
+        return acknowledged;
+    }
+
+    /**
+     * Retrieves the sequence number of the last record appended
+     *
+     * @return the last sequence number
+     */
+    public synchronized long getLastSequence()
+    {
+        return nextSequence - 1L;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (activeChannel != null)
+        {
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+
+    private void roll(final int minimumSize) throws IOException
+    {
+        close();
+        File file = new File(directory, String.format("%020d", nextSequence) + SEGMENT_SUFFIX);
+        // a leftover segment with this name cannot hold any valid record since none was replayed with a sequence
+        // number this high
+        activeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        activeSize = Math.max(segmentSize, minimumSize);
+        activePosition = 0L;
+        // extending the file zero-fills it, so the end of the records is marked without writing it
+        activeChannel.write(ByteBuffer.allocate(1), activeSize - 1L);
+        segments.put(nextSequence, file);
+    }
+
+    private void truncate(final long low)
+    {
+        for (Map.Entry<Long, File> segment : segments.entrySet())
+        {
+            Long next = segments.higherKey(segment.getKey());
+            // the segment ends right before the next one starts, the last segment is never deleted
+            if (next == null || next - 1L > low)
+            {
+                break;
+            }
+            if (segment.getValue().delete() || !segment.getValue().exists())
+            {
+                segments.remove(segment.getKey());
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException
+    {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists())
+        {
+            return 0L;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            return in.readLong();
+        } catch (EOFException e)
+        {
+            return 0L;
+        }
+    }
+
+    private void writeCheckpoint(final long sequence) throws IOException
+    {
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp)))
+        {
+            out.writeLong(sequence);
+        }
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,575 @@
+package com.pingidentity.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class provides a queue that keeps a bounded number of elements in memory and spills the others to segment
+ * files on disk
+ * <p>
+ * Until spilling is enabled with {@link #open(File, int, int)}, the queue simply holds everything in memory. Once
+ * the in-memory threshold is crossed, new elements are encoded and appended to the current segment file, and keep
+ * going to disk until the spilled elements were all read back. As the in-memory head drains, spilled elements are
+ * read back sequentially, in the order they were written, and segments are deleted once read. This keeps the
+ * elements in order and bounds the heap used by a burst to the threshold.
+ * <p>
+ * The segment files only extend memory: they are deleted when the queue is opened. If an element cannot be written
+ * to disk, it is kept in memory rather than lost. Spilled elements that cannot be read back are dropped and reported
+ * to the {@link DropListener}, if any, so that the owner of the queue can account for them.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class SpillOverQueue<E> extends AbstractQueue<E> implements Closeable
+{
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * This interface converts elements to and from their compact on-disk form
+     *
+     * @param <E> the type of elements
+     */
+    public interface Codec<E>
+    {
+        /**
+         * Performs the necessary processing to encode an element
+         *
+         * @param e the element
+         * @return the encoded element
+         * @throws IOException if the element cannot be encoded
+         */
+        public byte[] encode(E e) throws IOException;
+
+        /**
+         * Performs the necessary processing to decode an element
+         *
+         * @param bytes the encoded element
+         * @return the element or null if it can no longer be processed
+         * @throws IOException if the element cannot be decoded
+         */
+        public E decode(byte[] bytes) throws IOException;
+    }
+
+    /**
+     * This interface is notified of the spilled elements that were dropped because they could not be read back
+     */
+    public interface DropListener
+    {
+        /**
+         * Performs the necessary processing to account for dropped elements
+         * The listener is called while the queue is locked and must not access the queue
+         *
+         * @param bytes the encoded element, or null if the elements could not be read from disk at all
+         * @param count the number of elements dropped
+         */
+        public void dropped(byte[] bytes, long count);
+    }
+
+    private final Queue<E> memory;
+    private final Codec<E> codec;
+    private final AtomicInteger inMemory = new AtomicInteger(0);
+    private final AtomicLong spilled = new AtomicLong(0L);
+    private final AtomicLong spillFailures = new AtomicLong(0L);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<File> segments = new ArrayDeque<>();
+    private volatile DropListener dropListener = null;
+
+    private volatile File directory = null;
+    private volatile boolean spilling = false;
+    private int threshold = Integer.MAX_VALUE;
+    private int segmentSize;
+    private long segmentCounter = 0L;
+    private FileChannel writeChannel = null;
+    private ByteBuffer writeBuffer = null;
+    private long writePosition = 0L;
+    private FileChannel readChannel = null;
+    private ByteBuffer readBuffer = null;
+
+    /**
+     * Performs the necessary processing to initialize the queue, holding everything in memory
+     *
+     * @param q the in-memory queue, it must not be accessed directly afterwards
+     * @param c the codec to use for spilled elements
+     */
+    public SpillOverQueue(final Queue<E> q, final Codec<E> c)
+    {
+        memory = q;
+        codec = c;
+    }
+
+    /**
+     * Performs the necessary processing to enable spilling to disk
+     * Segment files left in the directory are deleted
+     *
+     * @param dir              the directory where segment files are stored
+     * @param memoryThreshold  the number of elements to keep in memory before spilling
+     * @param segmentSizeBytes the size after which a new segment file is started
+     * @throws IOException if the directory cannot be created
+     */
+    public void open(final File dir, final int memoryThreshold, final int segmentSizeBytes) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (directory != null)
+            {
+                threshold = memoryThreshold;
+                return;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs())
+            {
+                throw new IOException("Unable to create spill directory " + dir);
+            }
+            File[] leftovers = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (leftovers != null)
+            {
+                for (File leftover : leftovers)
+                {
+                    leftover.delete();
+                }
+            }
+            threshold = memoryThreshold;
+            segmentSize = segmentSizeBytes;
+            directory = dir;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs the necessary processing to set the listener notified of the spilled elements that are dropped
+     *
+     * @param listener the listener (null = none)
+     */
+    public void setDropListener(final DropListener listener)
+    {
+        dropListener = listener;
+    }
+
+    @Override
+    public boolean offer(E e)
+    {
+        if (e == null)
+        {
+            throw new NullPointerException();
+        }
+        if (directory != null && (spilling || inMemory.get() >= threshold))
+        {
+            lock.lock();
+            try
+            {
+                if (spilling || inMemory.get() >= threshold)
+                {
+                    write(codec.encode(e));
+                    spilling = true;
+                    spilled.incrementAndGet();
+                    return true;
+                }
+            } catch (IOException ex)
+            {
+                // keeping the element in memory beats losing it
+                spillFailures.incrementAndGet();
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+        memory.offer(e);
+        inMemory.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public E poll()
+    {
+        E e = memory.poll();
+        if (e != null)
+        {
+            inMemory.decrementAndGet();
+        }
+        if (spilling && inMemory.get() <= threshold / 2)
+        {
+            refill();
+            if (e == null)
+            {
+                e = memory.poll();
+                if (e != null)
+                {
+                    inMemory.decrementAndGet();
+                }
+            }
+        }
+        return e;
+    }
+
+    @Override
+    public E peek()
+    {
+        E e = memory.peek();
+        if (e == null && spilling)
+        {
+            refill();
+            e = memory.peek();
+        }
+        return e;
+    }
+
+    /**
+     * Retrieves an iterator over the elements held in memory, spilled elements are not included
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        final Iterator<E> iterator = memory.iterator();
+        return new Iterator<E>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next()
+            {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                iterator.remove();
+                inMemory.decrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public int size()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, inMemory.get() + spilled.get());
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return memory.isEmpty() && !spilling;
+    }
+
+    /**
+     * Retrieves the number of elements currently on disk
+     *
+     * @return the number of spilled elements
+     */
+    public long getSpilledCount()
+    {
+        return spilled.get();
+    }
+
+    /**
+     * Retrieves the number of elements that could not be written to or read from disk
+     *
+     * @return the number of failures
+     */
+    public long getSpillFailures()
+    {
+        return spillFailures.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            closeReader();
+            if (writeChannel != null)
+            {
+                writeChannel.close();
+                writeChannel = null;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs the necessary processing to move spilled elements back to memory, up to the threshold
+     */
+    private void refill()
+    {
+        if (!lock.tryLock())
+        {
+            // another thread is refilling
+            return;
+        }
+        try
+        {
+            int room = Math.max(1, threshold - inMemory.get());
+            while (room > 0 && spilled.get() > 0L)
+            {
+                byte[] bytes;
+                try
+                {
+                    bytes = read();
+                } catch (IOException ex)
+                {
+                    // the rest of the segment cannot be trusted
+                    spillFailures.incrementAndGet();
+                    skipSegment();
+                    continue;
+                }
+                if (bytes == null)
+                {
+                    break;
+                }
+                spilled.decrementAndGet();
+                E e;
+                try
+                {
+                    e = codec.decode(bytes);
+                } catch (IOException ex)
+                {
+                    e = null;
+                }
+                if (e == null)
+                {
+                    spillFailures.incrementAndGet();
+                    dropped(bytes, 1L);
+                    continue;
+                }
+                memory.offer(e);
+                inMemory.incrementAndGet();
+                room--;
+            }
+            if (spilled.get() <= 0L)
+            {
+                spilling = false;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void write(final byte[] bytes) throws IOException
+    {
+        if (writeChannel == null || writePosition >= segmentSize)
+        {
+            rollWriter();
+        }
+        if (writeBuffer.remaining() < 4 + bytes.length)
+        {
+            flushWriter();
+        }
+        if (writeBuffer.remaining() < 4 + bytes.length)
+        {
+            // larger than the buffer, write it directly
+            ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+            record.putInt(bytes.length).put(bytes).flip();
+            while (record.hasRemaining())
+            {
+                writeChannel.write(record);
+            }
+        } else
+        {
+            writeBuffer.putInt(bytes.length).put(bytes);
+        }
+        writePosition += 4 + bytes.length;
+    }
+
+    private void rollWriter() throws IOException
+    {
+        if (writeChannel != null)
+        {
+            flushWriter();
+            writeChannel.close();
+        }
+        File file = new File(directory, String.format("%020d", segmentCounter++) + SEGMENT_SUFFIX);
+        writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (writeBuffer == null)
+        {
+            writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        writePosition = 0L;
+        segments.addLast(file);
+    }
+
+    private void flushWriter() throws IOException
+    {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining())
+        {
+            writeChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Performs the necessary processing to read the next spilled record
+     *
+     * @return the record or null if none is available
+     * @throws IOException if the current segment cannot be read
+     */
+    private byte[] read() throws IOException
+    {
+        while (!segments.isEmpty())
+        {
+            boolean writing = segments.size() == 1 && writeChannel != null;
+            if (writing && writeBuffer.position() > 0)
+            {
+                flushWriter();
+            }
+            if (readChannel == null)
+            {
+                readChannel = FileChannel.open(segments.peekFirst().toPath(), StandardOpenOption.READ);
+                if (readBuffer == null)
+                {
+                    readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+                readBuffer.clear().flip();
+            }
+            byte[] record = readRecord();
+            if (record != null)
+            {
+                return record;
+            }
+            if (writing)
+            {
+                if (spilled.get() > 0L)
+                {
+                    throw new IOException("Spilled records missing from " + segments.peekFirst());
+                }
+                // everything written was read, start over with an empty segment
+                closeReader();
+                writeChannel.close();
+                writeChannel = null;
+                segments.pollFirst().delete();
+                return null;
+            }
+            skipSegment();
+        }
+        return null;
+    }
+
+    private byte[] readRecord() throws IOException
+    {
+        if (!fill(4))
+        {
+            return null;
+        }
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0)
+        {
+            throw new IOException("Invalid record length " + length);
+        }
+        if (!fill(4 + length))
+        {
+            return null;
+        }
+        readBuffer.getInt();
+        byte[] record = new byte[length];
+        readBuffer.get(record);
+        return record;
+    }
+
+    /**
+     * Performs the necessary processing to make sure the read buffer holds at least the provided number of bytes,
+     * growing it for records larger than the buffer
+     *
+     * @return false if the end of the segment was reached first
+     */
+    private boolean fill(final int needed) throws IOException
+    {
+        if (readBuffer.remaining() >= needed)
+        {
+            return true;
+        }
+        if (needed > readBuffer.capacity())
+        {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else
+        {
+            readBuffer.compact();
+        }
+        while (readBuffer.position() < needed && readChannel.read(readBuffer) >= 0)
+        {
+            // keep reading until the record is complete or the end of the segment
+        }
+        readBuffer.flip();
+        return readBuffer.remaining() >= needed;
+    }
+
+    private void skipSegment()
+    {
+        closeReader();
+        File file = segments.pollFirst();
+        if (file != null)
+        {
+            if (segments.isEmpty() && writeChannel != null)
+            {
+                try
+                {
+                    writeChannel.close();
+                } catch (IOException e)
+                {
+                    // nothing more can be done
+                }
+                writeChannel = null;
+            }
+            file.delete();
+        }
+        if (segments.isEmpty())
+        {
+            // whatever was not read is gone
+            long lost = spilled.getAndSet(0L);
+            if (lost > 0L)
+            {
+                spillFailures.addAndGet(lost);
+                dropped(null, lost);
+            }
+        }
+    }
+
+    private void dropped(final byte[] bytes, final long count)
+    {
+        DropListener listener = dropListener;
+        if (listener != null)
+        {
+            listener.dropped(bytes, count);
+        }
+    }
+
+    private void closeReader()
+    {
+        if (readChannel != null)
+        {
+            try
+            {
+                readChannel.close();
+            } catch (IOException e)
+            {
+                // nothing more can be done
+            }
+            readChannel = null;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.pingidentity.benchmark;
+
+import com.unboundid.directory.sdk.common.api.ServerThread;
+import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.directory.sdk.sync.config.SyncPipePluginConfig;
+import com.unboundid.directory.sdk.sync.config.SyncSourceConfig;
+import com.unboundid.directory.sdk.sync.types.SyncOperation;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.ChangeLogEntry;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class provides stand-ins for the server objects the extensions are handed, so that their hot paths can be
+ * benchmarked outside of the server
+ * <p>
+ * Methods that are not relevant to the benchmarks return the default value of their return type. Unless requested
+ * otherwise, threads requested from the server context are created but do nothing once started, the benchmarks
+ * drive the queues themselves.
+ */
+public final class Fakes
+{
+    private Fakes()
+    {
+    }
+
+    /**
+     * Performs the necessary processing to create a server context
+     *
+     * @param serverRoot the directory relative paths are resolved against
+     * @return the server context
+     */
+    public static SyncServerContext serverContext(final File serverRoot)
+    {
+        return serverContext(serverRoot, null, false);
+    }
+
+    /**
+     * Performs the necessary processing to create a server context that hands out a connection pool as the external
+     * server pool and, optionally, runs the threads it is asked to create
+     *
+     * @param serverRoot   the directory relative paths are resolved against
+     * @param pool         the pool returned for any external server (may be null)
+     * @param startThreads whether the threads created run their server thread once started
+     * @return the server context
+     */
+    public static SyncServerContext serverContext(final File serverRoot, final LDAPConnectionPool pool,
+                                                  final boolean startThreads)
+    {
+        return proxy(SyncServerContext.class, (name, args) -> {
+            switch (name)
+            {
+                case "getServerRoot":
+                    return serverRoot;
+                case "getLDAPExternalServerConnectionPool":
+                    return pool;
+                case "createThread":
+                    ServerThread serverThread = (ServerThread) args[0];
+                    if (!startThreads)
+                    {
+                        return new Thread((String) args[1]);
+                    }
+                    Thread thread = new Thread(() -> {
+                        try
+                        {
+                            serverThread.runThread();
+                        } catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
+                    }, (String) args[1]);
+                    thread.setDaemon(true);
+                    return thread;
+                case "isDebugEnabled":
+                    return false;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Performs the necessary processing to create the configuration of a sync pipe plugin
+     *
+     * @param serverContext the server context
+     * @return the configuration
+     */
+    public static SyncPipePluginConfig syncPipePluginConfig(final ServerContext serverContext)
+    {
+        return proxy(SyncPipePluginConfig.class, (name, args) -> {
+            switch (name)
+            {
+                case "getServerContext":
+                    return serverContext;
+                case "getConfigObjectName":
+                    return "benchmark";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Performs the necessary processing to create the configuration of a sync source
+     *
+     * @param serverContext the server context
+     * @return the configuration
+     */
+    public static SyncSourceConfig syncSourceConfig(final ServerContext serverContext)
+    {
+        return proxy(SyncSourceConfig.class, (name, args) -> {
+            switch (name)
+            {
+                case "getServerContext":
+                    return serverContext;
+                case "getConfigObjectName":
+                    return "benchmark";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Performs the necessary processing to create a sync operation
+     *
+     * @param changeLogEntry the changelog entry of the operation (may be null)
+     * @param attachments    the attachments of the operation, such as a stashed connection
+     * @return the sync operation
+     */
+    public static SyncOperation syncOperation(final ChangeLogEntry changeLogEntry,
+                                              final Map<Object, Object> attachments)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getChangeLogEntry", changeLogEntry);
+        values.put("getIdentifiableInfo", changeLogEntry == null ? "benchmark" : changeLogEntry.getTargetDN());
+        return syncOperation(values, attachments);
+    }
+
+    /**
+     * Performs the necessary processing to create a sync operation
+     *
+     * @param values      the values to return, by name of the method returning them (getType, getSourceEntry,
+     *                    getChangeRecord, ...)
+     * @param attachments the attachments of the operation, such as a stashed connection
+     * @return the sync operation
+     */
+    public static SyncOperation syncOperation(final Map<String, Object> values, final Map<Object, Object> attachments)
+    {
+        return proxy(SyncOperation.class, (name, args) -> {
+            switch (name)
+            {
+                case "getAttachment":
+                    return attachments.get(args[0]);
+                case "putAttachment":
+                    return attachments.put(args[0], args[1]);
+                case "getSyncPipeName":
+                case "getSyncClassName":
+                    return "benchmark";
+                default:
+                    return values.get(name);
+            }
+        });
+    }
+
+    private static <T> T proxy(final Class<T> type, final Handler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return type.getSimpleName();
+                    }
+                    Object result = handler.handle(method.getName(), args);
+                    return result != null ? result : defaultValue(method.getReturnType());
+                }));
+    }
+
+    private static Object defaultValue(final Class<?> type)
+    {
+        if (!type.isPrimitive() || type == void.class)
+        {
+            return null;
+        }
+        if (type == boolean.class)
+        {
+            return false;
+        }
+        if (type == char.class)
+        {
+            return '\0';
+        }
+        if (type == long.class)
+        {
+            return 0L;
+        }
+        if (type == float.class)
+        {
+            return 0f;
+        }
+        if (type == double.class)
+        {
+            return 0d;
+        }
+        if (type == byte.class)
+        {
+            return (byte) 0;
+        }
+        if (type == short.class)
+        {
+            return (short) 0;
+        }
+        return 0;
+    }
+
+    private interface Handler
+    {
+        Object handle(String name, Object[] args) throws Throwable;
+    }
+}
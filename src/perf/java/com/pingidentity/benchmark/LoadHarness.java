@@ -0,0 +1,713 @@
+package com.pingidentity.benchmark;
+
+import com.pingidentity.sync.destination.GroupMembershipResolution;
+import com.pingidentity.sync.destination.PareDownFetchResults;
+import com.pingidentity.sync.pipe.DereferenceOperationQueue;
+import com.pingidentity.sync.pipe.GroupDereference;
+import com.pingidentity.sync.source.GroupMemberSource;
+import com.pingidentity.sync.source.LDAPMemberSource;
+import com.pingidentity.sync.source.MemberDNQueue;
+import com.pingidentity.sync.source.MemberEntryQueue;
+import com.unboundid.directory.sdk.sync.types.ChangeRecord;
+import com.unboundid.directory.sdk.sync.types.PreStepResult;
+import com.unboundid.directory.sdk.sync.types.SyncOperation;
+import com.unboundid.directory.sdk.sync.types.SyncOperationType;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.*;
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.FileArgument;
+import com.unboundid.util.args.IntegerArgument;
+import com.unboundid.util.args.StringArgument;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class pushes group changes through the group dereference extensions against in-memory directory servers
+ * standing in for the source and the destination, so that configurations can be compared without a Sync server
+ * <p>
+ * For each strategy, both servers are loaded with the same synthetic users and empty groups. Members are then added
+ * to every group through {@code GroupDereference}, and a stand-in for the sync engine carries the members to the
+ * destination:
+ * <ul>
+ * <li>touch-member-entry: members touched at the source are read back and synced, as if they had been picked up
+ * from the changelog</li>
+ * <li>enqueue-member-entry: member entries are taken from {@code GroupMemberSource}</li>
+ * <li>enqueue-member-dn: member entries are fetched through {@code LDAPMemberSource}</li>
+ * </ul>
+ * The group changes themselves go through {@code PareDownFetchResults} and {@code GroupMembershipResolution} before
+ * being written to the destination.
+ * <p>
+ * The harness reports, for each strategy, the members synced per second, the percentiles of the lag between the
+ * group change and the member reaching the destination, and the number of LDAP operations processed by both servers
+ * per member.
+ */
+public class LoadHarness
+{
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String PEOPLE_DN = "ou=people," + BASE_DN;
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String SYNCED_ATTRIBUTE = "description";
+
+    private final int users;
+    private final int groups;
+    private final int groupSize;
+    private final int threads;
+    private final int batchSize;
+    private final long timeoutMillis;
+
+    private final CountingInterceptor sourceInterceptor = new CountingInterceptor();
+    private final CountingInterceptor destinationInterceptor = new CountingInterceptor();
+    private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+    private final List<Long> lags = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong lastCompletion = new AtomicLong(0L);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private LDAPConnectionPool sourcePool;
+    private LDAPConnectionPool destinationPool;
+    private PareDownFetchResults pareDownFetchResults;
+    private GroupMembershipResolution groupMembershipResolution;
+    private volatile boolean running = true;
+
+    private LoadHarness(final int u, final int g, final int size, final int t, final int batch, final long timeout)
+    {
+        users = u;
+        groups = g;
+        groupSize = size;
+        threads = t;
+        batchSize = batch;
+        timeoutMillis = timeout;
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        ArgumentParser parser = new ArgumentParser("load-harness", "Pushes group changes through the group " +
+                "dereference extensions against in-memory directory servers and reports the throughput, lag and " +
+                "LDAP operations per member of each strategy");
+        IntegerArgument usersArg = new IntegerArgument(null, "users", false, 1, "{count}", "Number of users",
+                1, Integer.MAX_VALUE, 10000);
+        parser.addArgument(usersArg);
+        IntegerArgument groupsArg = new IntegerArgument(null, "groups", false, 1, "{count}", "Number of groups " +
+                "changed", 1, Integer.MAX_VALUE, 100);
+        parser.addArgument(groupsArg);
+        IntegerArgument groupSizeArg = new IntegerArgument(null, "group-size", false, 1, "{count}", "Number of " +
+                "members added to each group. Members are shared between groups when groups times group-size " +
+                "exceeds the number of users.", 1, Integer.MAX_VALUE, 100);
+        parser.addArgument(groupSizeArg);
+        IntegerArgument threadsArg = new IntegerArgument(null, GroupDereference.ARG_NAME_DEREF_THREADS, false, 1,
+                "{threads}", "Number of dereference threads", 1, Integer.MAX_VALUE, 4);
+        parser.addArgument(threadsArg);
+        IntegerArgument batchSizeArg = new IntegerArgument(null, "sync-batch-size", false, 1, "{count}", "Maximum " +
+                "number of member changes the engine stand-in requests from the member source at once",
+                1, Integer.MAX_VALUE, 100);
+        parser.addArgument(batchSizeArg);
+        IntegerArgument timeoutArg = new IntegerArgument(null, "timeout-seconds", false, 1, "{seconds}", "How " +
+                "long to wait for all the members of a run to reach the destination", 1, Integer.MAX_VALUE, 300);
+        parser.addArgument(timeoutArg);
+        StringArgument strategyArg = new StringArgument(null, GroupDereference.ARG_NAME_STRATEGY, false, 0,
+                "{strategy}", "Dereference strategies to run",
+                new HashSet<>(Arrays.asList(GroupDereference.STRATEGY_TOUCH, GroupDereference.STRATEGY_ENQUEUE_ENTRY,
+                        GroupDereference.STRATEGY_ENQUEUE_DN)),
+                Arrays.asList(GroupDereference.STRATEGY_TOUCH, GroupDereference.STRATEGY_ENQUEUE_ENTRY,
+                        GroupDereference.STRATEGY_ENQUEUE_DN));
+        parser.addArgument(strategyArg);
+        FileArgument outputArg = new FileArgument(null, "output", false, 1, "{path}", "File to write the results " +
+                "to as JSON", false, true, true, false);
+        parser.addArgument(outputArg);
+        parser.parse(args);
+
+        List<Result> results = new ArrayList<>();
+        for (String strategy : strategyArg.getValues())
+        {
+            LoadHarness harness = new LoadHarness(usersArg.getValue(), groupsArg.getValue(), groupSizeArg.getValue(),
+                    threadsArg.getValue(), batchSizeArg.getValue(), timeoutArg.getValue() * 1000L);
+            Result result = harness.run(strategy);
+            System.out.println(result);
+            results.add(result);
+        }
+        File output = outputArg.getValue();
+        if (output != null)
+        {
+            try (Writer writer = new FileWriter(output))
+            {
+                writer.write("[\n");
+                for (int i = 0; i < results.size(); i++)
+                {
+                    writer.write("  " + results.get(i).toJSON() + (i + 1 < results.size() ? ",\n" : "\n"));
+                }
+                writer.write("]\n");
+            }
+        }
+    }
+
+    /**
+     * Performs the necessary processing to push all the group changes with a strategy and wait for the members to
+     * reach the destination
+     *
+     * @param strategy the dereference strategy
+     * @return the measurements
+     * @throws Exception if the servers or extensions could not be set up
+     */
+    private Result run(final String strategy) throws Exception
+    {
+        boolean touch = GroupDereference.STRATEGY_TOUCH.equals(strategy);
+        BlockingQueue<String> touched = new LinkedBlockingQueue<>();
+        sourceInterceptor.modified = touch ? touched : null;
+        InMemoryDirectoryServer source = createServer(sourceInterceptor);
+        InMemoryDirectoryServer destination = createServer(destinationInterceptor);
+        GroupDereference plugin = null;
+        LDAPMemberSource ldapMemberSource = null;
+        try
+        {
+            load(source, "user ");
+            load(destination, "stale");
+            sourcePool = source.getConnectionPool(threads + 2);
+            destinationPool = destination.getConnectionPool(2);
+
+            File serverRoot = Files.createTempDirectory("load-harness").toFile();
+            SyncServerContext context = Fakes.serverContext(serverRoot, sourcePool, true);
+            plugin = new GroupDereference();
+            ArgumentParser pluginParser = new ArgumentParser("plugin", "plugin");
+            plugin.defineConfigArguments(pluginParser);
+            pluginParser.parse(new String[]{
+                    "--" + GroupDereference.ARG_NAME_STRATEGY, strategy,
+                    "--" + GroupDereference.ARG_NAME_DEREF_PARSE_MODE, GroupDereference.PARSE_MODE_CHANGELOG,
+                    "--" + GroupDereference.ARG_NAME_DEREF_THREADS, Integer.toString(threads),
+                    "--" + GroupDereference.ARG_NAME_DEREF_ATTRIBUTE, "member"});
+            plugin.initializeSyncPipePlugin(context, Fakes.syncPipePluginConfig(context), pluginParser);
+
+            pareDownFetchResults = new PareDownFetchResults();
+            ArgumentParser pareDownParser = new ArgumentParser("pare-down", "pare-down");
+            pareDownFetchResults.defineConfigArguments(pareDownParser);
+            pareDownParser.parse(new String[]{"--" + PareDownFetchResults.ATTRIBUTE_ARG, "member"});
+            pareDownFetchResults.initializeLDAPSyncDestinationPlugin(context, null, pareDownParser);
+
+            groupMembershipResolution = new GroupMembershipResolution();
+            ArgumentParser resolutionParser = new ArgumentParser("resolution", "resolution");
+            groupMembershipResolution.defineConfigArguments(resolutionParser);
+            resolutionParser.parse(new String[]{"--" + GroupMembershipResolution.ATTRIBUTE_ARG, "member",
+                    "--" + GroupMembershipResolution.SEARCH_BASE_ARG, PEOPLE_DN});
+            groupMembershipResolution.initializeLDAPSyncDestinationPlugin(context, null, resolutionParser);
+
+            MemberFeed feed;
+            if (touch)
+            {
+                feed = new TouchFeed(touched);
+            } else if (GroupDereference.STRATEGY_ENQUEUE_ENTRY.equals(strategy))
+            {
+                GroupMemberSource groupMemberSource = new GroupMemberSource();
+                ArgumentParser sourceParser = new ArgumentParser("source", "source");
+                groupMemberSource.defineConfigArguments(sourceParser);
+                sourceParser.parse(new String[]{"--" + GroupMemberSource.ARG_MAX_WAIT, "100"});
+                groupMemberSource.initializeSyncSource(context, Fakes.syncSourceConfig(context), sourceParser);
+                feed = new EntryFeed(groupMemberSource);
+            } else
+            {
+                ldapMemberSource = new LDAPMemberSource();
+                ArgumentParser sourceParser = new ArgumentParser("source", "source");
+                ldapMemberSource.defineConfigArguments(sourceParser);
+                sourceParser.parse(new String[]{"--" + LDAPMemberSource.ARG_NAME_EXTERNAL_SERVER, "source",
+                        "--" + LDAPMemberSource.ARG_MAX_WAIT, "100"});
+                ldapMemberSource.initializeSyncSource(context, Fakes.syncSourceConfig(context), sourceParser);
+                feed = new DNFeed(ldapMemberSource);
+            }
+
+            sourceInterceptor.operations.reset();
+            destinationInterceptor.operations.reset();
+            Thread engine = new Thread(() -> runEngine(feed), "engine stand-in");
+            engine.setDaemon(true);
+            engine.start();
+
+            long start = System.nanoTime();
+            for (int g = 0; g < groups; g++)
+            {
+                changeGroup(plugin, sourcePool, g);
+            }
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!pending.isEmpty() && failure.get() == null && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10L);
+            }
+            running = false;
+            engine.join(1000L);
+            if (failure.get() != null)
+            {
+                throw failure.get();
+            }
+            return new Result(strategy, lags, pending.size(), lastCompletion.get() - start,
+                    sourceInterceptor.operations.sum(), destinationInterceptor.operations.sum());
+        } finally
+        {
+            running = false;
+            if (plugin != null)
+            {
+                plugin.finalizeSyncPipePlugin();
+            }
+            if (ldapMemberSource != null)
+            {
+                ldapMemberSource.finalizeSyncSource();
+            }
+            // the queues are shared by all the runs of the JVM
+            DereferenceOperationQueue.getInstance().clear();
+            MemberDNQueue.getInstance().clear();
+            MemberEntryQueue.getInstance().clear();
+            if (sourcePool != null)
+            {
+                sourcePool.close();
+            }
+            if (destinationPool != null)
+            {
+                destinationPool.close();
+            }
+            source.shutDown(true);
+            destination.shutDown(true);
+        }
+    }
+
+    /**
+     * Performs the necessary processing to add the members of a group through the plugin, then sync the group to the
+     * destination through the destination plugins
+     */
+    private void changeGroup(final GroupDereference plugin, final LDAPInterface connection, final int g)
+            throws Exception
+    {
+        String groupDN = groupDN(g);
+        String[] members = new String[groupSize];
+        StringBuilder changes = new StringBuilder("add: member\n");
+        for (int i = 0; i < groupSize; i++)
+        {
+            members[i] = userDN((int) (((long) g * groupSize + i) % users));
+            changes.append("member: ").append(members[i]).append('\n');
+        }
+        changes.append("-\n");
+        Entry changeLogEntry = new Entry("changeNumber=" + (g + 1) + ",cn=changelog");
+        changeLogEntry.addAttribute("objectClass", "top", "changeLogEntry");
+        changeLogEntry.addAttribute("changeNumber", Integer.toString(g + 1));
+        changeLogEntry.addAttribute("targetDN", groupDN);
+        changeLogEntry.addAttribute("changeType", "modify");
+        changeLogEntry.addAttribute("changes", changes.toString());
+        ChangeLogEntry cle = new ChangeLogEntry(changeLogEntry);
+
+        long now = System.nanoTime();
+        for (String member : members)
+        {
+            pending.putIfAbsent(member, now);
+        }
+        Map<Object, Object> attachments = new HashMap<>();
+        attachments.put(GroupDereference.ATTACHMENT_ID, connection);
+        SyncOperation operation = Fakes.syncOperation(cle, attachments);
+        while (plugin.preMapping(null, null, operation) == PreStepResult.RETRY_OPERATION_LIMITED)
+        {
+            Thread.sleep(1L);
+        }
+
+        Entry groupAfterChange = new Entry(groupDN);
+        groupAfterChange.addAttribute("objectClass", "top", "groupOfNames");
+        groupAfterChange.addAttribute("member", members);
+        Map<String, Object> values = new HashMap<>();
+        values.put("getType", SyncOperationType.MODIFY);
+        values.put("getChangeLogEntry", cle);
+        values.put("getSourceEntry", groupAfterChange.duplicate());
+        values.put("getDestinationEntryAfterChange", groupAfterChange);
+        SyncOperation groupOperation = Fakes.syncOperation(values, new HashMap<>());
+        SearchRequest request = new SearchRequest(groupDN, SearchScope.BASE,
+                Filter.createPresenceFilter("objectClass"), "*");
+        List<Entry> fetched = new ArrayList<>();
+        PreStepResult result = pareDownFetchResults.preFetch(destinationPool, request, fetched, groupOperation);
+        if (result == PreStepResult.CONTINUE)
+        {
+            result = groupMembershipResolution.preFetch(destinationPool, request, fetched, groupOperation);
+        }
+        if (result == PreStepResult.CONTINUE)
+        {
+            fetched.addAll(destinationPool.search(request).getSearchEntries());
+        }
+        pareDownFetchResults.postFetch(destinationPool, request, fetched, groupOperation);
+        Attribute retained = groupAfterChange.getAttribute("member");
+        if (retained != null)
+        {
+            ModifyRequest modifyRequest = new ModifyRequest(groupDN, new Modification(ModificationType.ADD, "member",
+                    retained.getValues()));
+            modifyRequest.addControl(new PermissiveModifyRequestControl());
+            destinationPool.modify(modifyRequest);
+        }
+    }
+
+    /**
+     * Performs the necessary processing to carry the member changes from the feed to the destination until the run
+     * is over
+     */
+    private void runEngine(final MemberFeed feed)
+    {
+        try
+        {
+            while (running)
+            {
+                List<SyncOperation> completed = new ArrayList<>();
+                for (Member member : feed.next(batchSize))
+                {
+                    syncMember(member.dn, member.entry);
+                    completed.add(member.operation);
+                    Long start = pending.remove(member.dn);
+                    if (start != null)
+                    {
+                        long now = System.nanoTime();
+                        lags.add(now - start);
+                        lastCompletion.set(now);
+                    }
+                }
+                feed.acknowledge(completed);
+            }
+        } catch (Exception e)
+        {
+            failure.set(e);
+        }
+    }
+
+    /**
+     * Performs the necessary processing to bring a member entry up to date at the destination, reading the entry
+     * there and modifying it only when it differs
+     */
+    private void syncMember(final String dn, final Entry sourceEntry) throws LDAPException
+    {
+        if (sourceEntry == null)
+        {
+            return;
+        }
+        Entry destinationEntry = destinationPool.getEntry(dn, SYNCED_ATTRIBUTE);
+        String value = sourceEntry.getAttributeValue(SYNCED_ATTRIBUTE);
+        if (destinationEntry != null && value != null
+                && !value.equals(destinationEntry.getAttributeValue(SYNCED_ATTRIBUTE)))
+        {
+            destinationPool.modify(dn, new Modification(ModificationType.REPLACE, SYNCED_ATTRIBUTE, value));
+        }
+    }
+
+    private static InMemoryDirectoryServer createServer(final CountingInterceptor interceptor) throws LDAPException
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        // isMemberOf and the touch attributes are not in the standard schema
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(interceptor);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        return server;
+    }
+
+    /**
+     * Performs the necessary processing to load the users and the empty groups
+     *
+     * @param server      the server to load
+     * @param description the prefix of the synced attribute, the user number is appended to it at the source only
+     */
+    private void load(final InMemoryDirectoryServer server, final String description) throws LDAPException
+    {
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc",
+                "example")));
+        server.add(new Entry(PEOPLE_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+                new Attribute("ou", "people")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+                new Attribute("ou", "groups")));
+        boolean source = !"stale".equals(description);
+        for (int i = 0; i < users; i++)
+        {
+            server.add(new Entry(userDN(i),
+                    new Attribute("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson"),
+                    new Attribute("uid", "user." + i),
+                    new Attribute("cn", "User " + i),
+                    new Attribute("sn", Integer.toString(i)),
+                    new Attribute(SYNCED_ATTRIBUTE, source ? description + i : description)));
+        }
+        for (int g = 0; g < groups; g++)
+        {
+            server.add(new Entry(groupDN(g), new Attribute("objectClass", "top", "groupOfNames"),
+                    new Attribute("cn", "group." + g)));
+        }
+    }
+
+    private static String userDN(final int i)
+    {
+        return "uid=user." + i + "," + PEOPLE_DN;
+    }
+
+    private static String groupDN(final int g)
+    {
+        return "cn=group." + g + "," + GROUPS_DN;
+    }
+
+    /**
+     * This interceptor counts the operations processed by a server and, for the touch strategy, hands the DNs of
+     * the entries modified at the source to the engine stand-in as a changelog would
+     */
+    private static class CountingInterceptor extends InMemoryOperationInterceptor
+    {
+        final LongAdder operations = new LongAdder();
+        volatile BlockingQueue<String> modified = null;
+
+        @Override
+        public void processAddRequest(InMemoryInterceptedAddRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processCompareRequest(InMemoryInterceptedCompareRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processDeleteRequest(InMemoryInterceptedDeleteRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processExtendedRequest(InMemoryInterceptedExtendedRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processModifyRequest(InMemoryInterceptedModifyRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processModifyDNRequest(InMemoryInterceptedModifyDNRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processSearchRequest(InMemoryInterceptedSearchRequest request)
+        {
+            operations.increment();
+        }
+
+        @Override
+        public void processModifyResult(InMemoryInterceptedModifyResult result)
+        {
+            BlockingQueue<String> queue = modified;
+            if (queue != null && result.getResult().getResultCode() == ResultCode.SUCCESS)
+            {
+                queue.offer(result.getRequest().getDN());
+            }
+        }
+    }
+
+    /**
+     * This class holds a member change handed to the engine stand-in
+     */
+    private static class Member
+    {
+        final String dn;
+        final Entry entry;
+        final SyncOperation operation;
+
+        Member(final String d, final Entry e, final SyncOperation o)
+        {
+            dn = d;
+            entry = e;
+            operation = o;
+        }
+    }
+
+    /**
+     * This class hands member changes to the engine stand-in the way the sync engine gets them with a strategy
+     */
+    private abstract static class MemberFeed
+    {
+        abstract List<Member> next(int max) throws Exception;
+
+        void acknowledge(final List<SyncOperation> completed) throws Exception
+        {
+        }
+    }
+
+    /**
+     * Members touched at the source are read back from it
+     */
+    private class TouchFeed extends MemberFeed
+    {
+        private final BlockingQueue<String> touched;
+
+        TouchFeed(final BlockingQueue<String> t)
+        {
+            touched = t;
+        }
+
+        @Override
+        List<Member> next(final int max) throws Exception
+        {
+            List<String> dns = new ArrayList<>(max);
+            String dn = touched.poll(100L, TimeUnit.MILLISECONDS);
+            if (dn != null)
+            {
+                dns.add(dn);
+                touched.drainTo(dns, max - 1);
+            }
+            List<Member> members = new ArrayList<>(dns.size());
+            for (String memberDN : dns)
+            {
+                members.add(new Member(memberDN, sourcePool.getEntry(memberDN, "*", "+"), null));
+            }
+            return members;
+        }
+    }
+
+    /**
+     * Member entries are taken from the group member source
+     */
+    private static class EntryFeed extends MemberFeed
+    {
+        private final GroupMemberSource source;
+
+        EntryFeed(final GroupMemberSource s)
+        {
+            source = s;
+        }
+
+        @Override
+        List<Member> next(final int max) throws Exception
+        {
+            List<Member> members = new ArrayList<>();
+            for (ChangeRecord record : source.getNextBatchOfChanges(max, new AtomicLong()))
+            {
+                Map<String, Object> values = new HashMap<>();
+                values.put("getChangeRecord", record);
+                values.put("getSourceEntry", record.getFullEntry());
+                SyncOperation operation = Fakes.syncOperation(values, new HashMap<>());
+                Entry entry = source.fetchEntry(operation);
+                members.add(new Member(entry.getDN(), entry, operation));
+            }
+            return members;
+        }
+
+        @Override
+        void acknowledge(final List<SyncOperation> completed)
+        {
+            source.acknowledgeCompletedOps(new LinkedList<>(completed));
+        }
+    }
+
+    /**
+     * Member entries are fetched by the LDAP member source
+     */
+    private static class DNFeed extends MemberFeed
+    {
+        private final LDAPMemberSource source;
+
+        DNFeed(final LDAPMemberSource s)
+        {
+            source = s;
+        }
+
+        @Override
+        List<Member> next(final int max) throws Exception
+        {
+            List<Member> members = new ArrayList<>();
+            for (ChangeRecord record : source.getNextBatchOfChanges(max, new AtomicLong()))
+            {
+                Map<String, Object> values = new HashMap<>();
+                values.put("getChangeRecord", record);
+                SyncOperation operation = Fakes.syncOperation(values, new HashMap<>());
+                members.add(new Member((String) record.getProperty("DN"), source.fetchEntry(operation), operation));
+            }
+            return members;
+        }
+
+        @Override
+        void acknowledge(final List<SyncOperation> completed) throws Exception
+        {
+            source.acknowledgeCompletedOps(new LinkedList<>(completed));
+        }
+    }
+
+    /**
+     * This class holds the measurements of a run
+     */
+    private static class Result
+    {
+        final String strategy;
+        final int members;
+        final int missing;
+        final long elapsedMillis;
+        final double membersPerSecond;
+        final double[] lagPercentilesMillis;
+        final long sourceOperations;
+        final long destinationOperations;
+
+        private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 1.0};
+
+        Result(final String s, final List<Long> lagNanos, final int m, final long elapsedNanos, final long sourceOps,
+               final long destinationOps)
+        {
+            strategy = s;
+            long[] sorted;
+            synchronized (lagNanos)
+            {
+                sorted = new long[lagNanos.size()];
+                for (int i = 0; i < sorted.length; i++)
+                {
+                    sorted[i] = lagNanos.get(i);
+                }
+            }
+            Arrays.sort(sorted);
+            members = sorted.length;
+            missing = m;
+            elapsedMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(0L, elapsedNanos));
+            membersPerSecond = elapsedNanos <= 0L ? 0.0 : members * 1e9 / elapsedNanos;
+            lagPercentilesMillis = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++)
+            {
+                lagPercentilesMillis[i] = sorted.length == 0 ? 0.0 :
+                        sorted[Math.max(0, (int) Math.ceil(PERCENTILES[i] * sorted.length) - 1)] / 1e6;
+            }
+            sourceOperations = sourceOps;
+            destinationOperations = destinationOps;
+        }
+
+        double getOperationsPerMember()
+        {
+            return members == 0 ? 0.0 : (double) (sourceOperations + destinationOperations) / members;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-22s members=%d missing=%d elapsed=%dms rate=%.1f/s lag p50=%.1fms p90=%.1fms " +
+                            "p99=%.1fms max=%.1fms ops/member=%.2f (source=%d destination=%d)", strategy, members,
+                    missing, elapsedMillis, membersPerSecond, lagPercentilesMillis[0], lagPercentilesMillis[1],
+                    lagPercentilesMillis[2], lagPercentilesMillis[3], getOperationsPerMember(), sourceOperations,
+                    destinationOperations);
+        }
+
+        String toJSON()
+        {
+            return String.format(Locale.ROOT, "{\"strategy\":\"%s\",\"members\":%d,\"missing\":%d," +
+                            "\"elapsedMillis\":%d,\"membersPerSecond\":%.3f,\"lagP50Millis\":%.3f," +
+                            "\"lagP90Millis\":%.3f,\"lagP99Millis\":%.3f,\"lagMaxMillis\":%.3f," +
+                            "\"sourceOperations\":%d,\"destinationOperations\":%d,\"operationsPerMember\":%.3f}",
+                    strategy, members, missing, elapsedMillis, membersPerSecond, lagPercentilesMillis[0],
+                    lagPercentilesMillis[1], lagPercentilesMillis[2], lagPercentilesMillis[3], sourceOperations,
+                    destinationOperations, getOperationsPerMember());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DepthTrackingQueue;
+import com.pingidentity.util.SpillOverQueue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the queue implementations the dereference operation queue may be built on, with pipe threads offering
+ * operations while dereference threads poll them
+ * <p>
+ * Producers stop offering while the queue holds more than {@link #CAPACITY} operations so that unbounded queues are
+ * compared on an equal footing with bounded ones. The spill-over queue keeps a tenth of that in memory and spills
+ * the rest to disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DereferenceOperationQueueBenchmark
+{
+    static final int CAPACITY = 65536;
+
+    @State(Scope.Group)
+    public static class QueueState
+    {
+        @Param({"concurrent-linked", "linked-blocking", "array-blocking", "spill-over"})
+        String implementation;
+
+        DepthTrackingQueue<DereferenceOperation> queue;
+        SpillOverQueue<DereferenceOperation> spillOverQueue;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            switch (implementation)
+            {
+                case "linked-blocking":
+                    queue = new DepthTrackingQueue<>(new LinkedBlockingQueue<>(CAPACITY));
+                    break;
+                case "array-blocking":
+                    queue = new DepthTrackingQueue<>(new ArrayBlockingQueue<>(CAPACITY));
+                    break;
+                case "spill-over":
+                    File directory = Files.createTempDirectory("dereference-queue-benchmark").toFile();
+                    spillOverQueue = new SpillOverQueue<>(new ConcurrentLinkedQueue<>(),
+                            new DereferenceOperationCodec(new GroupDereference()));
+                    spillOverQueue.open(directory, CAPACITY / 10, 16 * 1024 * 1024);
+                    queue = new DepthTrackingQueue<>(spillOverQueue);
+                    break;
+                default:
+                    queue = new DepthTrackingQueue<>(new ConcurrentLinkedQueue<>());
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain()
+        {
+            queue.clear();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            if (spillOverQueue != null)
+            {
+                spillOverQueue.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OperationState
+    {
+        int next = 0;
+
+        DereferenceOperation nextOperation()
+        {
+            next = (next + 1) & 0xFFFFF;
+            return new DNDereferenceOperation("uid=user." + next + ",ou=people,dc=example,dc=com");
+        }
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(2)
+    public boolean offer(final QueueState state, final OperationState operation)
+    {
+        return state.queue.size() < CAPACITY && state.queue.offer(operation.nextOperation());
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(2)
+    public void poll(final QueueState state, final Blackhole blackhole)
+    {
+        blackhole.consume(state.queue.poll());
+    }
+}
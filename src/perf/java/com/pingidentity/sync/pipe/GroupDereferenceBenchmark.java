@@ -0,0 +1,197 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.benchmark.Fakes;
+import com.unboundid.directory.sdk.sync.types.PreStepResult;
+import com.unboundid.directory.sdk.sync.types.SyncOperation;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.ChangeLogEntry;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.args.ArgumentParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the group dereference sync pipe plugin:
+ * <ul>
+ * <li>preMapping in both parse modes, from small to very large groups, with the enqueue-member-dn strategy so that
+ * only the parsing and packaging of the members is measured</li>
+ * <li>packageOperation and enqeue with several pipe threads competing for the queue while a dereference thread
+ * drains it</li>
+ * </ul>
+ * The dereference threads of the plugin are never started, the queue is emptied between invocations instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupDereferenceBenchmark
+{
+    private static GroupDereference createPlugin(final String... args) throws Exception
+    {
+        File serverRoot = Files.createTempDirectory("group-dereference-benchmark").toFile();
+        SyncServerContext context = Fakes.serverContext(serverRoot);
+        GroupDereference plugin = new GroupDereference();
+        ArgumentParser parser = new ArgumentParser("benchmark", "benchmark");
+        plugin.defineConfigArguments(parser);
+        parser.parse(args);
+        plugin.initializeSyncPipePlugin(context, Fakes.syncPipePluginConfig(context), parser);
+        return plugin;
+    }
+
+    private static String memberDN(final int i)
+    {
+        return "uid=user." + i + ",ou=people,dc=example,dc=com";
+    }
+
+    @State(Scope.Benchmark)
+    public static class PreMappingState
+    {
+        @Param({"10", "1000", "100000", "1000000"})
+        int groupSize;
+
+        @Param({GroupDereference.PARSE_MODE_WHOLE_GROUP, GroupDereference.PARSE_MODE_CHANGELOG})
+        String parseMode;
+
+        GroupDereference plugin;
+        Entry group;
+        SyncOperation operation;
+        PrintStream out;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            plugin = createPlugin("--" + GroupDereference.ARG_NAME_DEREF_PARSE_MODE, parseMode,
+                    "--" + GroupDereference.ARG_NAME_STRATEGY, GroupDereference.STRATEGY_ENQUEUE_DN,
+                    "--" + GroupDereference.ARG_NAME_DEREF_ATTRIBUTE, "member");
+            String groupDN = "cn=group." + groupSize + ",ou=groups,dc=example,dc=com";
+            String[] members = new String[groupSize];
+            StringBuilder changes = new StringBuilder("add: member\n");
+            for (int i = 0; i < groupSize; i++)
+            {
+                members[i] = memberDN(i);
+                changes.append("member: ").append(members[i]).append('\n');
+            }
+            changes.append("-\n");
+            group = new Entry(groupDN);
+            group.addAttribute("objectClass", "top", "groupOfNames");
+            group.addAttribute("cn", "group." + groupSize);
+            group.addAttribute("member", members);
+
+            Entry changeLogEntry = new Entry("changeNumber=1,cn=changelog");
+            changeLogEntry.addAttribute("objectClass", "top", "changeLogEntry");
+            changeLogEntry.addAttribute("changeNumber", "1");
+            changeLogEntry.addAttribute("targetDN", groupDN);
+            changeLogEntry.addAttribute("changeType", "modify");
+            changeLogEntry.addAttribute("changes", changes.toString());
+            operation = Fakes.syncOperation(new ChangeLogEntry(changeLogEntry), new HashMap<>());
+
+            // preMapping prints changelog entries, keep the cost but not the output
+            out = System.out;
+            System.setOut(new PrintStream(new OutputStream()
+            {
+                @Override
+                public void write(int b)
+                {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                }
+            }));
+        }
+
+        @TearDown(Level.Invocation)
+        public void drain()
+        {
+            plugin.queue.clear();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            System.setOut(out);
+            plugin.finalizeSyncPipePlugin();
+        }
+    }
+
+    @State(Scope.Group)
+    public static class EnqueueState
+    {
+        @Param({"false", "true"})
+        boolean bounded;
+
+        GroupDereference plugin;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            plugin = bounded
+                    ? createPlugin("--" + GroupDereference.ARG_NAME_STRATEGY, GroupDereference.STRATEGY_ENQUEUE_DN,
+                    "--" + GroupDereference.ARG_NAME_QUEUE_CAPACITY, "65536",
+                    "--" + GroupDereference.ARG_NAME_QUEUE_FULL_POLICY, GroupDereference.QUEUE_FULL_POLICY_RETRY)
+                    : createPlugin("--" + GroupDereference.ARG_NAME_STRATEGY, GroupDereference.STRATEGY_ENQUEUE_DN);
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain()
+        {
+            plugin.queue.clear();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            plugin.finalizeSyncPipePlugin();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MemberState
+    {
+        int next = 0;
+
+        String nextDN()
+        {
+            next = (next + 1) & 0xFFFFF;
+            return memberDN(next);
+        }
+    }
+
+    @Benchmark
+    public PreStepResult preMapping(final PreMappingState state)
+    {
+        return state.plugin.preMapping(state.group, null, state.operation);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean packageOperation(final EnqueueState state, final MemberState member)
+    {
+        // the unbounded queue is kept in check by the consumer, the bounded one rejects operations when full
+        if (!state.bounded && state.plugin.queue.size() > 65536)
+        {
+            return false;
+        }
+        return state.plugin.packageOperation(member.nextDN(), null, "cn=group,ou=groups,dc=example,dc=com");
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void drainQueue(final EnqueueState state, final Blackhole blackhole)
+    {
+        blackhole.consume(state.plugin.queue.poll());
+    }
+}
@@ -0,0 +1,86 @@
+package com.pingidentity.sync.source;
+
+import com.pingidentity.benchmark.Fakes;
+import com.unboundid.directory.sdk.sync.types.ChangeRecord;
+import com.unboundid.directory.sdk.sync.types.SyncServerContext;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.args.ArgumentParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks getNextBatchOfChanges of the group member source while dereference threads keep adding member entries
+ * to the queue it drains
+ * <p>
+ * Producers stop adding while the queue holds more than {@link #BACKLOG} entries, which keeps the source busy
+ * without letting the queue grow without bounds.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupMemberSourceBenchmark
+{
+    static final int BACKLOG = 100000;
+
+    @State(Scope.Group)
+    public static class SourceState
+    {
+        @Param({"1", "50", "500"})
+        int maxChanges;
+
+        GroupMemberSource source;
+        JournaledChangeQueue producer;
+        Entry entry;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            SyncServerContext context = Fakes.serverContext(
+                    Files.createTempDirectory("group-member-source-benchmark").toFile());
+            source = new GroupMemberSource();
+            ArgumentParser parser = new ArgumentParser("benchmark", "benchmark");
+            source.defineConfigArguments(parser);
+            parser.parse(new String[0]);
+            source.initializeSyncSource(context, Fakes.syncSourceConfig(context), parser);
+            producer = MemberEntryQueue.getJournaledInstance();
+            entry = new Entry("uid=user.0,ou=people,dc=example,dc=com");
+            entry.addAttribute("objectClass", "top", "person", "inetOrgPerson");
+            entry.addAttribute("uid", "user.0");
+            entry.addAttribute("cn", "User 0");
+            entry.addAttribute("sn", "0");
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain()
+        {
+            source.queue.clear();
+        }
+    }
+
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(2)
+    public boolean addEntry(final SourceState state)
+    {
+        if (state.source.queue.size() > BACKLOG)
+        {
+            return false;
+        }
+        state.producer.addEntry(state.entry.getDN(), state.entry);
+        return true;
+    }
+
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(1)
+    public List<ChangeRecord> getNextBatchOfChanges(final SourceState state) throws Exception
+    {
+        return state.source.getNextBatchOfChanges(state.maxChanges, new AtomicLong());
+    }
+}
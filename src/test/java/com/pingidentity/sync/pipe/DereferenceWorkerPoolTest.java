@@ -0,0 +1,182 @@
+package com.pingidentity.sync.pipe;
+
+import com.unboundid.directory.sdk.common.api.ServerThread;
+import com.unboundid.directory.sdk.common.types.ServerContext;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the worker pool only replaces its threads when their settings change, and never waits for a retired
+ * thread while holding its lock
+ */
+public class DereferenceWorkerPoolTest
+{
+    private final Queue<DereferenceOperation> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger(0);
+    private final DereferenceWorkerPool pool = new DereferenceWorkerPool(serverContext(), "test", queue);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown()
+    {
+        pool.shutdown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Applying the same settings again keeps the current threads, only the bounds are applied
+     */
+    @Test(timeout = 10000L)
+    public void testSameSettingsKeepThreads()
+    {
+        pool.configure(this::create, "a", 2, 2, 1000L, 1000L);
+        assertEquals(2, created.get());
+
+        pool.configure(this::create, "a", 3, 3, 1000L, 1000L);
+        assertEquals(3, created.get());
+        assertEquals(3, pool.size());
+
+        pool.configure(this::create, "a", 1, 1, 1000L, 1000L);
+        assertEquals(3, created.get());
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.getActiveWorkers());
+        assertEquals(3L, pool.getWorkersStarted());
+        assertEquals(2L, pool.getWorkersRetired());
+
+        // the counters belong to each pool
+        DereferenceWorkerPool other = new DereferenceWorkerPool(serverContext(), "other", queue);
+        assertEquals(0, other.getActiveWorkers());
+        assertEquals(0L, other.getWorkersStarted());
+    }
+
+    /**
+     * Applying different settings replaces every thread
+     */
+    @Test(timeout = 10000L)
+    public void testChangedSettingsReplaceThreads()
+    {
+        pool.configure(this::create, "a", 2, 2, 1000L, 1000L);
+        pool.configure(this::create, "b", 2, 2, 1000L, 1000L);
+        assertEquals(4, created.get());
+        assertEquals(2, pool.size());
+    }
+
+    /**
+     * A thread busy with an operation delays the reconfiguration that retires it, but not the rest of the pool
+     */
+    @Test(timeout = 10000L)
+    public void testRetiredThreadIsAwaitedOutsideTheLock() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.configure(this::create, "a", 1, 1, 1000L, 1000L);
+        queue.add(new TestOperation(() -> {
+            started.countDown();
+            release.await();
+        }));
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+
+        Future<?> reconfiguration = executor.submit(() -> pool.configure(this::create, "b", 1, 1, 1000L, 1000L));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (created.get() < 2 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, created.get());
+        // the lock is free while the reconfiguration waits for the busy thread
+        assertEquals(1, pool.size());
+        assertFalse(reconfiguration.isDone());
+
+        release.countDown();
+        reconfiguration.get(5L, TimeUnit.SECONDS);
+        assertEquals(1, pool.size());
+    }
+
+    private DereferenceThread create()
+    {
+        created.incrementAndGet();
+        return new DereferenceThread(queue, null);
+    }
+
+    private static ServerContext serverContext()
+    {
+        return (ServerContext) Proxy.newProxyInstance(DereferenceWorkerPoolTest.class.getClassLoader(),
+                new Class<?>[]{ServerContext.class}, (proxy, method, args) -> {
+                    if ("createThread".equals(method.getName()))
+                    {
+                        final ServerThread serverThread = (ServerThread) args[0];
+                        return new Thread(() -> {
+                            try
+                            {
+                                serverThread.runThread();
+                            } catch (Exception e)
+                            {
+                                throw new IllegalStateException(e);
+                            }
+                        }, (String) args[1]);
+                    }
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                });
+    }
+
+    /**
+     * This interface is the body of a test operation
+     */
+    private interface Body
+    {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * This operation runs the provided body
+     */
+    private static class TestOperation implements DereferenceOperation
+    {
+        private final Body body;
+
+        TestOperation(Body b)
+        {
+            body = b;
+        }
+
+        @Override
+        public ResultCode execute()
+        {
+            try
+            {
+                body.run();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return ResultCode.SUCCESS;
+        }
+
+        @Override
+        public String getDN()
+        {
+            return null;
+        }
+
+        @Override
+        public String getGroupDN()
+        {
+            return null;
+        }
+    }
+}
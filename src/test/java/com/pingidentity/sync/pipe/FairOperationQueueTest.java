@@ -0,0 +1,166 @@
+package com.pingidentity.sync.pipe;
+
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the fair queue serves groups in turn, favours small groups and keeps the operations of a group in order
+ */
+public class FairOperationQueueTest
+{
+    /**
+     * Groups with pending operations are served one operation at a time in turn
+     */
+    @Test
+    public void testGroupsAreServedInTurn()
+    {
+        FairOperationQueue queue = new FairOperationQueue(null, null, 1);
+        for (int i = 0; i < 3; i++)
+        {
+            queue.offer(new TestOperation("cn=a,ou=groups", i));
+        }
+        queue.offer(new TestOperation("CN=A, ou=groups", 3));
+        queue.offer(new TestOperation("cn=b,ou=groups", 0));
+
+        assertEquals(order("cn=a,ou=groups:0", "cn=b,ou=groups:0", "cn=a,ou=groups:1", "cn=a,ou=groups:2",
+                "CN=A, ou=groups:3"), drain(queue));
+        assertNull(queue.poll());
+        assertNull(queue.peek());
+    }
+
+    /**
+     * A group going past the threshold is served with the large groups, behind the small groups, without being served
+     * twice for the entry it left among the small groups
+     */
+    @Test
+    public void testPromotedGroupIsServedAfterSmallGroups()
+    {
+        FairOperationQueue queue = new FairOperationQueue(null, 2, 2);
+        queue.offer(new TestOperation("cn=large", 0));
+        queue.offer(new TestOperation("cn=small1", 0));
+        queue.offer(new TestOperation("cn=small2", 0));
+        for (int i = 1; i < 5; i++)
+        {
+            queue.offer(new TestOperation("cn=large", i));
+        }
+        queue.offer(new TestOperation("cn=small3", 0));
+
+        assertEquals(1L, queue.getPromotions());
+        assertEquals(3, queue.getSmallGroupCount());
+        assertEquals(1, queue.getLargeGroupCount());
+        assertEquals(8, queue.size());
+        int iterated = 0;
+        for (DereferenceOperation ignored : queue)
+        {
+            iterated++;
+        }
+        assertEquals(8, iterated);
+
+        assertEquals("cn=small1", queue.peek().getGroupDN());
+        assertEquals(order("cn=small1:0", "cn=small2:0", "cn=large:0", "cn=small3:0", "cn=large:1", "cn=large:2",
+                "cn=large:3", "cn=large:4"), drain(queue));
+        assertEquals(0, queue.getSmallGroupCount());
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * A group that was forgotten once drained starts out as small again
+     */
+    @Test
+    public void testDrainedGroupStartsSmallAgain()
+    {
+        FairOperationQueue queue = new FairOperationQueue(null, 1, 1);
+        queue.offer(new TestOperation("cn=group", 0));
+        queue.offer(new TestOperation("cn=group", 1));
+        assertEquals(1, queue.getLargeGroupCount());
+        drain(queue);
+
+        TestOperation operation = new TestOperation("cn=group", 2);
+        queue.offer(operation);
+        assertEquals(1, queue.getSmallGroupCount());
+        assertEquals(0, queue.getLargeGroupCount());
+        assertSame(operation, queue.poll());
+    }
+
+    /**
+     * Operations are refused past the capacity
+     */
+    @Test
+    public void testCapacity()
+    {
+        FairOperationQueue queue = new FairOperationQueue(2, null, 1);
+        assertTrue(queue.offer(new TestOperation("cn=a", 0)));
+        assertTrue(queue.offer(new TestOperation(null, 0)));
+        assertFalse(queue.offer(new TestOperation("cn=b", 0)));
+        assertEquals(2, queue.size());
+    }
+
+    private static List<String> drain(FairOperationQueue queue)
+    {
+        List<String> result = new ArrayList<>();
+        DereferenceOperation operation;
+        while ((operation = queue.poll()) != null)
+        {
+            result.add(operation.toString());
+        }
+        return result;
+    }
+
+    private static List<String> order(String... operations)
+    {
+        List<String> result = new ArrayList<>();
+        for (String operation : operations)
+        {
+            result.add(operation);
+        }
+        return result;
+    }
+
+    /**
+     * This operation only records the group it was queued for and its position among the operations of the group
+     */
+    private static class TestOperation implements DereferenceOperation
+    {
+        final String groupDN;
+        final int sequence;
+
+        TestOperation(String g, int s)
+        {
+            groupDN = g;
+            sequence = s;
+        }
+
+        @Override
+        public ResultCode execute()
+        {
+            return ResultCode.SUCCESS;
+        }
+
+        @Override
+        public String getDN()
+        {
+            return null;
+        }
+
+        @Override
+        public String getGroupDN()
+        {
+            return groupDN;
+        }
+
+        @Override
+        public String toString()
+        {
+            return groupDN + ":" + sequence;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.pingidentity.sync.pipe;
+
+import com.pingidentity.util.DepthTrackingQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that group changes retried because the queue is full resume after the members they already queued
+ */
+public class GroupChangeProgressTest
+{
+    private static final int CAPACITY = 100;
+
+    /**
+     * A group three times as large as the queue is retried until it is fully queued while a consumer drains the
+     * queue, and every member comes out of the queue exactly once
+     */
+    @Test(timeout = 30000L)
+    public void testRetriedGroupIsQueuedExactlyOnce() throws Exception
+    {
+        final DepthTrackingQueue<String> queue = new DepthTrackingQueue<>(new LinkedBlockingQueue<>(CAPACITY));
+        final Map<String, AtomicInteger> dereferenced = new ConcurrentHashMap<>();
+        final AtomicBoolean run = new AtomicBoolean(true);
+        Thread consumer = new Thread(() -> {
+            while (run.get() || !queue.isEmpty())
+            {
+                try
+                {
+                    String dn = queue.poll(1L, TimeUnit.MILLISECONDS);
+                    if (dn != null)
+                    {
+                        dereferenced.computeIfAbsent(dn, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        });
+
+        String[] members = createMembers("uid=user.", 3 * CAPACITY);
+        GroupChangeProgress progress = new GroupChangeProgress(16);
+        int attempts = 0;
+        boolean complete = false;
+        while (!complete)
+        {
+            attempts++;
+            GroupChangeProgress.Cursor cursor = progress.resume("change:1");
+            // the retry policy: give up on the change as soon as the queue is full
+            complete = cursor.handOff("member", members, queue::offer);
+            if (complete)
+            {
+                cursor.complete();
+            } else if (attempts == 1)
+            {
+                // the first attempt stops once the queue is full, then members start being dereferenced
+                consumer.start();
+            } else
+            {
+                Thread.sleep(1L);
+            }
+        }
+        run.set(false);
+        consumer.join();
+
+        assertTrue("the group should not fit in the queue at once", attempts > 1);
+        assertEquals(members.length, dereferenced.size());
+        for (String member : members)
+        {
+            assertEquals(member, 1, dereferenced.get(member).get());
+        }
+        assertEquals(0, progress.size());
+        assertEquals(attempts - 1, progress.getResumed());
+    }
+
+    /**
+     * The steps completed before the change was interrupted are skipped entirely when it is retried and the step
+     * that was interrupted resumes from the first member that was not handed off
+     */
+    @Test
+    public void testResumeSkipsCompletedSteps()
+    {
+        String[] members = createMembers("uid=member.", 3);
+        String[] uniqueMembers = createMembers("uid=unique.", 3);
+        GroupChangeProgress progress = new GroupChangeProgress(16);
+        final List<String> handedOff = new ArrayList<>();
+
+        GroupChangeProgress.Cursor cursor = progress.resume("change:2");
+        assertTrue(cursor.handOff("member", members, handedOff::add));
+        assertFalse(cursor.handOff("uniqueMember", uniqueMembers, dn -> !dn.equals(uniqueMembers[1])
+                && handedOff.add(dn)));
+        assertEquals(1, progress.size());
+
+        cursor = progress.resume("change:2");
+        assertTrue(cursor.handOff("member", members, handedOff::add));
+        assertTrue(cursor.handOff("uniqueMember", uniqueMembers, handedOff::add));
+        cursor.complete();
+
+        List<String> expected = new ArrayList<>();
+        for (String member : members)
+        {
+            expected.add(member);
+        }
+        for (String member : uniqueMembers)
+        {
+            expected.add(member);
+        }
+        assertEquals(expected, handedOff);
+        assertEquals(0, progress.size());
+    }
+
+    /**
+     * The progress of another change is not used and changes that are never retried are eventually forgotten
+     */
+    @Test
+    public void testChangesAreIndependentAndBounded()
+    {
+        String[] members = createMembers("uid=user.", 2);
+        GroupChangeProgress progress = new GroupChangeProgress(2);
+        for (int i = 0; i < 3; i++)
+        {
+            assertFalse(progress.resume("change:" + i).handOff("member", members, dn -> false));
+        }
+        assertEquals(2, progress.size());
+
+        final List<String> handedOff = new ArrayList<>();
+        assertTrue(progress.resume("change:3").handOff("member", members, handedOff::add));
+        assertEquals(2, handedOff.size());
+
+        // a change without a key is never recorded
+        assertFalse(progress.resume(null).handOff("member", members, dn -> false));
+        assertEquals(2, progress.size());
+    }
+
+    /**
+     * A step whose members changed since it was interrupted starts over instead of skipping members it never handed
+     * off
+     */
+    @Test
+    public void testChangedMembersStartOver()
+    {
+        String[] members = createMembers("uid=user.", 3);
+        GroupChangeProgress progress = new GroupChangeProgress(16);
+        assertFalse(progress.resume("change:4").handOff("member", members, dn -> !dn.equals(members[2])));
+
+        String[] refetched = createMembers("uid=other.", 3);
+        final List<String> handedOff = new ArrayList<>();
+        assertTrue(progress.resume("change:4").handOff("member", refetched, handedOff::add));
+        assertEquals(3, handedOff.size());
+    }
+
+    private static String[] createMembers(String prefix, int count)
+    {
+        String[] members = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            members[i] = prefix + i + ",ou=people,dc=example,dc=com";
+        }
+        return members;
+    }
+}
@@ -0,0 +1,202 @@
+package com.pingidentity.sync.pipe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the comparison of group versions with their membership snapshot
+ */
+public class MembershipSnapshotStoreTest
+{
+    private static final String GROUP_DN = "cn=group,ou=groups,dc=example,dc=com";
+
+    private File directory;
+    private MembershipSnapshotStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("snapshots").toFile();
+        store = new MembershipSnapshotStore(directory);
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Only the members added or removed since the committed version are reported, whatever the case and spacing of
+     * their DNs
+     */
+    @Test
+    public void testDiffReportsAddedAndRemovedMembers() throws IOException
+    {
+        String[] first = createMembers(0, 1000);
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", first))
+        {
+            assertEquals(first.length, delta.getChangedMembers().size());
+            delta.commit();
+        }
+
+        String[] second = createMembers(500, 1500);
+        second[0] = "UID=User.500, ou=People,dc=example,dc=com";
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", second))
+        {
+            HashSet<String> expected = new HashSet<>(Arrays.asList(createMembers(0, 500)));
+            expected.addAll(Arrays.asList(createMembers(1000, 1500)));
+            assertEquals(expected, new HashSet<>(delta.getChangedMembers()));
+            delta.commit();
+        }
+
+        try (MembershipSnapshotStore.Delta delta = store.diff("CN=Group,ou=groups,dc=example,dc=com", "MEMBER",
+                second))
+        {
+            assertTrue(delta.getChangedMembers().isEmpty());
+        }
+    }
+
+    /**
+     * Duplicate members are reported once and a delta that is not committed leaves the snapshot as is
+     */
+    @Test
+    public void testDuplicatesAndUncommittedDelta() throws IOException
+    {
+        String[] members = {"uid=a,dc=example,dc=com", "uid=b,dc=example,dc=com", "UID=A,dc=example,dc=com"};
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", members))
+        {
+            assertEquals(Arrays.asList("uid=a,dc=example,dc=com", "uid=b,dc=example,dc=com"),
+                    sorted(delta.getChangedMembers()));
+            delta.commit();
+        }
+
+        String[] none = new String[0];
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", none))
+        {
+            assertEquals(2, delta.getChangedMembers().size());
+        }
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", members))
+        {
+            assertTrue(delta.getChangedMembers().isEmpty());
+        }
+
+        store.invalidate(GROUP_DN, "member");
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", members))
+        {
+            assertEquals(2, delta.getChangedMembers().size());
+        }
+    }
+
+    /**
+     * A pending delta does not hold up other versions of the group, and when two deltas computed against the same
+     * snapshot are both committed, the snapshot is dropped so that the next version is processed in full
+     */
+    @Test(timeout = 10000L)
+    public void testConcurrentDeltasDropTheSnapshot() throws Exception
+    {
+        String[] first = createMembers(0, 10);
+        String[] second = createMembers(0, 20);
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", first))
+        {
+            assertTrue(delta.commit());
+        }
+
+        MembershipSnapshotStore.Delta pending = store.diff(GROUP_DN, "member", second);
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", createMembers(0, 5)))
+        {
+            assertEquals(5, delta.getChangedMembers().size());
+            assertTrue(delta.commit());
+        }
+        assertEquals(10, pending.getChangedMembers().size());
+        assertFalse(pending.commit());
+        pending.close();
+
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", second))
+        {
+            assertEquals(second.length, delta.getChangedMembers().size());
+            assertTrue(delta.commit());
+        }
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", second))
+        {
+            assertTrue(delta.getChangedMembers().isEmpty());
+        }
+    }
+
+    /**
+     * A corrupted snapshot is reported as such rather than yielding a wrong delta
+     */
+    @Test(timeout = 10000L)
+    public void testTruncatedSnapshot() throws Exception
+    {
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", createMembers(0, 100)))
+        {
+            delta.commit();
+        }
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        byte[] content = Files.readAllBytes(files[0].toPath());
+        Files.write(files[0].toPath(), Arrays.copyOf(content, content.length - 10));
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", new String[0]))
+        {
+            fail("a truncated snapshot should not be read");
+        } catch (IOException e)
+        {
+            // expected
+        }
+        // the group is not left locked
+        Thread other = new Thread(() -> {
+            try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", createMembers(0, 100)))
+            {
+                delta.commit();
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        other.join();
+        try (MembershipSnapshotStore.Delta delta = store.diff(GROUP_DN, "member", createMembers(0, 100)))
+        {
+            assertTrue(delta.getChangedMembers().isEmpty());
+        }
+    }
+
+    private static String[] createMembers(int from, int to)
+    {
+        String[] members = new String[to - from];
+        for (int i = from; i < to; i++)
+        {
+            members[i - from] = "uid=user." + i + ",ou=people,dc=example,dc=com";
+        }
+        return members;
+    }
+
+    private static List<String> sorted(List<String> values)
+    {
+        String[] array = values.toArray(new String[values.size()]);
+        Arrays.sort(array);
+        return Arrays.asList(array);
+    }
+}
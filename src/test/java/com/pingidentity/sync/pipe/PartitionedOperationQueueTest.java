@@ -0,0 +1,213 @@
+package com.pingidentity.sync.pipe;
+
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the partitioned queue keeps the operations of a member in order and away from concurrent workers, while
+ * letting idle workers steal from other lanes
+ */
+public class PartitionedOperationQueueTest
+{
+    private final ExecutorService first = Executors.newSingleThreadExecutor();
+    private final ExecutorService second = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown()
+    {
+        first.shutdownNow();
+        second.shutdownNow();
+    }
+
+    /**
+     * The next operation of a member is only handed to another worker once the worker holding its lane released it
+     */
+    @Test(timeout = 10000L)
+    public void testHeldLaneIsSkipped() throws Exception
+    {
+        final PartitionedOperationQueue queue = new PartitionedOperationQueue(2, 2, null);
+        TestOperation op1 = new TestOperation("uid=member,dc=example,dc=com", 1);
+        TestOperation op2 = new TestOperation("UID=Member, dc=example,dc=com", 2);
+        queue.offer(op1);
+        queue.offer(op2);
+        first.submit(queue::register).get();
+        second.submit(queue::register).get();
+
+        assertSame(op1, first.submit(queue::poll).get());
+        assertNull(second.submit(queue::poll).get());
+        assertEquals(1, queue.size());
+
+        first.submit(queue::release).get();
+        assertSame(op2, second.submit(queue::poll).get());
+        second.submit(queue::release).get();
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * A worker whose home lanes are empty takes operations from the other lanes, and they are counted as steals
+     */
+    @Test(timeout = 10000L)
+    public void testIdleWorkerSteals() throws Exception
+    {
+        final PartitionedOperationQueue queue = new PartitionedOperationQueue(4, 1, null);
+        for (int i = 0; i < 100; i++)
+        {
+            queue.offer(new TestOperation("uid=user." + i + ",dc=example,dc=com", i));
+        }
+        first.submit(queue::register).get();
+        int polled = first.submit(() -> {
+            int n = 0;
+            while (queue.poll() != null)
+            {
+                queue.release();
+                n++;
+            }
+            return n;
+        }).get();
+
+        assertEquals(100, polled);
+        assertTrue(queue.getSteals() > 0L);
+        assertTrue(queue.getSteals() < 100L);
+        assertEquals(0, queue.getMaxLaneDepth());
+    }
+
+    /**
+     * Operations are refused past the capacity and accepted again once some were taken
+     */
+    @Test
+    public void testCapacity()
+    {
+        PartitionedOperationQueue queue = new PartitionedOperationQueue(2, 2, 3);
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(queue.offer(new TestOperation("uid=user." + i + ",dc=example,dc=com", i)));
+        }
+        assertFalse(queue.offer(new TestOperation("uid=user.3,dc=example,dc=com", 3)));
+        assertEquals(3, queue.size());
+        // a thread that did not register takes operations without holding lanes
+        queue.poll();
+        assertTrue(queue.offer(new TestOperation("uid=user.3,dc=example,dc=com", 3)));
+    }
+
+    /**
+     * Several workers draining the queue never execute the operations of a member at the same time nor out of order
+     */
+    @Test(timeout = 30000L)
+    public void testMembersAreProcessedInOrderByOneWorkerAtATime() throws Exception
+    {
+        final int workerCount = 4;
+        final int memberCount = 16;
+        final int operationsPerMember = 500;
+        final PartitionedOperationQueue queue = new PartitionedOperationQueue(workerCount, 2, null);
+        final Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> lastSequence = new ConcurrentHashMap<>();
+        final AtomicLong violations = new AtomicLong(0L);
+        final AtomicInteger remaining = new AtomicInteger(memberCount * operationsPerMember);
+        for (int m = 0; m < memberCount; m++)
+        {
+            active.put("uid=user." + m + ",dc=example,dc=com", new AtomicInteger(0));
+            lastSequence.put("uid=user." + m + ",dc=example,dc=com", new AtomicInteger(-1));
+        }
+        for (int i = 0; i < operationsPerMember; i++)
+        {
+            for (int m = 0; m < memberCount; m++)
+            {
+                queue.offer(new TestOperation("uid=user." + m + ",dc=example,dc=com", i));
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < workerCount; w++)
+            {
+                futures.add(pool.submit(() -> {
+                    queue.register();
+                    while (remaining.get() > 0)
+                    {
+                        TestOperation operation = (TestOperation) queue.poll();
+                        if (operation == null)
+                        {
+                            Thread.yield();
+                            continue;
+                        }
+                        if (active.get(operation.dn).incrementAndGet() != 1)
+                        {
+                            violations.incrementAndGet();
+                        }
+                        if (lastSequence.get(operation.dn).getAndSet(operation.sequence) != operation.sequence - 1)
+                        {
+                            violations.incrementAndGet();
+                        }
+                        Thread.yield();
+                        active.get(operation.dn).decrementAndGet();
+                        queue.release();
+                        remaining.decrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get(20L, TimeUnit.SECONDS);
+            }
+        } finally
+        {
+            pool.shutdownNow();
+        }
+        assertEquals(0L, violations.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * This operation only records the member it applies to and its position among the operations of the member
+     */
+    private static class TestOperation implements DereferenceOperation
+    {
+        final String dn;
+        final int sequence;
+
+        TestOperation(String d, int s)
+        {
+            dn = d;
+            sequence = s;
+        }
+
+        @Override
+        public ResultCode execute()
+        {
+            return ResultCode.SUCCESS;
+        }
+
+        @Override
+        public String getDN()
+        {
+            return dn;
+        }
+
+        @Override
+        public String getGroupDN()
+        {
+            return null;
+        }
+    }
+}
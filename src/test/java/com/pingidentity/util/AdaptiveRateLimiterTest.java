@@ -0,0 +1,98 @@
+package com.pingidentity.util;
+
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the adaptive rate limiter cuts the rate on distress, grows it while the server keeps up, stays within
+ * its bounds and paces the permits it hands out
+ */
+public class AdaptiveRateLimiterTest
+{
+    private static final double DELTA = 0.001d;
+
+    /**
+     * The initial rate is brought within the floor and the ceiling
+     */
+    @Test
+    public void testBounds()
+    {
+        assertEquals(10d, new AdaptiveRateLimiter(10, 100, 1, 5, 50, null).getRate(), DELTA);
+        assertEquals(100d, new AdaptiveRateLimiter(10, 100, 1000, 5, 50, null).getRate(), DELTA);
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 5, 7, 5, 50, null);
+        assertEquals(10d, limiter.getFloor(), DELTA);
+        assertEquals(10d, limiter.getCeiling(), DELTA);
+    }
+
+    /**
+     * Only result codes showing the server is overloaded or unreachable are signs of distress
+     */
+    @Test
+    public void testDistressResultCodes()
+    {
+        assertTrue(AdaptiveRateLimiter.isDistress(ResultCode.BUSY));
+        assertTrue(AdaptiveRateLimiter.isDistress(ResultCode.SERVER_DOWN));
+        assertFalse(AdaptiveRateLimiter.isDistress(ResultCode.SUCCESS));
+        assertFalse(AdaptiveRateLimiter.isDistress(ResultCode.NO_SUCH_OBJECT));
+        assertFalse(AdaptiveRateLimiter.isDistress(null));
+    }
+
+    /**
+     * The rate is cut once per window whatever the number of failed requests, and never below the floor
+     */
+    @Test
+    public void testDecreaseOncePerWindow()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1000, 100, 5, 50, null);
+        limiter.onResult(ResultCode.BUSY, 0L, 1);
+        limiter.onResult(ResultCode.UNAVAILABLE, 0L, 1);
+        assertEquals(50d, limiter.getRate(), DELTA);
+        assertEquals(1L, limiter.getDecreases());
+
+        AdaptiveRateLimiter slow = new AdaptiveRateLimiter(10, 1000, 15, 5, 50, 10);
+        slow.onResult(ResultCode.SUCCESS, TimeUnit.MILLISECONDS.toNanos(20L), 1);
+        assertEquals(10d, slow.getRate(), DELTA);
+    }
+
+    /**
+     * The rate grows by one step per window when the requests completed at about the current rate, and not when the
+     * rate is not what limits throughput
+     */
+    @Test(timeout = 10000L)
+    public void testIncreaseWhenRateIsReached() throws Exception
+    {
+        AdaptiveRateLimiter busy = new AdaptiveRateLimiter(10, 1000, 10, 5, 50, null);
+        AdaptiveRateLimiter quiet = new AdaptiveRateLimiter(10, 1000, 10, 5, 50, null);
+        busy.onResult(ResultCode.SUCCESS, 0L, 20);
+        Thread.sleep(1100L);
+        busy.onResult(ResultCode.SUCCESS, 0L, 1);
+        quiet.onResult(ResultCode.SUCCESS, 0L, 1);
+        assertEquals(15d, busy.getRate(), DELTA);
+        assertEquals(1L, busy.getIncreases());
+        assertEquals(10d, quiet.getRate(), DELTA);
+        assertEquals(0L, quiet.getIncreases());
+    }
+
+    /**
+     * Permits are spaced by the current rate and are not accumulated while idle
+     */
+    @Test(timeout = 10000L)
+    public void testPacing() throws Exception
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 100, 100, 5, 50, null);
+        Thread.sleep(200L);
+        long start = System.nanoTime();
+        for (int i = 0; i < 21; i++)
+        {
+            limiter.acquire(1);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("21 permits at 100/s took " + elapsedMillis + "ms", elapsedMillis >= 190L);
+    }
+}
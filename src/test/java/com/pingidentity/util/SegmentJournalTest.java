@@ -0,0 +1,196 @@
+package com.pingidentity.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the replay and truncation of the segment journal
+ */
+public class SegmentJournalTest
+{
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * The records that were not acknowledged are replayed in order after the journal was left without being closed,
+     * and new records continue the sequence
+     */
+    @Test
+    public void testReplayAfterCrash() throws IOException
+    {
+        SegmentJournal journal = new SegmentJournal(directory, SEGMENT_SIZE, this::reject);
+        for (int i = 1; i <= 100; i++)
+        {
+            assertEquals(i, journal.append(payload(i)));
+        }
+        for (int i = 1; i <= 40; i++)
+        {
+            journal.acknowledge(i);
+        }
+        // out of order acknowledgements do not move the checkpoint past a pending record
+        journal.acknowledge(50L);
+        assertEquals(40L, journal.checkpoint());
+
+        // no close, as if the process had crashed
+        List<String> replayed = new ArrayList<>();
+        SegmentJournal recovered = new SegmentJournal(directory, SEGMENT_SIZE, (sequence, payload) -> {
+            replayed.add(sequence + ":" + new String(payload, StandardCharsets.UTF_8));
+            return true;
+        });
+        assertEquals(60, replayed.size());
+        assertEquals("41:record-41", replayed.get(0));
+        assertEquals("100:record-100", replayed.get(59));
+        assertEquals(40L, recovered.getAcknowledgedSequence());
+        assertEquals(101L, recovered.append(payload(101)));
+
+        // replayed records are pending until acknowledged
+        assertEquals(40L, recovered.checkpoint());
+        for (long i = 41L; i <= 101L; i++)
+        {
+            recovered.acknowledge(i);
+        }
+        assertEquals(101L, recovered.checkpoint());
+        recovered.close();
+        journal.close();
+    }
+
+    /**
+     * A record torn by a crash ends the replay of its segment
+     */
+    @Test
+    public void testTornRecordIsNotReplayed() throws IOException
+    {
+        SegmentJournal journal = new SegmentJournal(directory, SEGMENT_SIZE, this::reject);
+        journal.append(payload(1));
+        journal.append(payload(2));
+        journal.close();
+
+        File[] segments = directory.listFiles((d, name) -> name.endsWith(".segment"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw"))
+        {
+            // the last byte of the second payload
+            long position = 2L * 16L + payload(1).length + payload(2).length - 1L;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+
+        List<Long> replayed = new ArrayList<>();
+        SegmentJournal recovered = new SegmentJournal(directory, SEGMENT_SIZE, (sequence, payload) -> {
+            replayed.add(sequence);
+            return true;
+        });
+        assertEquals(1, replayed.size());
+        assertEquals(1L, (long) replayed.get(0));
+        recovered.close();
+    }
+
+    /**
+     * Segments that only hold acknowledged records are deleted at checkpoint time, except the last one
+     */
+    @Test
+    public void testCheckpointTrimsSegments() throws IOException
+    {
+        SegmentJournal journal = new SegmentJournal(directory, SEGMENT_SIZE, this::reject);
+        byte[] payload = new byte[200];
+        for (int i = 1; i <= 50; i++)
+        {
+            journal.append(payload);
+        }
+        int segmentCount = countSegments();
+        assertTrue(segmentCount > 5);
+
+        for (long i = 1L; i <= 25L; i++)
+        {
+            journal.acknowledge(i);
+        }
+        assertEquals(25L, journal.checkpoint());
+        int remaining = countSegments();
+        assertTrue(remaining < segmentCount);
+        assertTrue(remaining > 1);
+
+        for (long i = 26L; i <= 50L; i++)
+        {
+            journal.acknowledge(i);
+        }
+        assertEquals(50L, journal.checkpoint());
+        assertEquals(1, countSegments());
+        journal.close();
+
+        List<Long> replayed = new ArrayList<>();
+        new SegmentJournal(directory, SEGMENT_SIZE, (sequence, p) -> replayed.add(sequence)).close();
+        assertTrue(replayed.isEmpty());
+    }
+
+    /**
+     * A replayed record the consumer cannot handle is acknowledged right away and does not hold back the
+     * checkpoint
+     */
+    @Test
+    public void testRejectedRecordDoesNotPinCheckpoint() throws IOException
+    {
+        SegmentJournal journal = new SegmentJournal(directory, SEGMENT_SIZE, this::reject);
+        for (int i = 1; i <= 3; i++)
+        {
+            journal.append(payload(i));
+        }
+        journal.close();
+
+        SegmentJournal recovered = new SegmentJournal(directory, SEGMENT_SIZE,
+                (sequence, payload) -> sequence != 2L);
+        recovered.acknowledge(1L);
+        recovered.acknowledge(3L);
+        assertEquals(3L, recovered.checkpoint());
+        recovered.close();
+    }
+
+    private boolean reject(long sequence, byte[] payload)
+    {
+        throw new AssertionError("unexpected replayed record " + sequence);
+    }
+
+    private int countSegments()
+    {
+        return directory.listFiles((d, name) -> name.endsWith(".segment")).length;
+    }
+
+    private static byte[] payload(int i)
+    {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,190 @@
+package com.pingidentity.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the spilling of elements to disk and reading them back
+ */
+public class SpillOverQueueTest
+{
+    private static final int THRESHOLD = 10;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Elements past the threshold go to disk and come back in the order they were added
+     */
+    @Test
+    public void testSpilledElementsKeepTheirOrder() throws IOException
+    {
+        SpillOverQueue<String> spillOverQueue = new SpillOverQueue<>(new ConcurrentLinkedQueue<>(), new StringCodec());
+        spillOverQueue.open(directory, THRESHOLD, 256);
+        DepthTrackingQueue<String> queue = new DepthTrackingQueue<>(spillOverQueue);
+
+        for (int i = 0; i < 100; i++)
+        {
+            queue.add("element-" + i);
+        }
+        assertEquals(90L, spillOverQueue.getSpilledCount());
+        assertTrue(directory.listFiles().length > 1);
+
+        // elements added while the spilled ones are read back still go after them
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals("element-" + i, queue.poll());
+        }
+        for (int i = 100; i < 120; i++)
+        {
+            queue.add("element-" + i);
+        }
+        for (int i = 50; i < 120; i++)
+        {
+            assertEquals("element-" + i, queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(0L, spillOverQueue.getSpillFailures());
+        spillOverQueue.close();
+    }
+
+    /**
+     * Elements that cannot be decoded are reported to the drop listener and no longer counted in the depth
+     */
+    @Test
+    public void testUndecodableElementsAreReported() throws IOException
+    {
+        SpillOverQueue<String> spillOverQueue = new SpillOverQueue<>(new ConcurrentLinkedQueue<>(), new StringCodec());
+        spillOverQueue.open(directory, THRESHOLD, 1024);
+        final DepthTrackingQueue<String> queue = new DepthTrackingQueue<>(spillOverQueue);
+        final List<String> dropped = new ArrayList<>();
+        spillOverQueue.setDropListener((bytes, count) -> {
+            queue.discarded(count);
+            dropped.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+
+        for (int i = 0; i < 30; i++)
+        {
+            queue.add(i % 7 == 0 ? "drop-" + i : "element-" + i);
+        }
+        List<String> polled = new ArrayList<>();
+        String e;
+        while ((e = queue.poll()) != null)
+        {
+            polled.add(e);
+        }
+
+        // the ones held in memory were never decoded
+        assertEquals(2, polled.stream().filter(s -> s.startsWith("drop-")).count());
+        assertEquals(27, polled.size());
+        assertEquals(3, dropped.size());
+        assertEquals("drop-14", dropped.get(0));
+        assertEquals(0, queue.size());
+        assertEquals(3L, spillOverQueue.getSpillFailures());
+        spillOverQueue.close();
+    }
+
+    /**
+     * The elements of a segment that cannot be read are reported to the drop listener as a whole
+     */
+    @Test
+    public void testUnreadableSegmentIsReported() throws IOException
+    {
+        SpillOverQueue<String> spillOverQueue = new SpillOverQueue<>(new ConcurrentLinkedQueue<>(), new StringCodec());
+        spillOverQueue.open(directory, THRESHOLD, 1 << 20);
+        final DepthTrackingQueue<String> queue = new DepthTrackingQueue<>(spillOverQueue);
+        final AtomicLong lost = new AtomicLong(0L);
+        spillOverQueue.setDropListener((bytes, count) -> {
+            assertNull(bytes);
+            queue.discarded(count);
+            lost.addAndGet(count);
+        });
+
+        for (int i = 0; i < THRESHOLD; i++)
+        {
+            queue.add("element-" + i);
+        }
+        // elements larger than the write buffer go to the segment file right away
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < 70000)
+        {
+            padding.append("padding ");
+        }
+        for (int i = THRESHOLD; i < THRESHOLD + 5; i++)
+        {
+            queue.add("element-" + i + padding);
+        }
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw"))
+        {
+            // the length of the second record
+            file.seek(4L + file.readInt());
+            file.writeInt(-1);
+        }
+
+        int polled = 0;
+        while (queue.poll() != null)
+        {
+            polled++;
+        }
+        assertEquals(THRESHOLD + 1, polled);
+        assertEquals(4L, lost.get());
+        assertEquals(0, queue.size());
+        spillOverQueue.close();
+    }
+
+    /**
+     * This codec encodes strings as UTF-8 and refuses to decode those that start with "drop-"
+     */
+    private static class StringCodec implements SpillOverQueue.Codec<String>
+    {
+        @Override
+        public byte[] encode(String s)
+        {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes)
+        {
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            return s.startsWith("drop-") ? null : s;
+        }
+    }
+}